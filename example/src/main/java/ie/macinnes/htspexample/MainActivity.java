@@ -10,10 +10,12 @@ import android.view.View;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
 import ie.macinnes.htsp.HtspConnection;
+import ie.macinnes.htsp.HtspFileCache;
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.htsp.tasks.Authenticator;
 import ie.macinnes.htsp.HtspFileInputStream;
@@ -27,6 +29,7 @@ public class MainActivity extends AppCompatActivity {
     private Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     private SimpleHtspConnection mSimpleHtspConnection;
+    private HtspFileCache mFileCache;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,6 +42,8 @@ public class MainActivity extends AppCompatActivity {
 
         mSimpleHtspConnection = new SimpleHtspConnection(mConnectionDetails);
 
+        mFileCache = new HtspFileCache(new File(getCacheDir(), "htsp"), 50 * 1024 * 1024);
+
         mSimpleHtspConnection.addConnectionListener(new HtspConnection.Listener() {
             @Override
             @NonNull
@@ -97,7 +102,7 @@ public class MainActivity extends AppCompatActivity {
 
         InputStream foo = null;
         try {
-            foo = new HtspFileInputStream(mSimpleHtspConnection, "imagecache/3909");
+            foo = new HtspFileInputStream(mSimpleHtspConnection, "imagecache/3909", mFileCache);
         } catch (IOException e) {
             v.append("Failed to open file" + NEWLINE);
             return;
@@ -108,7 +113,10 @@ public class MainActivity extends AppCompatActivity {
             while (foo.read() != -1) {
                 i += 1;
             }
+            foo.close();
             v.append("Read done, read " + i + " bytes" + NEWLINE);
+            v.append("Cache hit ratio: " + mFileCache.getHitRatio()
+                    + ", bytes saved: " + mFileCache.getBytesSaved() + NEWLINE);
 
             ScrollView sv = (ScrollView) findViewById(R.id.scrollView);
             sv.scrollTo(0, sv.getBottom());
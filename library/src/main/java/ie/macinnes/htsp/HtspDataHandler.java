@@ -161,6 +161,11 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
 
         HtspMessage message = mMessageDispatcher.getMessage();
 
+        if (message == null) {
+            // Nothing may be sent yet, we'll be asked again once something can be
+            return true;
+        }
+
         // Write the message to the buffer
         mMessageSerializer.write(mWriteBuffer, message);
 
@@ -176,6 +181,8 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
             return false;
         }
 
+        message.onSent();
+
         return true;
     }
 }
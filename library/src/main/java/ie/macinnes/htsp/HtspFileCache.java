@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent, on disk, block cache for files fetched over HTSP (e.g. imagecache/ and dvrfile/)
+ *
+ * Files are stored as fixed size blocks, keyed by the file name, and tagged with the size and
+ * mtime TVHeadend reported when the file was last opened. A change to either invalidates every
+ * cached block for that file. Blocks are evicted in least recently used order once the cache
+ * grows beyond its byte budget, along with a file's entry once its last block goes, and hits are
+ * served through memory mapped reads.
+ */
+public class HtspFileCache {
+    private static final String TAG = HtspFileCache.class.getSimpleName();
+
+    /**
+     * Size of a cached block, this matches the read size used by HtspFileInputStream
+     */
+    public static final int BLOCK_SIZE = 1024000;
+
+    private static final long DEFAULT_REVALIDATE_AFTER = 24 * 60 * 60 * 1000; // 24 Hours
+
+    private static final int ENTRY_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Details of a single cached file, as last reported by TVHeadend
+     */
+    public static class Entry {
+        private final String mFileName;
+        private final String mKey;
+        private final long mSize;
+        private final long mMtime;
+        private final long mValidatedAt;
+
+        Entry(String fileName, String key, long size, long mtime, long validatedAt) {
+            mFileName = fileName;
+            mKey = key;
+            mSize = size;
+            mMtime = mtime;
+            mValidatedAt = validatedAt;
+        }
+
+        public String getFileName() {
+            return mFileName;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getMtime() {
+            return mMtime;
+        }
+
+        public long getValidatedAt() {
+            return mValidatedAt;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private long mRevalidateAfter = DEFAULT_REVALIDATE_AFTER;
+
+    private final Object mLock = new Object();
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Map<String, Entry> mEntriesByKey = new HashMap<>();
+    // Key -> number of blocks cached for it
+    private final Map<String, Integer> mBlockCounts = new HashMap<>();
+    // Block file name -> block size, in least to most recently used order
+    private final LinkedHashMap<String, Long> mBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long mCachedBytes = 0;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    public HtspFileCache(@NonNull File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        load();
+    }
+
+    /**
+     * Sets how long a cached file is trusted before TVHeadend is asked for its size and mtime
+     * again. Until then, cached files are served without any network traffic at all.
+     *
+     * @param revalidateAfter Period in milliseconds
+     */
+    public void setRevalidateAfter(long revalidateAfter) {
+        mRevalidateAfter = revalidateAfter;
+    }
+
+    public Entry getEntry(String fileName) {
+        synchronized (mLock) {
+            return mEntries.get(fileName);
+        }
+    }
+
+    public boolean isFresh(@NonNull Entry entry) {
+        return System.currentTimeMillis() - entry.getValidatedAt() < mRevalidateAfter;
+    }
+
+    /**
+     * Records the size and mtime TVHeadend has just reported for a file, dropping any cached
+     * blocks if they no longer match.
+     *
+     * @param fileName The HTSP file name
+     * @param size The file size
+     * @param mtime The file mtime, or -1 if unknown
+     */
+    public void validate(String fileName, long size, long mtime) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(fileName);
+
+            if (entry != null && (entry.getSize() != size || entry.getMtime() != mtime)) {
+                Log.d(TAG, "Cached copy of " + fileName + " is stale, discarding");
+                removeBlocks(entry.mKey);
+            }
+
+            entry = new Entry(fileName, keyFor(fileName), size, mtime, System.currentTimeMillis());
+            mEntries.put(fileName, entry);
+            mEntriesByKey.put(entry.mKey, entry);
+
+            try {
+                writeEntry(entry);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to persist cache entry for " + fileName, e);
+            }
+        }
+    }
+
+    /**
+     * Fetches a block from the cache
+     *
+     * @param fileName The HTSP file name
+     * @param index The block index, i.e. offset / BLOCK_SIZE
+     * @return A read only, memory mapped, buffer holding the block, or null on a cache miss
+     */
+    public ByteBuffer getBlock(String fileName, int index) {
+        File blockFile;
+
+        synchronized (mLock) {
+            Entry entry = mEntries.get(fileName);
+            String blockName = entry == null ? null : blockName(entry.mKey, index);
+
+            if (blockName == null || mBlocks.get(blockName) == null) {
+                mMissCount.incrementAndGet();
+                return null;
+            }
+
+            blockFile = new File(mDirectory, blockName);
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = map(blockFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map cached block " + blockFile.getName(), e);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+
+        // Persist the LRU order across restarts
+        blockFile.setLastModified(System.currentTimeMillis());
+
+        mHitCount.incrementAndGet();
+        mBytesSaved.addAndGet(buffer.remaining());
+
+        return buffer;
+    }
+
+    /**
+     * Stores a block in the cache. The file must have been validated beforehand.
+     *
+     * @param fileName The HTSP file name
+     * @param index The block index, i.e. offset / BLOCK_SIZE
+     * @param data The block contents
+     */
+    public void putBlock(String fileName, int index, @NonNull byte[] data) {
+        String key;
+
+        synchronized (mLock) {
+            Entry entry = mEntries.get(fileName);
+            if (entry == null) {
+                Log.w(TAG, "Attempted to cache a block of unvalidated file " + fileName);
+                return;
+            }
+            key = entry.mKey;
+        }
+
+        if (data.length > mMaxBytes) {
+            return;
+        }
+
+        String blockName = blockName(key, index);
+        File blockFile = new File(mDirectory, blockName);
+
+        try {
+            writeAtomically(blockFile, data);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache block " + index + " of " + fileName, e);
+            return;
+        }
+
+        synchronized (mLock) {
+            if (!mEntriesByKey.containsKey(key)) {
+                // Invalidated, or evicted, while we were writing
+                new File(mDirectory, blockName).delete();
+                return;
+            }
+
+            Long previousSize = mBlocks.put(blockName, (long) data.length);
+            if (previousSize != null) {
+                mCachedBytes -= previousSize;
+            } else {
+                addBlockCount(key, 1);
+            }
+            mCachedBytes += data.length;
+
+            trim();
+        }
+    }
+
+    public void invalidate(String fileName) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(fileName);
+
+            if (entry != null) {
+                removeBlocks(entry.mKey);
+                removeEntry(entry);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mLock) {
+            for (Entry entry : new ArrayList<>(mEntries.values())) {
+                invalidate(entry.getFileName());
+            }
+        }
+    }
+
+    public long getCachedBytes() {
+        synchronized (mLock) {
+            return mCachedBytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public float getHitRatio() {
+        long hits = mHitCount.get();
+        long total = hits + mMissCount.get();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        return (float) hits / total;
+    }
+
+    /**
+     * @return The number of bytes served from the cache rather than fetched from TVHeadend
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    // Internal Methods
+    private void load() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create cache directory " + mDirectory);
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> blockFiles = new ArrayList<>();
+
+        synchronized (mLock) {
+            for (File file : files) {
+                String name = file.getName();
+
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // Left over from an interrupted write
+                    file.delete();
+                } else if (name.endsWith(ENTRY_SUFFIX)) {
+                    try {
+                        Entry entry = readEntry(file);
+                        mEntries.put(entry.getFileName(), entry);
+                        mEntriesByKey.put(entry.mKey, entry);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Discarding unreadable cache entry " + name, e);
+                        file.delete();
+                    }
+                } else {
+                    blockFiles.add(file);
+                }
+            }
+
+            // Oldest first, so the LinkedHashMap ends up in LRU order
+            File[] sortedBlockFiles = blockFiles.toArray(new File[blockFiles.size()]);
+            Arrays.sort(sortedBlockFiles, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    return Long.compare(lhs.lastModified(), rhs.lastModified());
+                }
+            });
+
+            for (File file : sortedBlockFiles) {
+                String name = file.getName();
+                int separator = name.lastIndexOf('.');
+
+                if (separator == -1 || !mEntriesByKey.containsKey(name.substring(0, separator))) {
+                    // Orphaned block, or something that doesn't belong to us
+                    file.delete();
+                    continue;
+                }
+
+                mBlocks.put(name, file.length());
+                mCachedBytes += file.length();
+                addBlockCount(name.substring(0, separator), 1);
+            }
+
+            // Entries without a single block would never be evicted
+            for (Entry entry : new ArrayList<>(mEntries.values())) {
+                if (!mBlockCounts.containsKey(entry.mKey)) {
+                    removeEntry(entry);
+                }
+            }
+
+            trim();
+
+            Log.d(TAG, "Loaded " + mBlocks.size() + " cached blocks (" + mCachedBytes + " bytes) for "
+                    + mEntries.size() + " files");
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = mBlocks.entrySet().iterator();
+
+        while (mCachedBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> block = iterator.next();
+            String key = block.getKey().substring(0, block.getKey().lastIndexOf('.'));
+
+            new File(mDirectory, block.getKey()).delete();
+            mCachedBytes -= block.getValue();
+            iterator.remove();
+
+            if (addBlockCount(key, -1) == 0) {
+                // That was the file's last block, there's nothing left to validate
+                Entry entry = mEntriesByKey.get(key);
+                if (entry != null) {
+                    removeEntry(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The key's new block count
+     */
+    private int addBlockCount(String key, int delta) {
+        Integer count = mBlockCounts.get(key);
+        int newCount = (count == null ? 0 : count) + delta;
+
+        if (newCount <= 0) {
+            mBlockCounts.remove(key);
+            return 0;
+        }
+
+        mBlockCounts.put(key, newCount);
+        return newCount;
+    }
+
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.getFileName());
+        mEntriesByKey.remove(entry.mKey);
+        new File(mDirectory, entry.mKey + ENTRY_SUFFIX).delete();
+    }
+
+    private void removeBlocks(String key) {
+        String prefix = key + ".";
+        Iterator<Map.Entry<String, Long>> iterator = mBlocks.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> block = iterator.next();
+
+            if (block.getKey().startsWith(prefix)) {
+                new File(mDirectory, block.getKey()).delete();
+                mCachedBytes -= block.getValue();
+                iterator.remove();
+            }
+        }
+
+        mBlockCounts.remove(key);
+    }
+
+    private Entry readEntry(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != ENTRY_VERSION) {
+                throw new IOException("Unsupported cache entry version");
+            }
+
+            String fileName = in.readUTF();
+            long size = in.readLong();
+            long mtime = in.readLong();
+            long validatedAt = in.readLong();
+
+            return new Entry(fileName, keyFor(fileName), size, mtime, validatedAt);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        File tempFile = new File(mDirectory, entry.mKey + ENTRY_SUFFIX + TEMP_SUFFIX);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.writeInt(ENTRY_VERSION);
+            out.writeUTF(entry.getFileName());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getMtime());
+            out.writeLong(entry.getValidatedAt());
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(new File(mDirectory, entry.mKey + ENTRY_SUFFIX))) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile);
+        }
+    }
+
+    private void writeAtomically(File file, byte[] data) throws IOException {
+        File tempFile = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile);
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String blockName(String key, int index) {
+        return key + "." + index;
+    }
+
+    private static String keyFor(String fileName) {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Your platform doesn't support SHA-1");
+        }
+
+        byte[] digest;
+        try {
+            digest = md.digest(fileName.getBytes("utf8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Your platform doesn't support UTF-8");
+        }
+
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+}
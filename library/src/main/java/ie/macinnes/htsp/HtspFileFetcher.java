@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches many small files (e.g. imagecache/ icons) over a HTSP Connection at once
+ *
+ * Rather than a blocking fileOpen, fileRead, fileClose sequence per file, requests for up to
+ * maxConcurrentTransfers files are kept in flight together. Requests for a file which is
+ * already being fetched share the existing transfer, and each file is handed to the listener
+ * as soon as it completes.
+ *
+ * Responses arrive on the connection thread, so writes to the HtspFileCache are handed to a
+ * thread of their own rather than holding up everything else on the connection.
+ */
+public class HtspFileFetcher {
+    private static final String TAG = HtspFileFetcher.class.getSimpleName();
+
+    private static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 8;
+
+    /**
+     * A listener for fetched files
+     */
+    public interface Listener {
+        /**
+         * Returns the Handler on which to execute the callback.
+         *
+         * @return Handler, or null.
+         */
+        Handler getHandler();
+
+        /**
+         * Called once for each file successfully fetched
+         *
+         * @param fileName The file name
+         * @param data The file contents
+         */
+        void onFileFetched(@NonNull String fileName, @NonNull byte[] data);
+
+        /**
+         * Called once for each file which could not be fetched
+         *
+         * @param fileName The file name
+         * @param error A description of the failure
+         */
+        void onFileFetchFailed(@NonNull String fileName, @NonNull String error);
+
+        /**
+         * Called once every file in the batch has either been fetched or failed
+         *
+         * @param batch The completed batch
+         */
+        void onBatchComplete(@NonNull Batch batch);
+    }
+
+    /**
+     * A set of files requested with a single call to fetch()
+     */
+    public static class Batch {
+        private final Listener mListener;
+        private final int mFileCount;
+        private final long mStartTime;
+        private final CountDownLatch mLatch;
+
+        private int mDoneCount = 0;
+        private int mFailedCount = 0;
+        private long mEndTime = -1;
+
+        Batch(Listener listener, int fileCount) {
+            mListener = listener;
+            mFileCount = fileCount;
+            mStartTime = System.nanoTime();
+            mLatch = new CountDownLatch(fileCount);
+        }
+
+        public int getFileCount() {
+            return mFileCount;
+        }
+
+        public synchronized int getFailedCount() {
+            return mFailedCount;
+        }
+
+        public boolean isComplete() {
+            return mLatch.getCount() == 0;
+        }
+
+        /**
+         * @return Time taken to fetch every file in the batch in milliseconds, or -1 if the
+         *         batch is still in progress
+         */
+        public synchronized long getDuration() {
+            if (mEndTime == -1) {
+                return -1;
+            }
+
+            return TimeUnit.NANOSECONDS.toMillis(mEndTime - mStartTime);
+        }
+
+        /**
+         * Blocks until every file in the batch has either been fetched or failed
+         *
+         * @param timeout Maximum time to wait in milliseconds
+         * @return true if the batch completed, false on timeout
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return mLatch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized boolean onFileDone(boolean failed) {
+            if (failed) {
+                mFailedCount += 1;
+            }
+
+            mDoneCount += 1;
+
+            if (mDoneCount == mFileCount) {
+                mEndTime = System.nanoTime();
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private class Transfer implements HtspMessage.ResponseListener {
+        private final String mFileName;
+        private final List<Batch> mBatches = new ArrayList<>();
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+
+        private int mFileId = -1;
+        private long mFileSize = -1;
+        private long mOffset = 0;
+        private long mRequestedSize = 0;
+
+        Transfer(String fileName) {
+            mFileName = fileName;
+        }
+
+        void start() {
+            HtspMessage fileOpenRequest = new HtspMessage();
+
+            fileOpenRequest.put("method", "fileOpen");
+            fileOpenRequest.put("file", mFileName);
+
+            send(fileOpenRequest);
+        }
+
+        @Override
+        public void onResponse(@NonNull HtspMessage response) {
+            if (response.containsKey("error")) {
+                closeFile();
+                onTransferDone(this, null, response.getString("error"));
+                return;
+            }
+
+            if ("fileOpen".equals(response.getString("method", null))) {
+                onFileOpen(response);
+            } else {
+                onFileRead(response);
+            }
+        }
+
+        @Override
+        public void onResponseFailed(@NonNull HtspException e) {
+            onTransferDone(this, null, e.getMessage());
+        }
+
+        private void onFileOpen(HtspMessage response) {
+            mFileId = response.getInteger("id");
+            mFileSize = response.getLong("size", -1);
+
+            if (mCache != null && mFileSize != -1) {
+                final long fileSize = mFileSize;
+                final long mtime = response.getLong("mtime", -1);
+
+                mCacheExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCache.validate(mFileName, fileSize, mtime);
+                    }
+                });
+            }
+
+            sendFileRead();
+        }
+
+        private void onFileRead(HtspMessage response) {
+            byte[] data = response.getByteArray("data");
+
+            // Reads may come back short, e.g. when shrunk by the HtspFileReadScheduler, only
+            // whole aligned blocks are cached.
+            if (mCache != null && mFileSize != -1 && data.length == mRequestedSize
+                    && mOffset % HtspFileCache.BLOCK_SIZE == 0) {
+                final int index = (int) (mOffset / HtspFileCache.BLOCK_SIZE);
+                final byte[] block = data;
+
+                // After the validate, it's the same single thread
+                mCacheExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCache.putBlock(mFileName, index, block);
+                    }
+                });
+            }
+
+            mData.write(data, 0, data.length);
+            mOffset += data.length;
+
+            boolean more;
+            if (mFileSize != -1) {
+                more = mOffset < mFileSize && data.length > 0;
+            } else {
+                // An empty read marks the end of a file of unknown size
+                more = data.length > 0;
+            }
+
+            if (more) {
+                sendFileRead();
+            } else {
+                closeFile();
+                onTransferDone(this, mData.toByteArray(), null);
+            }
+        }
+
+        private void sendFileRead() {
+            mRequestedSize = HtspFileCache.BLOCK_SIZE;
+            if (mFileSize != -1) {
+                mRequestedSize = Math.min(mRequestedSize, mFileSize - mOffset);
+            }
+
+            if (mRequestedSize == 0) {
+                closeFile();
+                onTransferDone(this, new byte[0], null);
+                return;
+            }
+
+            HtspMessage fileReadRequest = new HtspMessage();
+
+            fileReadRequest.put("method", "fileRead");
+            fileReadRequest.put("id", mFileId);
+            fileReadRequest.put("size", mRequestedSize);
+            fileReadRequest.put("offset", mOffset);
+
+            send(fileReadRequest);
+        }
+
+        private void closeFile() {
+            if (mFileId == -1) {
+                return;
+            }
+
+            HtspMessage fileCloseRequest = new HtspMessage();
+
+            fileCloseRequest.put("method", "fileClose");
+            fileCloseRequest.put("id", mFileId);
+
+            // We just go ahead and send the close without waiting for a response, if it fails, oh well.
+            try {
+                mDispatcher.sendMessage(fileCloseRequest);
+            } catch (HtspNotConnectedException e) {
+                // Ignore: If we're not connected, TVHeadend has already closed the file
+            }
+
+            mFileId = -1;
+        }
+
+        private void send(HtspMessage request) {
+            try {
+                mDispatcher.sendMessage(request, this);
+            } catch (HtspNotConnectedException e) {
+                onTransferDone(this, null, "Not connected");
+            }
+        }
+    }
+
+    private final HtspMessage.AsyncDispatcher mDispatcher;
+    private final int mMaxConcurrentTransfers;
+    private final HtspFileCache mCache;
+    private final ExecutorService mCacheExecutor;
+
+    private final Object mLock = new Object();
+    private final Map<String, Transfer> mTransfers = new HashMap<>();
+    private final Queue<Transfer> mQueue = new ArrayDeque<>();
+    private int mActiveTransfers = 0;
+
+    public HtspFileFetcher(@NonNull HtspMessage.AsyncDispatcher dispatcher) {
+        this(dispatcher, DEFAULT_MAX_CONCURRENT_TRANSFERS, null);
+    }
+
+    public HtspFileFetcher(@NonNull HtspMessage.AsyncDispatcher dispatcher, int maxConcurrentTransfers, HtspFileCache cache) {
+        mDispatcher = dispatcher;
+        mMaxConcurrentTransfers = maxConcurrentTransfers;
+        mCache = cache;
+
+        if (cache != null) {
+            mCacheExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HtspFileFetcher-Cache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            mCacheExecutor = null;
+        }
+    }
+
+    /**
+     * Fetches a set of files, each file is passed to the listener as soon as it's available.
+     *
+     * @param fileNames The files to fetch, duplicates are fetched only once
+     * @param listener The listener to receive the files
+     * @return The Batch, which can be used to wait for, and time, the fetch
+     */
+    public Batch fetch(@NonNull Collection<String> fileNames, @NonNull Listener listener) {
+        Set<String> uniqueFileNames = new LinkedHashSet<>(fileNames);
+        Batch batch = new Batch(listener, uniqueFileNames.size());
+
+        Log.d(TAG, "Fetching " + uniqueFileNames.size() + " files");
+
+        if (uniqueFileNames.isEmpty()) {
+            batch.mEndTime = batch.mStartTime;
+            notifyBatchComplete(batch);
+            return batch;
+        }
+
+        for (String fileName : uniqueFileNames) {
+            byte[] cached = readFromCache(fileName);
+
+            if (cached != null) {
+                notifyFileDone(batch, fileName, cached, null);
+                continue;
+            }
+
+            synchronized (mLock) {
+                Transfer transfer = mTransfers.get(fileName);
+
+                if (transfer == null) {
+                    transfer = new Transfer(fileName);
+                    mTransfers.put(fileName, transfer);
+                    mQueue.add(transfer);
+                }
+
+                transfer.mBatches.add(batch);
+            }
+        }
+
+        startQueuedTransfers();
+
+        return batch;
+    }
+
+    // Internal Methods
+    private void startQueuedTransfers() {
+        List<Transfer> toStart = new ArrayList<>();
+
+        synchronized (mLock) {
+            while (mActiveTransfers < mMaxConcurrentTransfers && !mQueue.isEmpty()) {
+                toStart.add(mQueue.remove());
+                mActiveTransfers += 1;
+            }
+        }
+
+        // Sending happens outside of the lock, as the Dispatcher may call back into us
+        for (Transfer transfer : toStart) {
+            transfer.start();
+        }
+    }
+
+    private void onTransferDone(Transfer transfer, byte[] data, String error) {
+        List<Batch> batches;
+
+        synchronized (mLock) {
+            if (mTransfers.get(transfer.mFileName) != transfer) {
+                // Already completed
+                return;
+            }
+
+            mTransfers.remove(transfer.mFileName);
+            mActiveTransfers -= 1;
+            batches = new ArrayList<>(transfer.mBatches);
+        }
+
+        if (error != null) {
+            Log.w(TAG, "Failed to fetch " + transfer.mFileName + ": " + error);
+        }
+
+        for (Batch batch : batches) {
+            notifyFileDone(batch, transfer.mFileName, data, error);
+        }
+
+        startQueuedTransfers();
+    }
+
+    private byte[] readFromCache(String fileName) {
+        if (mCache == null) {
+            return null;
+        }
+
+        HtspFileCache.Entry entry = mCache.getEntry(fileName);
+        if (entry == null || !mCache.isFresh(entry) || entry.getSize() > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        byte[] data = new byte[(int) entry.getSize()];
+        int offset = 0;
+
+        while (offset < data.length) {
+            ByteBuffer block = mCache.getBlock(fileName, offset / HtspFileCache.BLOCK_SIZE);
+
+            if (block == null || block.remaining() > data.length - offset) {
+                return null;
+            }
+
+            int length = block.remaining();
+            block.get(data, offset, length);
+            offset += length;
+        }
+
+        return data;
+    }
+
+    private void notifyFileDone(final Batch batch, final String fileName, final byte[] data, final String error) {
+        final boolean batchComplete = batch.onFileDone(data == null);
+        final Listener listener = batch.mListener;
+
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (data != null) {
+                    listener.onFileFetched(fileName, data);
+                } else {
+                    listener.onFileFetchFailed(fileName, error);
+                }
+
+                if (batchComplete) {
+                    Log.i(TAG, "Fetched " + (batch.getFileCount() - batch.getFailedCount()) + " of "
+                            + batch.getFileCount() + " files in " + batch.getDuration() + "ms");
+                    listener.onBatchComplete(batch);
+                }
+
+                // Only release anyone waiting on the batch once the listener has the file
+                batch.mLatch.countDown();
+            }
+        };
+
+        Handler handler = listener.getHandler();
+        if (handler == null) {
+            runnable.run();
+        } else {
+            handler.post(runnable);
+        }
+    }
+
+    private void notifyBatchComplete(final Batch batch) {
+        final Listener listener = batch.mListener;
+
+        Handler handler = listener.getHandler();
+        if (handler == null) {
+            listener.onBatchComplete(batch);
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBatchComplete(batch);
+                }
+            });
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package ie.macinnes.htsp;
 
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.LongSparseArray;
@@ -29,27 +30,91 @@ import java.util.ArrayList;
 
 /**
  * Fetches a file over a HTSP Connection
+ *
+ * Streams created with a SimpleHtspConnection and a resume timeout survive the connection being
+ * lost. Once it's re-established the file is reopened, and reading continues from the current
+ * position, provided the file size hasn't changed in the meantime.
  */
 public class HtspFileInputStream extends InputStream {
     private static final String TAG = HtspFileInputStream.class.getSimpleName();
 
+    private static final int READ_SIZE = HtspFileCache.BLOCK_SIZE;
+    private static final int MAX_RESUME_ATTEMPTS = 5;
+    private static final int MAX_RESUME_DELAY = 2000;
+
     private final HtspMessage.Dispatcher mDispatcher;
     private final String mFileName;
+    private final HtspFileCache mCache;
+    private final SimpleHtspConnection mConnection;
+    private final int mResumeTimeout;
 
     private ByteBuffer mBuffer;
+    private volatile boolean mConnectionLost = false;
 
     private int mFileId = -1;
     private long mFileSize = -1;
+    private long mFileMtime = -1;
     private long mFilePosition = 0;
 
     public HtspFileInputStream(@NonNull HtspMessage.Dispatcher dispatcher, String fileName) throws IOException {
+        this(dispatcher, fileName, null);
+    }
+
+    public HtspFileInputStream(@NonNull HtspMessage.Dispatcher dispatcher, String fileName, HtspFileCache cache) throws IOException {
+        this(dispatcher, null, fileName, cache, 0);
+    }
+
+    /**
+     * Creates a resumable stream
+     *
+     * @param connection The connection to read the file over
+     * @param fileName The file to read
+     * @param cache An optional cache, or null
+     * @param resumeTimeout How long to wait for the connection to be re-established before
+     *                      giving up, in milliseconds
+     */
+    public HtspFileInputStream(@NonNull SimpleHtspConnection connection, String fileName, HtspFileCache cache, int resumeTimeout) throws IOException {
+        this(connection, connection, fileName, cache, resumeTimeout);
+    }
+
+    private HtspFileInputStream(HtspMessage.Dispatcher dispatcher, SimpleHtspConnection connection, String fileName, HtspFileCache cache, int resumeTimeout) throws IOException {
         mDispatcher = dispatcher;
+        mConnection = connection;
         mFileName = fileName;
+        mCache = cache;
+        mResumeTimeout = resumeTimeout;
 
         Log.i(TAG, "Opening HtspFileInputStream for " + mFileName);
 
-        sendFileOpen();
-        sendFileRead(1024000, 0);
+        if (mConnection != null) {
+            // File IDs are only valid on the connection they were opened on, and are reused by
+            // TVHeadend on new connections, so we need to know about reconnects rather than
+            // relying on reads failing.
+            mConnection.addConnectionListener(mConnectionListener);
+        }
+
+        try {
+            HtspFileCache.Entry cacheEntry = null;
+            if (mCache != null) {
+                cacheEntry = mCache.getEntry(mFileName);
+            }
+
+            if (cacheEntry != null && mCache.isFresh(cacheEntry)) {
+                // We've recently validated the cached copy, so trust it. The file will be opened
+                // later on if we turn out to be missing any blocks.
+                mFileSize = cacheEntry.getSize();
+                mFileMtime = cacheEntry.getMtime();
+            } else {
+                sendFileOpen();
+            }
+
+            sendFileRead(READ_SIZE, 0);
+        } catch (IOException e) {
+            if (mConnection != null) {
+                mConnection.removeConnectionListener(mConnectionListener);
+            }
+            throw e;
+        }
     }
 
     public long getFileSize() {
@@ -78,7 +143,7 @@ public class HtspFileInputStream extends InputStream {
             return -1;
         }
 
-        sendFileRead(1024000, mFilePosition);
+        sendFileRead(READ_SIZE, mFilePosition);
 
         if (!mBuffer.hasRemaining() && mFileSize == -1) {
             // If we still don't have any data, and we don't have a known size, then we're done.
@@ -156,7 +221,7 @@ public class HtspFileInputStream extends InputStream {
             return -1;
         }
 
-        sendFileRead(1024000, mFilePosition);
+        sendFileRead(READ_SIZE, mFilePosition);
 
         if (!mBuffer.hasRemaining() && mFileSize == -1) {
             // If we still don't have any data, and we don't have a known size, then we're done.
@@ -183,9 +248,33 @@ public class HtspFileInputStream extends InputStream {
      */
     @Override
     public void close() throws IOException {
-        sendFileClose();
+        if (mConnection != null) {
+            mConnection.removeConnectionListener(mConnectionListener);
+        }
+
+        if (mFileId != -1 && !mConnectionLost) {
+            sendFileClose();
+        }
     }
 
+    private final HtspConnection.Listener mConnectionListener = new HtspConnection.Listener() {
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
+
+        @Override
+        public void setConnection(@NonNull HtspConnection connection) {
+        }
+
+        @Override
+        public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+            if (state != HtspConnection.State.CONNECTED) {
+                mConnectionLost = true;
+            }
+        }
+    };
+
     // Internal Methods
     private void sendFileOpen() throws IOException {
         HtspMessage fileOpenRequest = new HtspMessage();
@@ -217,6 +306,15 @@ public class HtspFileInputStream extends InputStream {
         } else {
             Log.v(TAG, "Opened file " + mFileName + " successfully");
         }
+
+        if (fileOpenResponse.containsKey("mtime")) {
+            // mtime is optional too
+            mFileMtime = fileOpenResponse.getLong("mtime");
+        }
+
+        if (mCache != null && mFileSize != -1) {
+            mCache.validate(mFileName, mFileSize, mFileMtime);
+        }
     }
 
     private void sendFileRead(long size, long offset) throws IOException {
@@ -231,6 +329,69 @@ public class HtspFileInputStream extends InputStream {
             }
         }
 
+        // Only whole blocks of files with a known size are cached, anything else would leave us
+        // unable to tell a complete block from a truncated one.
+        boolean cacheable = mCache != null && mFileSize != -1 && size > 0
+                && offset % HtspFileCache.BLOCK_SIZE == 0
+                && size == Math.min(HtspFileCache.BLOCK_SIZE, mFileSize - offset);
+        int blockIndex = (int) (offset / HtspFileCache.BLOCK_SIZE);
+
+        if (cacheable) {
+            ByteBuffer block = mCache.getBlock(mFileName, blockIndex);
+
+            if (block != null && block.remaining() == size) {
+                if (HtspConstants.DEBUG)
+                    Log.v(TAG, "Serving " + size + " bytes of file at offset " + offset + " from cache");
+
+                mFilePosition += block.remaining();
+                mBuffer = block;
+                return;
+            }
+        }
+
+        if (mFileId == -1) {
+            // Everything up to now came from the cache, open the file for real
+            long cachedSize = mFileSize;
+            long cachedMtime = mFileMtime;
+
+            sendFileOpen();
+
+            if (mFilePosition > 0 && (mFileSize != cachedSize || mFileMtime != cachedMtime)) {
+                throw new IOException("File " + mFileName + " changed while being read");
+            }
+        }
+
+        if (mConnectionLost) {
+            resume(new IOException("HTSP connection was lost"));
+        }
+
+        byte[] data;
+        int attempts = 0;
+
+        while (true) {
+            try {
+                data = requestFileRead(size, offset);
+                break;
+            } catch (IOException e) {
+                attempts += 1;
+
+                if (mResumeTimeout <= 0 || attempts >= MAX_RESUME_ATTEMPTS) {
+                    throw e;
+                }
+
+                resume(e);
+            }
+        }
+
+        if (cacheable && data.length == size) {
+            mCache.putBlock(mFileName, blockIndex, data);
+        }
+
+        mFilePosition += data.length;
+        mBuffer = ByteBuffer.wrap(data);
+    }
+
+    private byte[] requestFileRead(long size, long offset) throws IOException {
         HtspMessage fileReadRequest = new HtspMessage();
 
         fileReadRequest.put("method", "fileRead");
@@ -261,8 +422,69 @@ public class HtspFileInputStream extends InputStream {
         if (HtspConstants.DEBUG)
             Log.v(TAG, "Fetched " + data.length + " bytes of file at offset " + offset);
 
-        mFilePosition += data.length;
-        mBuffer = ByteBuffer.wrap(data);
+        return data;
+    }
+
+    /**
+     * Reopens the file after the connection was lost, or a read failed, retrying until the
+     * resume timeout expires. The file must still be the same size, otherwise the data we've
+     * already returned can't be trusted to match what we'd read next.
+     *
+     * @param cause The failure which triggered the resume
+     */
+    private void resume(IOException cause) throws IOException {
+        if (mResumeTimeout <= 0) {
+            throw cause;
+        }
+
+        Log.w(TAG, "Resuming " + mFileName + " at offset " + mFilePosition + " after: " + cause.getMessage());
+
+        if (!mConnectionLost && mFileId != -1) {
+            // Still on the same connection, so don't leave the old file open on the server
+            try {
+                sendFileClose();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        mFileId = -1;
+
+        long expectedSize = mFileSize;
+        long deadline = System.currentTimeMillis() + mResumeTimeout;
+        int delay = 100;
+
+        while (true) {
+            // Cleared before opening, so a further reconnect while we're opening is noticed
+            mConnectionLost = false;
+
+            try {
+                sendFileOpen();
+                break;
+            } catch (IOException e) {
+                // Typically we're not connected, or not yet authenticated, keep trying.
+                cause = e;
+            }
+
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new IOException("Failed to resume " + mFileName + " at offset " + mFilePosition, cause);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while resuming " + mFileName, cause);
+            }
+
+            delay = Math.min(delay * 2, MAX_RESUME_DELAY);
+        }
+
+        if (expectedSize != -1 && mFileSize != expectedSize) {
+            sendFileClose();
+            throw new IOException("File " + mFileName + " changed size from " + expectedSize
+                    + " to " + mFileSize + " while resuming");
+        }
+
+        Log.i(TAG, "Resumed " + mFileName + " at offset " + mFilePosition);
     }
 
     private void sendFileClose() throws IOException {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Shares a HTSP Connection fairly between file transfers and live subscriptions
+ *
+ * TVHeadend sends responses in order, so a large fileRead response sits in front of any muxpkts
+ * queued behind it. While a subscription is active, fileRead requests are held back until the
+ * previous one has been answered, and their size is capped so each response only delays live
+ * packets by roughly the target latency. The cap is adjusted based on the head-of-line delay
+ * actually observed, i.e. how long muxpkts were held up behind fileRead responses.
+ *
+ * With no active subscriptions, fileRead requests are passed through untouched.
+ */
+public class HtspFileReadScheduler {
+    private static final String TAG = HtspFileReadScheduler.class.getSimpleName();
+
+    private static final long DEFAULT_TARGET_LATENCY = 50; // ms
+    private static final long MIN_READ_SIZE = 16 * 1024;
+    private static final long MAX_READ_SIZE = 1024 * 1024;
+    private static final long INITIAL_READ_SIZE = 64 * 1024;
+
+    private long mTargetLatency = DEFAULT_TARGET_LATENCY;
+    private long mMaxReadSize = INITIAL_READ_SIZE;
+
+    private final Set<Integer> mActiveSubscriptions = new HashSet<>();
+    // subscriptionId of each subscribe request awaiting its response, by seq
+    private final LongSparseArray<Integer> mPendingSubscribes = new LongSparseArray<>();
+    private final LongSparseArray<Long> mOutstandingReads = new LongSparseArray<>();
+    private long mOutstandingBytes = 0;
+
+    private long mBlockedSince = -1;
+    private long mLastMessageTime = -1;
+
+    private long mLastDelay = 0;
+    private long mMaxDelay = 0;
+    private double mAverageDelay = 0;
+    private long mDelaySamples = 0;
+    private long mClampedReads = 0;
+
+    /**
+     * Sets the additional muxpkt latency file transfers are allowed to cause
+     *
+     * @param targetLatency Target latency in milliseconds
+     */
+    public synchronized void setTargetLatency(long targetLatency) {
+        mTargetLatency = targetLatency;
+    }
+
+    public synchronized boolean isLiveActive() {
+        return !mActiveSubscriptions.isEmpty();
+    }
+
+    /**
+     * @return The current fileRead size cap in bytes, only applied while a subscription is active
+     */
+    public synchronized long getMaxReadSize() {
+        return mMaxReadSize;
+    }
+
+    public synchronized long getOutstandingBytes() {
+        return mOutstandingBytes;
+    }
+
+    /**
+     * @return The most recent head-of-line delay sample in milliseconds
+     */
+    public synchronized long getLastHeadOfLineDelay() {
+        return mLastDelay;
+    }
+
+    /**
+     * @return The average head-of-line delay in milliseconds, weighted towards recent samples
+     */
+    public synchronized long getAverageHeadOfLineDelay() {
+        return Math.round(mAverageDelay);
+    }
+
+    public synchronized long getMaxHeadOfLineDelay() {
+        return mMaxDelay;
+    }
+
+    public synchronized long getHeadOfLineDelaySamples() {
+        return mDelaySamples;
+    }
+
+    /**
+     * @return The number of fileRead requests which have been shrunk to protect live playback
+     */
+    public synchronized long getClampedReads() {
+        return mClampedReads;
+    }
+
+    static boolean isFileRead(@NonNull HtspMessage message) {
+        return "fileRead".equals(message.getString("method", null));
+    }
+
+    /**
+     * Called to check if a queued fileRead request may be sent now
+     */
+    synchronized boolean canSend(@NonNull HtspMessage fileReadRequest) {
+        if (mActiveSubscriptions.isEmpty()) {
+            return true;
+        }
+
+        // While live, only ever have one (capped) response in front of the muxpkts
+        return mOutstandingReads.size() == 0;
+    }
+
+    /**
+     * Called as each message is about to be written to the connection
+     */
+    synchronized void onMessageSent(@NonNull HtspMessage message) {
+        final String method = message.getString("method", null);
+
+        if (method == null) {
+            return;
+        }
+
+        switch (method) {
+            case "subscribe":
+                // Active from the start, so the first packets aren't stuck behind a large read
+                final int subscriptionId = message.getInteger("subscriptionId", -1);
+                mActiveSubscriptions.add(subscriptionId);
+                mPendingSubscribes.put(message.getLong("seq"), subscriptionId);
+                break;
+            case "unsubscribe":
+                mActiveSubscriptions.remove(message.getInteger("subscriptionId", -1));
+                break;
+            case "fileRead":
+                long size = message.getLong("size", 0);
+
+                if (!mActiveSubscriptions.isEmpty() && size > mMaxReadSize) {
+                    message.put("size", mMaxReadSize);
+                    size = mMaxReadSize;
+                    mClampedReads += 1;
+                }
+
+                mOutstandingReads.put(message.getLong("seq"), size);
+                mOutstandingBytes += size;
+                break;
+        }
+    }
+
+    /**
+     * Called as each message is received from the connection
+     *
+     * @return true if held back fileRead requests may now be sendable
+     */
+    synchronized boolean onMessageReceived(@NonNull HtspMessage message) {
+        boolean unblocked = false;
+        final long now = System.currentTimeMillis();
+        final String method = message.getString("method", null);
+
+        if ("muxpkt".equals(method)) {
+            if (mBlockedSince != -1) {
+                recordDelay(now - mBlockedSince);
+                mBlockedSince = -1;
+            }
+        } else if ("subscriptionStop".equals(method)) {
+            mActiveSubscriptions.remove(message.getInteger("subscriptionId", -1));
+            unblocked = true;
+        } else if (message.containsKey("seq")) {
+            long seq = message.getLong("seq");
+            Long size = mOutstandingReads.get(seq);
+            Integer subscriptionId = mPendingSubscribes.get(seq);
+
+            if (subscriptionId != null) {
+                mPendingSubscribes.remove(seq);
+
+                // A refused subscribe gets no subscriptionStop, it's over now
+                if (message.containsKey("error") || message.getBoolean("noaccess", false)) {
+                    mActiveSubscriptions.remove(subscriptionId);
+                    unblocked = true;
+                }
+            }
+
+            if (size != null) {
+                mOutstandingReads.remove(seq);
+                mOutstandingBytes -= size;
+                unblocked = true;
+
+                if (!mActiveSubscriptions.isEmpty() && mBlockedSince == -1 && mLastMessageTime != -1) {
+                    // Any muxpkt arriving next was stuck behind this response since at least
+                    // the last message we received.
+                    mBlockedSince = mLastMessageTime;
+                }
+            }
+        }
+
+        mLastMessageTime = now;
+
+        return unblocked;
+    }
+
+    synchronized void reset() {
+        mActiveSubscriptions.clear();
+        mPendingSubscribes.clear();
+        mOutstandingReads.clear();
+        mOutstandingBytes = 0;
+        mBlockedSince = -1;
+        mLastMessageTime = -1;
+    }
+
+    private void recordDelay(long delay) {
+        mLastDelay = delay;
+        mMaxDelay = Math.max(mMaxDelay, delay);
+        mDelaySamples += 1;
+
+        if (mDelaySamples == 1) {
+            mAverageDelay = delay;
+        } else {
+            mAverageDelay = (mAverageDelay * 7 + delay) / 8;
+        }
+
+        // Back off quickly when we're hurting live playback, and recover slowly when we're not.
+        long previousMaxReadSize = mMaxReadSize;
+        if (mAverageDelay > mTargetLatency) {
+            mMaxReadSize = Math.max(MIN_READ_SIZE, mMaxReadSize / 2);
+        } else if (mAverageDelay < mTargetLatency / 2) {
+            mMaxReadSize = Math.min(MAX_READ_SIZE, mMaxReadSize + mMaxReadSize / 4);
+        }
+
+        if (HtspConstants.DEBUG && previousMaxReadSize != mMaxReadSize)
+            Log.d(TAG, "Head-of-line delay " + Math.round(mAverageDelay) + "ms, fileRead size cap now " + mMaxReadSize);
+    }
+}
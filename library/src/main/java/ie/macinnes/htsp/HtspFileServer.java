@@ -0,0 +1,601 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves HTSP files (dvrfile/ and imagecache/) over HTTP on the loopback interface
+ *
+ * Players which are better at buffering and seeking over HTTP can be pointed at getUrl(), and
+ * byte ranges they request are translated into pipelined fileRead requests on the existing HTSP
+ * connection - no separate TVHeadend HTTP login is needed. Each client has at most
+ * READ_AHEAD * READ_SIZE bytes in flight, and at most maxClients are served at once, so memory
+ * use stays bounded regardless of how many players connect.
+ *
+ * URLs include a random token, so other apps on the device can't use the server to read
+ * recordings.
+ */
+public class HtspFileServer implements Runnable {
+    private static final String TAG = HtspFileServer.class.getSimpleName();
+
+    private static final int DEFAULT_MAX_CLIENTS = 4;
+    private static final int READ_SIZE = 256 * 1024;
+    private static final int READ_AHEAD = 4;
+    private static final int READ_TIMEOUT = 10000;
+    private static final int REQUEST_TIMEOUT = 5000;
+    private static final int MAX_HEADER_LENGTH = 8192;
+
+    private static final String[] ALLOWED_PREFIXES = new String[]{"dvrfile/", "imagecache/"};
+
+    private static class HttpException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatus;
+        private final String mReason;
+
+        HttpException(int status, String reason) {
+            super(status + " " + reason);
+            mStatus = status;
+            mReason = reason;
+        }
+    }
+
+    /**
+     * A single outstanding fileRead request
+     */
+    private static class PendingRead implements HtspMessage.ResponseListener {
+        private final long mOffset;
+        private final long mSize;
+
+        private byte[] mData;
+        private String mError;
+        private boolean mDone = false;
+
+        PendingRead(long offset, long size) {
+            mOffset = offset;
+            mSize = size;
+        }
+
+        @Override
+        public synchronized void onResponse(@NonNull HtspMessage response) {
+            if (response.containsKey("error")) {
+                mError = response.getString("error");
+            } else {
+                mData = response.getByteArray("data");
+            }
+            mDone = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onResponseFailed(@NonNull HtspException e) {
+            mError = e.getMessage();
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized byte[] await() throws IOException {
+            long deadline = System.currentTimeMillis() + READ_TIMEOUT;
+
+            while (!mDone) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for fileRead response");
+                }
+
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for fileRead response");
+                }
+            }
+
+            if (mError != null) {
+                throw new IOException(mError);
+            }
+
+            return mData;
+        }
+    }
+
+    private final HtspMessage.AsyncDispatcher mDispatcher;
+    private final int mMaxClients;
+    private final String mToken;
+
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private ThreadPoolExecutor mExecutor;
+
+    public HtspFileServer(@NonNull HtspMessage.AsyncDispatcher dispatcher) {
+        this(dispatcher, DEFAULT_MAX_CLIENTS);
+    }
+
+    public HtspFileServer(@NonNull HtspMessage.AsyncDispatcher dispatcher, int maxClients) {
+        mDispatcher = dispatcher;
+        mMaxClients = maxClients;
+        mToken = generateToken();
+    }
+
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            Log.w(TAG, "HtspFileServer already started");
+            return;
+        }
+
+        mServerSocket = new ServerSocket();
+        mServerSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        // Connections beyond mMaxClients wait briefly for a free slot, anything more is refused
+        mExecutor = new ThreadPoolExecutor(
+                mMaxClients, mMaxClients, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(mMaxClients));
+
+        mAcceptThread = new Thread(this, TAG);
+        mAcceptThread.start();
+
+        Log.i(TAG, "Serving HTSP files on port " + getPort());
+    }
+
+    public void stop() {
+        ServerSocket serverSocket;
+        Thread acceptThread;
+        ThreadPoolExecutor executor;
+
+        synchronized (this) {
+            if (mServerSocket == null) {
+                Log.w(TAG, "HtspFileServer not started");
+                return;
+            }
+
+            serverSocket = mServerSocket;
+            acceptThread = mAcceptThread;
+            executor = mExecutor;
+
+            mServerSocket = null;
+            mAcceptThread = null;
+            mExecutor = null;
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+
+        executor.shutdownNow();
+
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            // Ignore.
+        }
+    }
+
+    public synchronized int getPort() {
+        if (mServerSocket == null) {
+            return -1;
+        }
+
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @param fileName The HTSP file name, e.g. dvrfile/1234
+     * @return A loopback URL from which the file can be fetched
+     */
+    public String getUrl(String fileName) {
+        return "http://127.0.0.1:" + getPort() + "/" + mToken + "/" + fileName;
+    }
+
+    // Runnable Methods
+    @Override
+    public void run() {
+        ServerSocket serverSocket;
+        ThreadPoolExecutor executor;
+
+        synchronized (this) {
+            serverSocket = mServerSocket;
+            executor = mExecutor;
+        }
+
+        if (serverSocket == null) {
+            // Stopped before we got going
+            return;
+        }
+
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.e(TAG, "Failed to accept connection", e);
+                }
+                break;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Too many clients, refusing connection");
+                try {
+                    writeError(socket.getOutputStream(), new HttpException(503, "Service Unavailable"));
+                } catch (IOException e2) {
+                    // Ignore
+                }
+                closeQuietly(socket);
+            }
+        }
+
+        Log.i(TAG, "HtspFileServer stopped");
+    }
+
+    // Internal Methods
+    private void handleConnection(Socket socket) {
+        OutputStream out = null;
+
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream(), READ_SIZE);
+
+            handleRequest(in, out);
+            out.flush();
+        } catch (HttpException e) {
+            Log.w(TAG, "Failed to serve request: " + e.getMessage());
+            try {
+                writeError(out, e);
+            } catch (IOException e2) {
+                // Ignore
+            }
+        } catch (SocketException e) {
+            // The player closed the connection, typically because it's seeking.
+            if (HtspConstants.DEBUG)
+                Log.v(TAG, "Client went away", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serve request", e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void handleRequest(InputStream in, OutputStream out) throws IOException, HttpException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3) {
+            throw new HttpException(400, "Bad Request");
+        }
+
+        String method = parts[0];
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            throw new HttpException(405, "Method Not Allowed");
+        }
+
+        String rangeHeader = null;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int separator = line.indexOf(':');
+            if (separator != -1 && line.substring(0, separator).trim().equalsIgnoreCase("Range")) {
+                rangeHeader = line.substring(separator + 1).trim();
+            }
+        }
+
+        String fileName = parseFileName(parts[1]);
+
+        int fileId;
+        long fileSize;
+        HtspMessage fileOpenResponse = sendFileOpen(fileName);
+        fileId = fileOpenResponse.getInteger("id");
+        fileSize = fileOpenResponse.getLong("size", -1);
+
+        try {
+            long start = 0;
+            long end = fileSize - 1;
+            boolean partial = false;
+
+            if (rangeHeader != null && fileSize != -1) {
+                long[] range = parseRange(rangeHeader, fileSize);
+                if (range == null) {
+                    writeHeaders(out, "416 Range Not Satisfiable", 0,
+                            "Content-Range: bytes */" + fileSize);
+                    return;
+                }
+                start = range[0];
+                end = range[1];
+                partial = true;
+            }
+
+            if (fileSize == -1) {
+                writeHeaders(out, "200 OK", -1, null);
+            } else if (partial) {
+                writeHeaders(out, "206 Partial Content", end - start + 1,
+                        "Content-Range: bytes " + start + "-" + end + "/" + fileSize);
+            } else {
+                writeHeaders(out, "200 OK", fileSize, null);
+            }
+
+            if (method.equals("GET")) {
+                streamRange(out, fileId, start, fileSize == -1 ? -1 : end + 1);
+            }
+        } finally {
+            sendFileClose(fileId);
+        }
+    }
+
+    /**
+     * Copies [start, end) of the file to the client, keeping up to READ_AHEAD fileRead
+     * requests outstanding so the HTSP connection never sits idle waiting on the client.
+     *
+     * @param end The offset to stop at, or -1 to read until the end of a file of unknown size
+     */
+    private void streamRange(OutputStream out, int fileId, long start, long end) throws IOException {
+        Deque<PendingRead> pendingReads = new ArrayDeque<>();
+        long nextOffset = start;
+
+        while (true) {
+            while (pendingReads.size() < READ_AHEAD && (end == -1 || nextOffset < end)) {
+                long size = READ_SIZE;
+                if (end != -1) {
+                    size = Math.min(size, end - nextOffset);
+                }
+
+                PendingRead pendingRead = new PendingRead(nextOffset, size);
+                sendFileRead(fileId, pendingRead);
+                pendingReads.addLast(pendingRead);
+                nextOffset += size;
+            }
+
+            PendingRead pendingRead = pendingReads.pollFirst();
+            if (pendingRead == null) {
+                break;
+            }
+
+            byte[] data = pendingRead.await();
+            if (data.length == 0) {
+                // We've reached the end of the file.
+                break;
+            }
+
+            out.write(data);
+
+            if (data.length < pendingRead.mSize) {
+                // Reads may come back short, e.g. when shrunk by the HtspFileReadScheduler, so
+                // fetch the remainder before anything already in flight.
+                PendingRead remainder = new PendingRead(
+                        pendingRead.mOffset + data.length, pendingRead.mSize - data.length);
+                sendFileRead(fileId, remainder);
+                pendingReads.addFirst(remainder);
+            }
+        }
+    }
+
+    private HtspMessage sendFileOpen(String fileName) throws HttpException {
+        HtspMessage fileOpenRequest = new HtspMessage();
+
+        fileOpenRequest.put("method", "fileOpen");
+        fileOpenRequest.put("file", fileName);
+
+        HtspMessage fileOpenResponse;
+        try {
+            fileOpenResponse = mDispatcher.sendMessage(fileOpenRequest, 5000);
+        } catch (HtspNotConnectedException e) {
+            throw new HttpException(503, "Service Unavailable");
+        }
+
+        if (fileOpenResponse == null) {
+            throw new HttpException(504, "Gateway Timeout");
+        } else if (fileOpenResponse.containsKey("error")) {
+            Log.w(TAG, "Received error when opening file: " + fileOpenResponse.getString("error"));
+            throw new HttpException(404, "Not Found");
+        }
+
+        return fileOpenResponse;
+    }
+
+    private void sendFileRead(int fileId, PendingRead pendingRead) throws IOException {
+        HtspMessage fileReadRequest = new HtspMessage();
+
+        fileReadRequest.put("method", "fileRead");
+        fileReadRequest.put("id", fileId);
+        fileReadRequest.put("size", pendingRead.mSize);
+        fileReadRequest.put("offset", pendingRead.mOffset);
+
+        try {
+            mDispatcher.sendMessage(fileReadRequest, pendingRead);
+        } catch (HtspNotConnectedException e) {
+            throw new IOException("Failed to send fileRead request", e);
+        }
+    }
+
+    private void sendFileClose(int fileId) {
+        HtspMessage fileCloseRequest = new HtspMessage();
+
+        fileCloseRequest.put("method", "fileClose");
+        fileCloseRequest.put("id", fileId);
+
+        try {
+            mDispatcher.sendMessage(fileCloseRequest);
+        } catch (HtspNotConnectedException e) {
+            // Ignore: If we're not connected, TVHeadend has already closed the file
+        }
+    }
+
+    private String parseFileName(String path) throws HttpException {
+        String prefix = "/" + mToken + "/";
+        if (!path.startsWith(prefix)) {
+            throw new HttpException(403, "Forbidden");
+        }
+
+        String fileName = path.substring(prefix.length());
+
+        for (String allowedPrefix : ALLOWED_PREFIXES) {
+            if (fileName.startsWith(allowedPrefix) && !fileName.contains("..")) {
+                return fileName;
+            }
+        }
+
+        throw new HttpException(404, "Not Found");
+    }
+
+    /**
+     * Parses a single "bytes=" range, multiple ranges aren't supported.
+     *
+     * @return {start, end} inclusive, or null if the range can't be satisfied
+     */
+    private static long[] parseRange(String header, long fileSize) throws HttpException {
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            throw new HttpException(400, "Bad Request");
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int separator = spec.indexOf('-');
+        if (separator == -1) {
+            throw new HttpException(400, "Bad Request");
+        }
+
+        long start;
+        long end;
+
+        try {
+            if (separator == 0) {
+                // Suffix range, i.e. the last N bytes
+                long length = Long.parseLong(spec.substring(1));
+                start = Math.max(0, fileSize - length);
+                end = fileSize - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, separator));
+                String endSpec = spec.substring(separator + 1);
+                end = endSpec.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(endSpec), fileSize - 1);
+            }
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Bad Request");
+        }
+
+        if (start >= fileSize || start > end) {
+            return null;
+        }
+
+        return new long[]{start, end};
+    }
+
+    private static void writeHeaders(OutputStream out, String status, long contentLength, String extraHeader) throws IOException {
+        StringBuilder builder = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Content-Type: application/octet-stream\r\n")
+                .append("Connection: close\r\n");
+
+        if (contentLength != -1) {
+            builder.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+
+        if (extraHeader != null) {
+            builder.append(extraHeader).append("\r\n");
+        }
+
+        builder.append("\r\n");
+
+        out.write(builder.toString().getBytes("US-ASCII"));
+    }
+
+    private static void writeError(OutputStream out, HttpException e) throws IOException {
+        if (out == null) {
+            return;
+        }
+
+        out.write(String.format(Locale.US,
+                "HTTP/1.1 %d %s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+                e.mStatus, e.mReason).getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException, HttpException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                builder.append((char) c);
+            }
+
+            if (builder.length() > MAX_HEADER_LENGTH) {
+                throw new HttpException(431, "Request Header Fields Too Large");
+            }
+        }
+
+        if (c == -1 && builder.length() == 0) {
+            return null;
+        }
+
+        return builder.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static String generateToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+}
@@ -41,6 +41,9 @@ import java.util.Map;
 public class HtspMessage extends HashMap<String, Object> {
     private static final String TAG = HtspMessage.class.getSimpleName();
 
+    // Not part of the message itself, so never serialized
+    private transient Runnable mSentCallback;
+
     // Message Handler, will receive incoming messages
 
     /**
@@ -62,6 +65,27 @@ public class HtspMessage extends HashMap<String, Object> {
         void onMessage(@NonNull HtspMessage message);
     }
 
+    /**
+     * A Response Listener will receive the response to a single asynchronously sent message
+     *
+     * Callbacks are made on the connection thread, and so must not block.
+     */
+    public interface ResponseListener {
+        /**
+         * Called with the response to the message
+         *
+         * @param response The response message
+         */
+        void onResponse(@NonNull HtspMessage response);
+
+        /**
+         * Called if the connection is lost before a response was received
+         *
+         * @param e The reason no response will be received
+         */
+        void onResponseFailed(@NonNull HtspException e);
+    }
+
     // Message Dispatcher, can be used to register interest in incoming messages
 
     /**
@@ -101,6 +125,22 @@ public class HtspMessage extends HashMap<String, Object> {
         HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException;
     }
 
+    /**
+     * A Dispatcher which can also send messages without blocking for the response. Kept
+     * separate from Dispatcher so existing implementations of it aren't broken.
+     */
+    public interface AsyncDispatcher extends Dispatcher {
+        /**
+         * Queues a message for sending, without blocking for the response. The response is
+         * passed to the given ResponseListener rather than the Message Listeners.
+         *
+         * @param message The message to send
+         * @param listener The listener to receive the response
+         * @return The messages sequence number
+         */
+        long sendMessage(@NonNull HtspMessage message, @NonNull ResponseListener listener) throws HtspNotConnectedException;
+    }
+
     public interface DispatcherInternal extends Dispatcher {
         /**
          * Called once for each new message available
@@ -121,9 +161,10 @@ public class HtspMessage extends HashMap<String, Object> {
          * priority messages may be returned early (e.g. subscriptionStart/subscriptionStop
          * messages).
          *
-         * @return The next message to send
+         * @return The next message to send, or null if nothing may be sent right now, e.g. a
+         * fileRead held back by the HtspFileReadScheduler
          */
-        @NonNull HtspMessage getMessage();
+        HtspMessage getMessage();
     }
 
     /**
@@ -154,6 +195,20 @@ public class HtspMessage extends HashMap<String, Object> {
     public HtspMessage() {
     }
 
+    /**
+     * Sets a callback to be run on the connection thread once the message has been written to
+     * the socket, e.g. to time how long it sat in the send queue
+     */
+    public void setSentCallback(Runnable sentCallback) {
+        mSentCallback = sentCallback;
+    }
+
+    void onSent() {
+        if (mSentCallback != null) {
+            mSentCallback.run();
+        }
+    }
+
     @Override
     public Object put(String key, Object value) {
         if (value == null) {
@@ -20,8 +20,10 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.LongSparseArray;
 
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -34,12 +36,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Subinterfaces of HtspMessage.Listener will be used to provide for some of this more advanced
  * dispatching functionality later on, as it becomes required.
  */
-public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, HtspMessage.Listener, HtspConnection.Listener {
+public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, HtspMessage.AsyncDispatcher, HtspMessage.Listener, HtspConnection.Listener {
     private static final String TAG = HtspMessageDispatcher.class.getSimpleName();
     private static final AtomicInteger sSequence = new AtomicInteger();
 
     private final Set<HtspMessage.Listener> mListeners = new CopyOnWriteArraySet<>();
     private final Queue<HtspMessage> mQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<HtspMessage> mFileReadQueue = new ConcurrentLinkedQueue<>();
+    private final HtspFileReadScheduler mFileReadScheduler = new HtspFileReadScheduler();
 
     private static final LongSparseArray<String> sMessageResponseMethodsBySequence = new LongSparseArray<>();
 
@@ -47,10 +51,15 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
 
     private final LongSparseArray<Object> mSequenceLocks = new LongSparseArray<>();
     private final LongSparseArray<HtspMessage> mSequenceResponses = new LongSparseArray<>();
+    private final Map<Long, HtspMessage.ResponseListener> mResponseListeners = new ConcurrentHashMap<>();
 
     public HtspMessageDispatcher() {
     }
 
+    public HtspFileReadScheduler getFileReadScheduler() {
+        return mFileReadScheduler;
+    }
+
     // HtspMessage.DispatcherInternal Methods
     @Override
     public void addMessageListener(HtspMessage.Listener listener) {
@@ -88,7 +97,13 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
             sMessageResponseMethodsBySequence.append(message.getLong("seq"), message.getString("method"));
         }
 
-        mQueue.add(message);
+        // fileRead requests are queued separately, so the scheduler can hold them back while
+        // live subscriptions are active.
+        if (HtspFileReadScheduler.isFileRead(message)) {
+            mFileReadQueue.add(message);
+        } else {
+            mQueue.add(message);
+        }
 
         if (mConnection != null) {
             mConnection.setWritePending();
@@ -136,8 +151,40 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
         }
     }
 
+    @Override
+    public long sendMessage(@NonNull HtspMessage message, @NonNull HtspMessage.ResponseListener listener) throws HtspNotConnectedException {
+        if (!mConnection.isConnected()) {
+            throw new HtspNotConnectedException("Failed to send message, HTSP Connection not connected");
+        }
+
+        long seq;
+
+        // If necessary, inject a sequence number
+        if (!message.containsKey("seq")) {
+            seq = (long) sSequence.getAndIncrement();
+            message.put("seq", seq);
+        } else {
+            seq = message.getLong("seq");
+        }
+
+        // Register the listener before queueing, the response may otherwise beat us to it
+        mResponseListeners.put(seq, listener);
+
+        try {
+            return sendMessage(message);
+        } catch (HtspNotConnectedException e) {
+            mResponseListeners.remove(seq);
+            throw e;
+        }
+    }
+
     @Override
     public void onMessage(@NonNull final HtspMessage message) {
+        if (mFileReadScheduler.onMessageReceived(message) && !mFileReadQueue.isEmpty() && mConnection != null) {
+            // A held back fileRead may now be sent
+            mConnection.setWritePending();
+        }
+
         if (message.containsKey("seq")) {
             long seq = message.getLong("seq");
 
@@ -166,6 +213,13 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
                 mSequenceLocks.remove(seq);
                 return;
             }
+
+            // Likewise, if we have a ResponseListener for this seq, it's the only one interested.
+            HtspMessage.ResponseListener responseListener = mResponseListeners.remove(seq);
+            if (responseListener != null) {
+                responseListener.onResponse(message);
+                return;
+            }
         }
 
         for (final HtspMessage.Listener listener : mListeners) {
@@ -186,14 +240,32 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
 
     @Override
     public boolean hasPendingMessages() {
-        return mQueue.size() > 0;
+        if (mQueue.size() > 0) {
+            return true;
+        }
+
+        HtspMessage fileReadRequest = mFileReadQueue.peek();
+        return fileReadRequest != null && mFileReadScheduler.canSend(fileReadRequest);
     }
 
-    @NonNull
     @Override
     public HtspMessage getMessage() {
         Log.v(TAG, "Dequeueing message for sending");
-        return mQueue.remove();
+
+        HtspMessage message = mQueue.poll();
+        if (message == null) {
+            // Only this thread takes from the queue, so the peeked request is the one removed
+            HtspMessage fileReadRequest = mFileReadQueue.peek();
+            if (fileReadRequest == null || !mFileReadScheduler.canSend(fileReadRequest)) {
+                return null;
+            }
+
+            message = mFileReadQueue.remove();
+        }
+
+        mFileReadScheduler.onMessageSent(message);
+
+        return message;
     }
 
     // HtspConnection.Listener Methods
@@ -213,6 +285,24 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
         if (state == HtspConnection.State.CLOSED) {
             Log.d(TAG, "Clearing out message queue as HTSP connection is closing");
             mQueue.clear();
+            mFileReadQueue.clear();
+        }
+
+        // No responses will arrive for anything still outstanding
+        if (state == HtspConnection.State.CLOSED || state == HtspConnection.State.FAILED) {
+            mFileReadScheduler.reset();
+            failResponseListeners();
+        }
+    }
+
+    private void failResponseListeners() {
+        for (Long seq : mResponseListeners.keySet()) {
+            HtspMessage.ResponseListener listener = mResponseListeners.remove(seq);
+
+            if (listener != null) {
+                listener.onResponseFailed(new HtspNotConnectedException(
+                        "HTSP Connection closed before a response was received"));
+            }
         }
     }
 }
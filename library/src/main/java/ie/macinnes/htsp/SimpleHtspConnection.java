@@ -21,7 +21,7 @@ import android.util.Log;
 
 import ie.macinnes.htsp.tasks.Authenticator;
 
-public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnection.Listener {
+public class SimpleHtspConnection implements HtspMessage.AsyncDispatcher, HtspConnection.Listener {
     private static final String TAG = SimpleHtspConnection.class.getSimpleName();
 
     private final HtspMessageSerializer mMessageSerializer;
@@ -155,6 +155,11 @@ public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnect
         return mMessageDispatcher.sendMessage(message, timeout);
     }
 
+    @Override
+    public long sendMessage(@NonNull HtspMessage message, @NonNull HtspMessage.ResponseListener listener) throws HtspNotConnectedException {
+        return mMessageDispatcher.sendMessage(message, listener);
+    }
+
     @Override
     public Handler getHandler() {
         return null;
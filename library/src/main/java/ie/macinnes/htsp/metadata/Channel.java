@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * A channel, as described by channelAdd / channelUpdate
+ */
+public class Channel {
+    private static final String[] EMPTY_STRINGS = new String[0];
+
+    private final long mId;
+    private final int mNumber;
+    private final int mNumberMinor;
+    private final String mName;
+    private final String mIcon;
+    private final long mEventId;
+    private final long mNextEventId;
+    private final long[] mTagIds;
+    private final String[] mServiceTypes;
+    private final boolean mEncrypted;
+
+    public Channel(long id, int number, int numberMinor, String name, String icon, long eventId,
+                   long nextEventId, @NonNull long[] tagIds, @NonNull String[] serviceTypes,
+                   boolean encrypted) {
+        mId = id;
+        mNumber = number;
+        mNumberMinor = numberMinor;
+        mName = name;
+        mIcon = icon;
+        mEventId = eventId;
+        mNextEventId = nextEventId;
+        mTagIds = tagIds;
+        mServiceTypes = serviceTypes;
+        mEncrypted = encrypted;
+    }
+
+    /**
+     * Builds a Channel from a channelAdd or channelUpdate message. Updates may only carry the
+     * fields that changed, anything missing is taken from the previous version.
+     */
+    @NonNull
+    static Channel fromMessage(@NonNull HtspMessage message, Channel previous) {
+        String[] serviceTypes = previous != null ? previous.mServiceTypes : EMPTY_STRINGS;
+        boolean encrypted = previous != null && previous.mEncrypted;
+
+        if (message.containsKey("services")) {
+            final HtspMessage[] services = message.getHtspMessageArray("services");
+
+            serviceTypes = new String[services.length];
+            encrypted = false;
+
+            for (int i = 0; i < services.length; i++) {
+                serviceTypes[i] = services[i].getString("type", null);
+                encrypted |= services[i].containsKey("caid");
+            }
+        }
+
+        return new Channel(
+                message.getLong("channelId"),
+                message.getInteger("channelNumber", previous != null ? previous.mNumber : 0),
+                message.getInteger("channelNumberMinor", previous != null ? previous.mNumberMinor : 0),
+                message.getString("channelName", previous != null ? previous.mName : null),
+                message.getString("channelIcon", previous != null ? previous.mIcon : null),
+                message.getLong("eventId", previous != null ? previous.mEventId : 0),
+                message.getLong("nextEventId", previous != null ? previous.mNextEventId : 0),
+                MessageFields.getLongArray(message, "tags", previous != null ? previous.mTagIds : MessageFields.EMPTY_LONGS),
+                serviceTypes, encrypted);
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public int getNumber() {
+        return mNumber;
+    }
+
+    public int getNumberMinor() {
+        return mNumberMinor;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getIcon() {
+        return mIcon;
+    }
+
+    /**
+     * @return The id of the event currently airing, or 0
+     */
+    public long getEventId() {
+        return mEventId;
+    }
+
+    public long getNextEventId() {
+        return mNextEventId;
+    }
+
+    /**
+     * @return The ids of the tags this channel belongs to. Don't modify it.
+     */
+    @NonNull
+    public long[] getTagIds() {
+        return mTagIds;
+    }
+
+    /**
+     * @return The type of each of the channel's services, e.g. "SDTV", "HDTV" or "Radio". Don't
+     * modify it.
+     */
+    @NonNull
+    public String[] getServiceTypes() {
+        return mServiceTypes;
+    }
+
+    /**
+     * @return true if any of the channel's services are scrambled
+     */
+    public boolean isEncrypted() {
+        return mEncrypted;
+    }
+}
@@ -0,0 +1,676 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+
+/**
+ * An immutable index of channels by tag and attribute, for filtering channel lists
+ *
+ * Each channel is given a small, dense, slot number, and each tag and attribute is a bitset over
+ * the slots. With a few hundred channels a bitset is only a handful of longs, so combining
+ * filters with a Filter is a few word-wise ANDs and ORs, and doesn't allocate.
+ *
+ * A channel has a tag if either the channel lists the tag, or the tag lists the channel.
+ */
+public class ChannelFilterIndex {
+    /**
+     * The channel has at least one DVR entry, in any state
+     */
+    public static final int ATTRIBUTE_HAS_DVR_ENTRY = 0;
+    /**
+     * The channel has a scheduled DVR entry
+     */
+    public static final int ATTRIBUTE_SCHEDULED = 1;
+    /**
+     * The channel is being recorded
+     */
+    public static final int ATTRIBUTE_RECORDING = 2;
+    /**
+     * One of the channel's services is SD television
+     */
+    public static final int ATTRIBUTE_SD = 3;
+    /**
+     * One of the channel's services is HD television
+     */
+    public static final int ATTRIBUTE_HD = 4;
+    /**
+     * One of the channel's services is UHD television
+     */
+    public static final int ATTRIBUTE_UHD = 5;
+    /**
+     * One of the channel's services is radio
+     */
+    public static final int ATTRIBUTE_RADIO = 6;
+    /**
+     * One of the channel's services is scrambled
+     */
+    public static final int ATTRIBUTE_ENCRYPTED = 7;
+
+    private static final int ATTRIBUTE_COUNT = 8;
+
+    private static final int MIN_WORDS = 4;
+
+    static final ChannelFilterIndex EMPTY = new ChannelFilterIndex(
+            0, MessageFields.EMPTY_LONGS, new int[0], MessageFields.EMPTY_LONGS,
+            MessageFields.EMPTY_LONGS, emptyBitsets(ATTRIBUTE_COUNT), MessageFields.EMPTY_LONGS,
+            emptyBitsets(0));
+
+    private final int mWords;
+    // Sorted, with the slot of each channel alongside
+    private final long[] mChannelIds;
+    private final int[] mChannelSlots;
+    // 0 for unused slots
+    private final long[] mSlotChannelIds;
+    private final long[] mPresent;
+    private final long[][] mAttributes;
+    // Sorted, with the bitset of each tag alongside
+    private final long[] mTagIds;
+    private final long[][] mTags;
+
+    private ChannelFilterIndex(int words, long[] channelIds, int[] channelSlots,
+                               long[] slotChannelIds, long[] present, long[][] attributes,
+                               long[] tagIds, long[][] tags) {
+        mWords = words;
+        mChannelIds = channelIds;
+        mChannelSlots = channelSlots;
+        mSlotChannelIds = slotChannelIds;
+        mPresent = present;
+        mAttributes = attributes;
+        mTagIds = tagIds;
+        mTags = tags;
+    }
+
+    public int getChannelCount() {
+        return mChannelIds.length;
+    }
+
+    /**
+     * @return The channel's slot, or -1 if it isn't in the index
+     */
+    public int getSlot(long channelId) {
+        final int index = Arrays.binarySearch(mChannelIds, channelId);
+        return index >= 0 ? mChannelSlots[index] : -1;
+    }
+
+    /**
+     * @return The id of the channel in slot, or 0 if the slot is unused
+     */
+    public long getChannelId(int slot) {
+        return slot >= 0 && slot < mSlotChannelIds.length ? mSlotChannelIds[slot] : 0;
+    }
+
+    /**
+     * @param attribute One of the ATTRIBUTE_ constants
+     */
+    public boolean hasAttribute(long channelId, int attribute) {
+        return isSet(mAttributes[attribute], getSlot(channelId));
+    }
+
+    public boolean hasTag(long channelId, long tagId) {
+        return isSet(getTagBits(tagId), getSlot(channelId));
+    }
+
+    // Internal Methods
+
+    private long[] getTagBits(long tagId) {
+        final int index = Arrays.binarySearch(mTagIds, tagId);
+        return index >= 0 ? mTags[index] : null;
+    }
+
+    private static boolean isSet(long[] bits, int slot) {
+        return bits != null && slot >= 0 && (bits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private static long[][] emptyBitsets(int count) {
+        final long[][] bitsets = new long[count][];
+        Arrays.fill(bitsets, MessageFields.EMPTY_LONGS);
+        return bitsets;
+    }
+
+    /**
+     * A reusable set of channels, built up by combining the tag and attribute bitsets of one
+     * ChannelFilterIndex. Nothing allocates once the filter has been sized for the index.
+     *
+     * For example, the HD channels tagged with tagId which aren't scrambled:
+     *
+     *     filter.setIndex(index).all().andTag(tagId).andAttribute(ATTRIBUTE_HD)
+     *             .andNotAttribute(ATTRIBUTE_ENCRYPTED);
+     *
+     *     for (int slot = filter.nextSlot(0); slot >= 0; slot = filter.nextSlot(slot + 1)) {
+     *         long channelId = index.getChannelId(slot);
+     *     }
+     *
+     * Filters aren't thread safe.
+     */
+    public static class Filter {
+        private ChannelFilterIndex mIndex = EMPTY;
+        private long[] mBits = MessageFields.EMPTY_LONGS;
+
+        /**
+         * Switches the filter to another index, and empties it
+         */
+        @NonNull
+        public Filter setIndex(@NonNull ChannelFilterIndex index) {
+            mIndex = index;
+
+            if (mBits.length < index.mWords) {
+                mBits = new long[index.mWords];
+            }
+
+            return none();
+        }
+
+        @NonNull
+        public ChannelFilterIndex getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * Sets the filter to every channel
+         */
+        @NonNull
+        public Filter all() {
+            System.arraycopy(mIndex.mPresent, 0, mBits, 0, mIndex.mWords);
+            return this;
+        }
+
+        /**
+         * Sets the filter to no channels
+         */
+        @NonNull
+        public Filter none() {
+            Arrays.fill(mBits, 0);
+            return this;
+        }
+
+        @NonNull
+        public Filter andTag(long tagId) {
+            return and(mIndex.getTagBits(tagId));
+        }
+
+        @NonNull
+        public Filter orTag(long tagId) {
+            return or(mIndex.getTagBits(tagId));
+        }
+
+        @NonNull
+        public Filter andNotTag(long tagId) {
+            return andNot(mIndex.getTagBits(tagId));
+        }
+
+        /**
+         * @param attribute One of the ATTRIBUTE_ constants
+         */
+        @NonNull
+        public Filter andAttribute(int attribute) {
+            return and(mIndex.mAttributes[attribute]);
+        }
+
+        /**
+         * @param attribute One of the ATTRIBUTE_ constants
+         */
+        @NonNull
+        public Filter orAttribute(int attribute) {
+            return or(mIndex.mAttributes[attribute]);
+        }
+
+        /**
+         * @param attribute One of the ATTRIBUTE_ constants
+         */
+        @NonNull
+        public Filter andNotAttribute(int attribute) {
+            return andNot(mIndex.mAttributes[attribute]);
+        }
+
+        /**
+         * Keeps only the channels also in other, which must be using the same index
+         */
+        @NonNull
+        public Filter and(@NonNull Filter other) {
+            checkIndex(other);
+            return and(other.mBits);
+        }
+
+        /**
+         * Adds the channels in other, which must be using the same index
+         */
+        @NonNull
+        public Filter or(@NonNull Filter other) {
+            checkIndex(other);
+            return or(other.mBits);
+        }
+
+        /**
+         * Removes the channels in other, which must be using the same index
+         */
+        @NonNull
+        public Filter andNot(@NonNull Filter other) {
+            checkIndex(other);
+            return andNot(other.mBits);
+        }
+
+        public boolean isEmpty() {
+            for (int i = 0; i < mIndex.mWords; i++) {
+                if (mBits[i] != 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @return The number of channels in the filter
+         */
+        public int count() {
+            int count = 0;
+
+            for (int i = 0; i < mIndex.mWords; i++) {
+                count += Long.bitCount(mBits[i]);
+            }
+
+            return count;
+        }
+
+        public boolean contains(long channelId) {
+            return isSet(mBits, mIndex.getSlot(channelId));
+        }
+
+        /**
+         * @return The first slot at or after from which is in the filter, or -1 if there isn't
+         * one. Use ChannelFilterIndex.getChannelId() to get the channel in the slot.
+         */
+        public int nextSlot(int from) {
+            int word = from >>> 6;
+
+            if (from < 0 || word >= mIndex.mWords) {
+                return -1;
+            }
+
+            long bits = mBits[word] & (-1L << from);
+
+            while (bits == 0) {
+                word += 1;
+
+                if (word >= mIndex.mWords) {
+                    return -1;
+                }
+
+                bits = mBits[word];
+            }
+
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        // Internal Methods
+
+        private Filter and(long[] bits) {
+            if (bits == null) {
+                return none();
+            }
+
+            for (int i = 0; i < mIndex.mWords; i++) {
+                mBits[i] &= bits[i];
+            }
+
+            return this;
+        }
+
+        private Filter or(long[] bits) {
+            if (bits == null) {
+                return this;
+            }
+
+            for (int i = 0; i < mIndex.mWords; i++) {
+                mBits[i] |= bits[i];
+            }
+
+            return this;
+        }
+
+        private Filter andNot(long[] bits) {
+            if (bits == null) {
+                return this;
+            }
+
+            for (int i = 0; i < mIndex.mWords; i++) {
+                mBits[i] &= ~bits[i];
+            }
+
+            return this;
+        }
+
+        private void checkIndex(Filter other) {
+            if (other.mIndex != mIndex) {
+                throw new IllegalArgumentException("Filters are using different indexes");
+            }
+        }
+    }
+
+    /**
+     * Keeps a ChannelFilterIndex up to date as channels, tags and DVR entries change. The
+     * builder's bitsets are mutable, build() copies the ones which changed and shares the rest
+     * with the previous index.
+     */
+    static class Builder {
+        private ChannelFilterIndex mPrevious = EMPTY;
+
+        private final LongSparseArray<Integer> mSlots = new LongSparseArray<>();
+        private int mWords = 0;
+        private int mSlotCount = 0;
+        private long[] mSlotChannelIds = MessageFields.EMPTY_LONGS;
+        private long[][] mSlotTagIds = new long[0][];
+        private int[] mFreeSlots = new int[0];
+        private int mFreeSlotCount = 0;
+
+        private long[] mPresent = MessageFields.EMPTY_LONGS;
+        private final long[][] mAttributes = emptyBitsets(ATTRIBUTE_COUNT);
+        // The members each tag lists
+        private final LongSparseArray<long[]> mTagMembers = new LongSparseArray<>();
+        // The channels which list each tag
+        private final LongSparseArray<long[]> mTagListedBy = new LongSparseArray<>();
+        // Per channel id counts of all, scheduled and recording DVR entries. Kept by id as
+        // entries can arrive before their channel.
+        private final LongSparseArray<int[]> mDvrCounts = new LongSparseArray<>();
+
+        private boolean mChannelsChanged = false;
+        private final boolean[] mAttributesChanged = new boolean[ATTRIBUTE_COUNT];
+        private boolean mTagsChanged = false;
+
+        void putChannel(@NonNull Channel channel) {
+            Integer slot = mSlots.get(channel.getId());
+
+            if (slot == null) {
+                slot = allocateSlot(channel.getId());
+                updateDvrAttributes(channel.getId());
+            } else {
+                setTagsListed(slot, mSlotTagIds[slot], false);
+            }
+
+            mSlotTagIds[slot] = channel.getTagIds();
+            setTagsListed(slot, channel.getTagIds(), true);
+
+            boolean sd = false;
+            boolean hd = false;
+            boolean uhd = false;
+            boolean radio = false;
+
+            for (String serviceType : channel.getServiceTypes()) {
+                sd |= "SDTV".equals(serviceType);
+                hd |= "HDTV".equals(serviceType);
+                uhd |= "UHDTV".equals(serviceType);
+                radio |= "Radio".equals(serviceType);
+            }
+
+            setAttribute(ATTRIBUTE_SD, slot, sd);
+            setAttribute(ATTRIBUTE_HD, slot, hd);
+            setAttribute(ATTRIBUTE_UHD, slot, uhd);
+            setAttribute(ATTRIBUTE_RADIO, slot, radio);
+            setAttribute(ATTRIBUTE_ENCRYPTED, slot, channel.isEncrypted());
+        }
+
+        void removeChannel(long channelId) {
+            final Integer slot = mSlots.get(channelId);
+
+            if (slot == null) {
+                return;
+            }
+
+            setTagsListed(slot, mSlotTagIds[slot], false);
+
+            for (int attribute = 0; attribute < ATTRIBUTE_COUNT; attribute++) {
+                setAttribute(attribute, slot, false);
+            }
+
+            clearBit(mPresent, slot);
+            mSlotChannelIds[slot] = 0;
+            mSlotTagIds[slot] = null;
+            mSlots.remove(channelId);
+
+            if (mFreeSlotCount == mFreeSlots.length) {
+                mFreeSlots = Arrays.copyOf(mFreeSlots, Math.max(16, mFreeSlotCount * 2));
+            }
+            mFreeSlots[mFreeSlotCount++] = slot;
+
+            mChannelsChanged = true;
+            // The channel may be listed by tags
+            mTagsChanged = true;
+        }
+
+        void putTag(@NonNull ChannelTag channelTag) {
+            mTagMembers.put(channelTag.getId(), channelTag.getChannelIds());
+            mTagsChanged = true;
+        }
+
+        void removeTag(long tagId) {
+            mTagMembers.remove(tagId);
+            mTagsChanged = true;
+        }
+
+        /**
+         * @param previous The previous version of the DVR entry, if any
+         */
+        void putDvrEntry(@NonNull DvrEntry dvrEntry, DvrEntry previous) {
+            if (previous != null) {
+                countDvrEntry(previous, -1);
+            }
+
+            countDvrEntry(dvrEntry, 1);
+        }
+
+        void removeDvrEntry(@NonNull DvrEntry dvrEntry) {
+            countDvrEntry(dvrEntry, -1);
+        }
+
+        @NonNull
+        ChannelFilterIndex build() {
+            boolean attributesChanged = false;
+            for (boolean changed : mAttributesChanged) {
+                attributesChanged |= changed;
+            }
+
+            if (!mChannelsChanged && !mTagsChanged && !attributesChanged) {
+                return mPrevious;
+            }
+
+            final ChannelFilterIndex previous = mPrevious;
+
+            long[] channelIds = previous.mChannelIds;
+            int[] channelSlots = previous.mChannelSlots;
+            long[] slotChannelIds = previous.mSlotChannelIds;
+            long[] present = previous.mPresent;
+
+            if (mChannelsChanged) {
+                channelIds = new long[mSlots.size()];
+                channelSlots = new int[mSlots.size()];
+
+                for (int i = 0; i < mSlots.size(); i++) {
+                    channelIds[i] = mSlots.keyAt(i);
+                    channelSlots[i] = mSlots.valueAt(i);
+                }
+
+                slotChannelIds = Arrays.copyOf(mSlotChannelIds, mSlotCount);
+                present = mPresent.clone();
+            }
+
+            final long[][] attributes = new long[ATTRIBUTE_COUNT][];
+            for (int attribute = 0; attribute < ATTRIBUTE_COUNT; attribute++) {
+                attributes[attribute] = mAttributesChanged[attribute]
+                        ? mAttributes[attribute].clone() : previous.mAttributes[attribute];
+            }
+
+            long[] tagIds = previous.mTagIds;
+            long[][] tags = previous.mTags;
+
+            if (mTagsChanged) {
+                // There are only ever a few dozen tags, recompute them all
+                tagIds = new long[mTagMembers.size()];
+                tags = new long[mTagMembers.size()][];
+
+                for (int i = 0; i < mTagMembers.size(); i++) {
+                    final long[] listedBy = mTagListedBy.get(mTagMembers.keyAt(i));
+                    final long[] bits = listedBy != null ? listedBy.clone() : new long[mWords];
+
+                    for (long channelId : mTagMembers.valueAt(i)) {
+                        final Integer slot = mSlots.get(channelId);
+                        if (slot != null) {
+                            bits[slot >>> 6] |= 1L << slot;
+                        }
+                    }
+
+                    tagIds[i] = mTagMembers.keyAt(i);
+                    tags[i] = bits;
+                }
+            }
+
+            mPrevious = new ChannelFilterIndex(mWords, channelIds, channelSlots, slotChannelIds,
+                    present, attributes, tagIds, tags);
+
+            mChannelsChanged = false;
+            Arrays.fill(mAttributesChanged, false);
+            mTagsChanged = false;
+
+            return mPrevious;
+        }
+
+        // Internal Methods
+
+        private int allocateSlot(long channelId) {
+            final int slot;
+
+            if (mFreeSlotCount > 0) {
+                slot = mFreeSlots[--mFreeSlotCount];
+            } else {
+                slot = mSlotCount++;
+
+                if (slot >= mWords * 64) {
+                    grow(Math.max(MIN_WORDS, mWords * 2));
+                }
+            }
+
+            mSlots.put(channelId, slot);
+            mSlotChannelIds[slot] = channelId;
+            setBit(mPresent, slot);
+
+            mChannelsChanged = true;
+            // Tags may already list the channel
+            mTagsChanged = true;
+
+            return slot;
+        }
+
+        private void grow(int words) {
+            mWords = words;
+            mSlotChannelIds = Arrays.copyOf(mSlotChannelIds, words * 64);
+            mSlotTagIds = Arrays.copyOf(mSlotTagIds, words * 64);
+            mPresent = Arrays.copyOf(mPresent, words);
+
+            for (int attribute = 0; attribute < ATTRIBUTE_COUNT; attribute++) {
+                mAttributes[attribute] = Arrays.copyOf(mAttributes[attribute], words);
+                mAttributesChanged[attribute] = true;
+            }
+
+            for (int i = 0; i < mTagListedBy.size(); i++) {
+                mTagListedBy.put(mTagListedBy.keyAt(i), Arrays.copyOf(mTagListedBy.valueAt(i), words));
+            }
+
+            mChannelsChanged = true;
+            mTagsChanged = true;
+        }
+
+        private void setTagsListed(int slot, long[] tagIds, boolean listed) {
+            for (long tagId : tagIds) {
+                long[] bits = mTagListedBy.get(tagId);
+
+                if (bits == null) {
+                    if (!listed) {
+                        continue;
+                    }
+
+                    bits = new long[mWords];
+                    mTagListedBy.put(tagId, bits);
+                }
+
+                if (listed) {
+                    setBit(bits, slot);
+                } else {
+                    clearBit(bits, slot);
+                }
+            }
+
+            if (tagIds.length > 0) {
+                mTagsChanged = true;
+            }
+        }
+
+        private void countDvrEntry(DvrEntry dvrEntry, int delta) {
+            int[] counts = mDvrCounts.get(dvrEntry.getChannelId());
+
+            if (counts == null) {
+                counts = new int[3];
+                mDvrCounts.put(dvrEntry.getChannelId(), counts);
+            }
+
+            counts[0] += delta;
+            if ("scheduled".equals(dvrEntry.getState())) {
+                counts[1] += delta;
+            } else if ("recording".equals(dvrEntry.getState())) {
+                counts[2] += delta;
+            }
+
+            if (counts[0] <= 0) {
+                mDvrCounts.remove(dvrEntry.getChannelId());
+            }
+
+            updateDvrAttributes(dvrEntry.getChannelId());
+        }
+
+        private void updateDvrAttributes(long channelId) {
+            final Integer slot = mSlots.get(channelId);
+
+            if (slot == null) {
+                return;
+            }
+
+            final int[] counts = mDvrCounts.get(channelId);
+            setAttribute(ATTRIBUTE_HAS_DVR_ENTRY, slot, counts != null);
+            setAttribute(ATTRIBUTE_SCHEDULED, slot, counts != null && counts[1] > 0);
+            setAttribute(ATTRIBUTE_RECORDING, slot, counts != null && counts[2] > 0);
+        }
+
+        private void setAttribute(int attribute, int slot, boolean value) {
+            final long[] bits = mAttributes[attribute];
+
+            if (isSet(bits, slot) != value) {
+                bits[slot >>> 6] ^= 1L << slot;
+                mAttributesChanged[attribute] = true;
+            }
+        }
+
+        private static void setBit(long[] bits, int slot) {
+            bits[slot >>> 6] |= 1L << slot;
+        }
+
+        private static void clearBit(long[] bits, int slot) {
+            bits[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+}
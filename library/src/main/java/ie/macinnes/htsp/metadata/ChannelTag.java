@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * A channel tag, as described by tagAdd / tagUpdate
+ */
+public class ChannelTag {
+    private final long mId;
+    private final String mName;
+    private final int mIndex;
+    private final String mIcon;
+    private final long[] mChannelIds;
+
+    public ChannelTag(long id, String name, int index, String icon, @NonNull long[] channelIds) {
+        mId = id;
+        mName = name;
+        mIndex = index;
+        mIcon = icon;
+        mChannelIds = channelIds;
+    }
+
+    @NonNull
+    static ChannelTag fromMessage(@NonNull HtspMessage message, ChannelTag previous) {
+        return new ChannelTag(
+                message.getLong("tagId"),
+                message.getString("tagName", previous != null ? previous.mName : null),
+                message.getInteger("tagIndex", previous != null ? previous.mIndex : 0),
+                message.getString("tagIcon", previous != null ? previous.mIcon : null),
+                MessageFields.getLongArray(message, "members", previous != null ? previous.mChannelIds : MessageFields.EMPTY_LONGS));
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public String getIcon() {
+        return mIcon;
+    }
+
+    /**
+     * @return The ids of the channels with this tag. Don't modify it.
+     */
+    @NonNull
+    public long[] getChannelIds() {
+        return mChannelIds;
+    }
+}
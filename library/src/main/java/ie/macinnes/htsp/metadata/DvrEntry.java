@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * A recording, as described by dvrEntryAdd / dvrEntryUpdate
+ */
+public class DvrEntry {
+    private final long mId;
+    private final long mChannelId;
+    private final long mEventId;
+    private final long mStart;
+    private final long mStop;
+    private final String mTitle;
+    private final String mSubtitle;
+    private final String mDescription;
+    private final String mState;
+    private final String mError;
+
+    public DvrEntry(long id, long channelId, long eventId, long start, long stop, String title,
+                    String subtitle, String description, String state, String error) {
+        mId = id;
+        mChannelId = channelId;
+        mEventId = eventId;
+        mStart = start;
+        mStop = stop;
+        mTitle = title;
+        mSubtitle = subtitle;
+        mDescription = description;
+        mState = state;
+        mError = error;
+    }
+
+    @NonNull
+    static DvrEntry fromMessage(@NonNull HtspMessage message, DvrEntry previous) {
+        return new DvrEntry(
+                message.getLong("id"),
+                message.getLong("channel", previous != null ? previous.mChannelId : 0),
+                message.getLong("eventId", previous != null ? previous.mEventId : 0),
+                message.getLong("start", previous != null ? previous.mStart : 0),
+                message.getLong("stop", previous != null ? previous.mStop : 0),
+                message.getString("title", previous != null ? previous.mTitle : null),
+                message.getString("subtitle", previous != null ? previous.mSubtitle : null),
+                message.getString("description", previous != null ? previous.mDescription : null),
+                message.getString("state", previous != null ? previous.mState : null),
+                message.getString("error", previous != null ? previous.mError : null));
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getChannelId() {
+        return mChannelId;
+    }
+
+    public long getEventId() {
+        return mEventId;
+    }
+
+    /**
+     * @return Scheduled start time, in seconds since the epoch
+     */
+    public long getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return Scheduled stop time, in seconds since the epoch
+     */
+    public long getStop() {
+        return mStop;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getSubtitle() {
+        return mSubtitle;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * @return The recording state, e.g. "scheduled", "recording", "completed"
+     */
+    public String getState() {
+        return mState;
+    }
+
+    public String getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+
+/**
+ * An immutable index of EPG events by channel and time
+ *
+ * Each channel's events are kept in primitive arrays sorted by start time, alongside a tree of
+ * the maximum stop time over ranges of them. Binary searching the start times finds the events
+ * starting before a given time, and descending the tree finds the nearest of those which is
+ * still airing, or the first event which could be airing at all, even if the schedule has
+ * overlapping events, such as a days long placeholder. Lookups are O(log n) in the number of
+ * events on the channel, plus the number of events returned.
+ *
+ * All times are in seconds since the epoch, as sent by TVHeadend.
+ */
+public class EpgIndex {
+    static final EpgIndex EMPTY = new EpgIndex(PersistentLongMap.<Schedule>empty());
+
+    private final PersistentLongMap<Schedule> mSchedules;
+
+    /**
+     * One channel's events, sorted by start time then event id
+     */
+    private static class Schedule {
+        final long[] mStarts;
+        final long[] mStops;
+        final long[] mEventIds;
+        // Max stop time over each range, as a binary tree with the root at 1 and the children of
+        // node at 2 * node and 2 * node + 1. The leaves, from mLeaves on, are mStops itself.
+        final long[] mMaxStops;
+        final int mLeaves;
+
+        Schedule(long[] starts, long[] stops, long[] eventIds) {
+            mStarts = starts;
+            mStops = stops;
+            mEventIds = eventIds;
+
+            int leaves = 1;
+            while (leaves < stops.length) {
+                leaves *= 2;
+            }
+            mLeaves = leaves;
+            mMaxStops = new long[leaves];
+
+            for (int node = leaves - 1; node >= 1; node--) {
+                mMaxStops[node] = Math.max(maxStop(2 * node), maxStop(2 * node + 1));
+            }
+        }
+
+        /**
+         * @return The index of the last event at or before index still airing after time, or -1
+         */
+        int lastAiringAt(int index, long time) {
+            int node = mLeaves + index;
+
+            if (maxStop(node) > time) {
+                return index;
+            }
+
+            // Up until a range to the left of node has an event airing after time
+            while (node > 1) {
+                if ((node & 1) == 1 && maxStop(node - 1) > time) {
+                    return lastAiringIn(node - 1, time);
+                }
+                node /= 2;
+            }
+
+            return -1;
+        }
+
+        /**
+         * @return The index of the first event airing after time, or the number of events
+         */
+        int firstAiringAfter(long time) {
+            if (maxStop(1) <= time) {
+                return mStops.length;
+            }
+
+            int node = 1;
+            while (node < mLeaves) {
+                node *= 2;
+                if (maxStop(node) <= time) {
+                    node += 1;
+                }
+            }
+
+            return node - mLeaves;
+        }
+
+        private int lastAiringIn(int node, long time) {
+            while (node < mLeaves) {
+                node = 2 * node + 1;
+                if (maxStop(node) <= time) {
+                    node -= 1;
+                }
+            }
+
+            return node - mLeaves;
+        }
+
+        private long maxStop(int node) {
+            if (node < mLeaves) {
+                return mMaxStops[node];
+            }
+
+            final int index = node - mLeaves;
+            return index < mStops.length ? mStops[index] : Long.MIN_VALUE;
+        }
+    }
+
+    private EpgIndex(@NonNull PersistentLongMap<Schedule> schedules) {
+        mSchedules = schedules;
+    }
+
+    /**
+     * @return The number of events on the channel
+     */
+    public int getEventCount(long channelId) {
+        final Schedule schedule = mSchedules.get(channelId);
+        return schedule != null ? schedule.mEventIds.length : 0;
+    }
+
+    /**
+     * Finds the event airing on a channel at a given time. If events overlap, the one which
+     * started most recently wins.
+     *
+     * @return The event id, or 0 if nothing is airing
+     */
+    public long getEventIdAt(long channelId, long time) {
+        final Schedule schedule = mSchedules.get(channelId);
+
+        if (schedule == null) {
+            return 0;
+        }
+
+        // The last event starting at or before time, which hasn't finished by then
+        final int last = upperBound(schedule.mStarts, time) - 1;
+        if (last < 0) {
+            return 0;
+        }
+
+        final int index = schedule.lastAiringAt(last, time);
+        return index >= 0 ? schedule.mEventIds[index] : 0;
+    }
+
+    /**
+     * @return The id of the first event starting after time, or 0 if there isn't one
+     */
+    public long getNextEventId(long channelId, long time) {
+        final Schedule schedule = mSchedules.get(channelId);
+
+        if (schedule == null) {
+            return 0;
+        }
+
+        final int index = upperBound(schedule.mStarts, time);
+        return index < schedule.mEventIds.length ? schedule.mEventIds[index] : 0;
+    }
+
+    /**
+     * Finds the events on a channel which air at any point in [from, to)
+     *
+     * @return The event ids, in start time order
+     */
+    @NonNull
+    public long[] getEventIds(long channelId, long from, long to) {
+        final Schedule schedule = mSchedules.get(channelId);
+
+        if (schedule == null || from >= to) {
+            return MessageFields.EMPTY_LONGS;
+        }
+
+        final int first = schedule.firstAiringAfter(from);
+        final int last = lowerBound(schedule.mStarts, to);
+
+        if (first >= last) {
+            return MessageFields.EMPTY_LONGS;
+        }
+
+        final long[] eventIds = new long[last - first];
+        int count = 0;
+
+        for (int i = first; i < last; i++) {
+            // Only an overlapping schedule has events in range which finished before from
+            if (schedule.mStops[i] > from) {
+                eventIds[count++] = schedule.mEventIds[i];
+            }
+        }
+
+        return count == eventIds.length ? eventIds : Arrays.copyOf(eventIds, count);
+    }
+
+    @NonNull
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    // Internal Methods
+
+    /**
+     * @return The index of the first value greater than or equal to key
+     */
+    private static int lowerBound(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @return The index of the first value greater than key
+     */
+    private static int upperBound(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Applies event changes to an EpgIndex. Only the schedules of channels with changed events
+     * are copied, the rest are shared with the index the builder started from.
+     */
+    static class Builder {
+        private final PersistentLongMap.Builder<Schedule> mSchedules;
+        private final LongSparseArray<ScheduleBuilder> mChanged = new LongSparseArray<>();
+
+        Builder() {
+            this(EMPTY);
+        }
+
+        private Builder(EpgIndex base) {
+            mSchedules = base.mSchedules.toBuilder();
+        }
+
+        /**
+         * @param previous The previous version of the event, if any
+         */
+        void put(@NonNull Event event, Event previous) {
+            if (previous != null) {
+                remove(previous);
+            }
+
+            getScheduleBuilder(event.getChannelId()).insert(event.getStart(), event.getStop(), event.getId());
+        }
+
+        void remove(@NonNull Event event) {
+            getScheduleBuilder(event.getChannelId()).remove(event.getStart(), event.getId());
+        }
+
+        @NonNull
+        EpgIndex build() {
+            for (int i = 0; i < mChanged.size(); i++) {
+                final ScheduleBuilder scheduleBuilder = mChanged.valueAt(i);
+
+                if (scheduleBuilder.mSize == 0) {
+                    mSchedules.remove(mChanged.keyAt(i));
+                } else {
+                    mSchedules.put(mChanged.keyAt(i), scheduleBuilder.build());
+                }
+            }
+
+            mChanged.clear();
+
+            return new EpgIndex(mSchedules.build());
+        }
+
+        private ScheduleBuilder getScheduleBuilder(long channelId) {
+            ScheduleBuilder scheduleBuilder = mChanged.get(channelId);
+
+            if (scheduleBuilder == null) {
+                scheduleBuilder = new ScheduleBuilder(mSchedules.get(channelId));
+                mChanged.put(channelId, scheduleBuilder);
+            }
+
+            return scheduleBuilder;
+        }
+    }
+
+    /**
+     * A mutable copy of one channel's schedule
+     */
+    private static class ScheduleBuilder {
+        private long[] mStarts;
+        private long[] mStops;
+        private long[] mEventIds;
+        private int mSize;
+
+        ScheduleBuilder(Schedule schedule) {
+            if (schedule != null) {
+                mSize = schedule.mEventIds.length;
+            }
+
+            // Leave room to grow, events are usually added in batches
+            final int capacity = Math.max(16, mSize + mSize / 2);
+            mStarts = new long[capacity];
+            mStops = new long[capacity];
+            mEventIds = new long[capacity];
+
+            if (schedule != null) {
+                System.arraycopy(schedule.mStarts, 0, mStarts, 0, mSize);
+                System.arraycopy(schedule.mStops, 0, mStops, 0, mSize);
+                System.arraycopy(schedule.mEventIds, 0, mEventIds, 0, mSize);
+            }
+        }
+
+        void insert(long start, long stop, long eventId) {
+            if (mSize == mEventIds.length) {
+                final int capacity = mSize * 2;
+                mStarts = Arrays.copyOf(mStarts, capacity);
+                mStops = Arrays.copyOf(mStops, capacity);
+                mEventIds = Arrays.copyOf(mEventIds, capacity);
+            }
+
+            // Events mostly arrive in start order, so this is usually an append
+            final int index;
+            if (mSize == 0 || mStarts[mSize - 1] < start
+                    || (mStarts[mSize - 1] == start && mEventIds[mSize - 1] < eventId)) {
+                index = mSize;
+            } else {
+                index = find(start, eventId);
+            }
+
+            System.arraycopy(mStarts, index, mStarts, index + 1, mSize - index);
+            System.arraycopy(mStops, index, mStops, index + 1, mSize - index);
+            System.arraycopy(mEventIds, index, mEventIds, index + 1, mSize - index);
+
+            mStarts[index] = start;
+            mStops[index] = stop;
+            mEventIds[index] = eventId;
+            mSize += 1;
+        }
+
+        void remove(long start, long eventId) {
+            final int index = find(start, eventId);
+
+            if (index >= mSize || mStarts[index] != start || mEventIds[index] != eventId) {
+                return;
+            }
+
+            System.arraycopy(mStarts, index + 1, mStarts, index, mSize - index - 1);
+            System.arraycopy(mStops, index + 1, mStops, index, mSize - index - 1);
+            System.arraycopy(mEventIds, index + 1, mEventIds, index, mSize - index - 1);
+            mSize -= 1;
+        }
+
+        Schedule build() {
+            return new Schedule(Arrays.copyOf(mStarts, mSize), Arrays.copyOf(mStops, mSize),
+                    Arrays.copyOf(mEventIds, mSize));
+        }
+
+        /**
+         * @return The index of the first entry ordered at or after (start, eventId)
+         */
+        private int find(long start, long eventId) {
+            int low = 0;
+            int high = mSize;
+
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mStarts[mid] < start || (mStarts[mid] == start && mEventIds[mid] < eventId)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+    }
+}
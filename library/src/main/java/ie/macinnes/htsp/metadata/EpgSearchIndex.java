@@ -0,0 +1,667 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable full text index over EPG event titles, subtitles, summaries and descriptions
+ *
+ * Text is normalised by lower casing and stripping accents, then split into words. Each query
+ * word matches any indexed word it's a prefix of, so results can be shown as the user types, and
+ * an event matches when every query word does. Events whose titles match every query word come
+ * first, then the rest, each in start time order.
+ *
+ * The bulk of the index is a sorted dictionary of words, each with a posting list of the events
+ * containing it, delta and varint encoded, with events numbered in start time order. Events
+ * changed after that was built are kept in a small overlay and searched directly, until there
+ * are enough of them to be worth merging into a new dictionary.
+ */
+public class EpgSearchIndex {
+    static final EpgSearchIndex EMPTY = new EpgSearchIndex(new Base(), PersistentLongMap.<Event>empty());
+
+    static final int FIELD_TITLE = 1;
+    static final int FIELD_SUBTITLE = 2;
+    static final int FIELD_SUMMARY = 4;
+    static final int FIELD_DESCRIPTION = 8;
+    private static final int FIELD_BITS = 4;
+
+    private static final int MIN_COMPACT_SIZE = 256;
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+
+    // Marks events in the base which have since been deleted
+    private static final Event DELETED = new Event(0, 0, 0, 0, null, null, null, null, 0, 0, 0, 0, 0);
+
+    // Search results are ordered by whether the title matched, then by start time
+    private static final Comparator<Event> START_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event lhs, Event rhs) {
+            if (lhs.getStart() != rhs.getStart()) {
+                return lhs.getStart() < rhs.getStart() ? -1 : 1;
+            }
+            return lhs.getId() < rhs.getId() ? -1 : (lhs.getId() == rhs.getId() ? 0 : 1);
+        }
+    };
+
+    private final Base mBase;
+    private final PersistentLongMap<Event> mOverlay;
+
+    private EpgSearchIndex(@NonNull Base base, @NonNull PersistentLongMap<Event> overlay) {
+        mBase = base;
+        mOverlay = overlay;
+    }
+
+    /**
+     * @param query Words to search for, as typed by the user
+     * @param limit The maximum number of results
+     * @return The ids of matching events, best matches first
+     */
+    @NonNull
+    public long[] search(@NonNull String query, int limit) {
+        final String[] words = tokenize(query, 0).keySet().toArray(new String[0]);
+
+        if (words.length == 0 || limit <= 0) {
+            return MessageFields.EMPTY_LONGS;
+        }
+
+        // Find the matching rows in the base, skipping any which have been changed since
+        final byte[] matches = mBase.match(words);
+
+        for (long id : mOverlay.keys()) {
+            final int row = mBase.findRow(id);
+            if (row >= 0) {
+                matches[row] = 0;
+            }
+        }
+
+        // The overlay is small, so just check each event in it
+        final List<Event> overlayTitleMatches = new ArrayList<>();
+        final List<Event> overlayOtherMatches = new ArrayList<>();
+
+        for (Event event : mOverlay.values()) {
+            if (event == DELETED) {
+                continue;
+            }
+
+            final int match = matchEvent(event, words);
+            if (match != 0) {
+                ((match & FIELD_TITLE) != 0 ? overlayTitleMatches : overlayOtherMatches).add(event);
+            }
+        }
+
+        Collections.sort(overlayTitleMatches, START_ORDER);
+        Collections.sort(overlayOtherMatches, START_ORDER);
+
+        final long[] results = new long[limit];
+        int count = mergeResults(matches, true, overlayTitleMatches, results, 0, limit);
+        count = mergeResults(matches, false, overlayOtherMatches, results, count, limit);
+
+        return count == limit ? results : Arrays.copyOf(results, count);
+    }
+
+    /**
+     * @return The number of distinct words in the index, not counting recent changes
+     */
+    public int getWordCount() {
+        return mBase.mWords.length;
+    }
+
+    /**
+     * @return An estimate of the heap used by the index, not counting recent changes, in bytes
+     */
+    public long getMemoryUsage() {
+        long bytes = mBase.mPostings.length + mBase.mWordOffsets.length * 4L
+                + mBase.mRowIds.length * (8L + 8L + 8L + 4L);
+
+        for (String word : mBase.mWords) {
+            bytes += 40 + 2L * word.length();
+        }
+
+        return bytes;
+    }
+
+    @NonNull
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Normalises text and splits it into words
+     *
+     * @return Each word, mapped to the fields it was found in
+     */
+    @NonNull
+    static Map<String, Integer> tokenize(String text, int field) {
+        final Map<String, Integer> words = new HashMap<>();
+        tokenize(text, field, new MapWordSink(words));
+        return words;
+    }
+
+    // Internal Methods
+    private static void tokenize(String text, int field, WordSink sink) {
+        if (text == null) {
+            return;
+        }
+
+        String normalized = text;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                // Only worth decomposing and stripping accents if there might be some
+                normalized = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+                break;
+            }
+        }
+        normalized = normalized.toLowerCase(Locale.ROOT);
+
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            final boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+
+            if (wordChar && start == -1) {
+                start = i;
+            } else if (!wordChar && start != -1) {
+                sink.onWord(normalized.substring(start, i), field);
+                start = -1;
+            }
+        }
+    }
+
+    private static void tokenize(Event event, WordSink sink) {
+        tokenize(event.getTitle(), FIELD_TITLE, sink);
+        tokenize(event.getSubtitle(), FIELD_SUBTITLE, sink);
+        tokenize(event.getSummary(), FIELD_SUMMARY, sink);
+        tokenize(event.getDescription(), FIELD_DESCRIPTION, sink);
+    }
+
+    /**
+     * @return 0 if the event doesn't match every word, otherwise a non zero value with
+     * FIELD_TITLE set if every word matched the title
+     */
+    private static int matchEvent(Event event, String[] words) {
+        final Map<String, Integer> eventWords = new HashMap<>();
+        tokenize(event, new MapWordSink(eventWords));
+        int result = Base.MATCHED | FIELD_TITLE;
+
+        for (String word : words) {
+            int fields = 0;
+
+            for (Map.Entry<String, Integer> entry : eventWords.entrySet()) {
+                if (entry.getKey().startsWith(word)) {
+                    fields |= entry.getValue();
+                }
+            }
+
+            if (fields == 0) {
+                return 0;
+            }
+
+            result &= Base.MATCHED | fields;
+        }
+
+        return result;
+    }
+
+    private int mergeResults(byte[] matches, boolean title, List<Event> overlayMatches,
+                             long[] results, int count, int limit) {
+        final int wanted = title ? (Base.MATCHED | FIELD_TITLE) : Base.MATCHED;
+        int row = 0;
+        int overlayIndex = 0;
+
+        while (count < limit) {
+            // Rows are already in start time order, so find the next match
+            while (row < matches.length && (matches[row] & (Base.MATCHED | FIELD_TITLE)) != wanted) {
+                row++;
+            }
+
+            final boolean haveRow = row < matches.length;
+            final boolean haveOverlay = overlayIndex < overlayMatches.size();
+
+            if (!haveRow && !haveOverlay) {
+                break;
+            }
+
+            if (haveRow && (!haveOverlay || mBase.mRowStarts[row] <= overlayMatches.get(overlayIndex).getStart())) {
+                results[count++] = mBase.mRowIds[row++];
+            } else {
+                results[count++] = overlayMatches.get(overlayIndex++).getId();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * The bulk built part of the index
+     */
+    private static class Base {
+        static final int MATCHED = 0x80;
+
+        // Events, by row, in start time order
+        final long[] mRowIds;
+        final long[] mRowStarts;
+
+        // Event ids in id order, and their rows
+        final long[] mSortedIds;
+        final int[] mSortedRows;
+
+        // Sorted words, and where each one's postings start
+        final String[] mWords;
+        final int[] mWordOffsets;
+        final byte[] mPostings;
+
+        Base() {
+            this(MessageFields.EMPTY_LONGS, MessageFields.EMPTY_LONGS, new String[0], new int[1], new byte[0]);
+        }
+
+        Base(long[] rowIds, long[] rowStarts, String[] words, int[] wordOffsets, byte[] postings) {
+            mRowIds = rowIds;
+            mRowStarts = rowStarts;
+            mWords = words;
+            mWordOffsets = wordOffsets;
+            mPostings = postings;
+
+            // Ids are u32 in HTSP, which leaves room to sort ids and rows packed into one long
+            final long[] packed = new long[rowIds.length];
+            for (int row = 0; row < rowIds.length; row++) {
+                packed[row] = (rowIds[row] << 31) | row;
+            }
+            Arrays.sort(packed);
+
+            mSortedIds = new long[rowIds.length];
+            mSortedRows = new int[rowIds.length];
+            for (int i = 0; i < packed.length; i++) {
+                mSortedIds[i] = packed[i] >>> 31;
+                mSortedRows[i] = (int) (packed[i] & Integer.MAX_VALUE);
+            }
+        }
+
+        int findRow(long id) {
+            final int index = Arrays.binarySearch(mSortedIds, id);
+            return index >= 0 ? mSortedRows[index] : -1;
+        }
+
+        /**
+         * @return For each row, 0 if it doesn't match every word, otherwise MATCHED, plus
+         * FIELD_TITLE if every word matched the title
+         */
+        byte[] match(String[] words) {
+            final byte[] result = new byte[mRowIds.length];
+            final byte[] wordFields = new byte[mRowIds.length];
+
+            for (int w = 0; w < words.length; w++) {
+                Arrays.fill(wordFields, (byte) 0);
+
+                // Every indexed word starting with the query word
+                for (int i = lowerBound(words[w]); i < mWords.length && mWords[i].startsWith(words[w]); i++) {
+                    final PostingsReader reader = new PostingsReader(this, i);
+
+                    while (reader.next()) {
+                        wordFields[reader.mRow] |= (byte) reader.mFields;
+                    }
+                }
+
+                for (int row = 0; row < result.length; row++) {
+                    if (wordFields[row] == 0 || (w > 0 && result[row] == 0)) {
+                        result[row] = 0;
+                    } else {
+                        final int title = w > 0 ? result[row] & FIELD_TITLE : FIELD_TITLE;
+                        result[row] = (byte) (MATCHED | (title & wordFields[row]));
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        private int lowerBound(String word) {
+            int low = 0;
+            int high = mWords.length;
+
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mWords[mid].compareTo(word) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+    }
+
+    /**
+     * Decodes one word's postings, each being a varint of the row delta and the fields
+     */
+    private static class PostingsReader {
+        private final byte[] mPostings;
+        private final int mEnd;
+        private int mPosition;
+
+        int mRow = -1;
+        int mFields;
+
+        PostingsReader(Base base, int word) {
+            mPostings = base.mPostings;
+            mPosition = base.mWordOffsets[word];
+            mEnd = base.mWordOffsets[word + 1];
+        }
+
+        boolean next() {
+            if (mPosition >= mEnd) {
+                return false;
+            }
+
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mPostings[mPosition++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            mRow += (int) (value >>> FIELD_BITS);
+            mFields = (int) (value & ((1 << FIELD_BITS) - 1));
+            return true;
+        }
+    }
+
+    private interface WordSink {
+        void onWord(String word, int field);
+    }
+
+    /**
+     * Collects words into a map of each word to the fields it was found in
+     */
+    private static class MapWordSink implements WordSink {
+        private final Map<String, Integer> mWords;
+
+        MapWordSink(Map<String, Integer> words) {
+            mWords = words;
+        }
+
+        @Override
+        public void onWord(String word, int field) {
+            final Integer fields = mWords.get(word);
+            mWords.put(word, fields != null ? fields | field : field);
+        }
+    }
+
+    /**
+     * Adds words found in the event at mRow to each word's postings
+     */
+    private static class PostingsWordSink implements WordSink {
+        private final Map<String, Postings> mPostings;
+        int mRow;
+
+        PostingsWordSink(Map<String, Postings> postings) {
+            mPostings = postings;
+        }
+
+        @Override
+        public void onWord(String word, int field) {
+            Postings postings = mPostings.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                mPostings.put(word, postings);
+            }
+            postings.add(mRow, field);
+        }
+    }
+
+    /**
+     * A growable list of (row, fields) postings for one word, in row order
+     */
+    private static class Postings {
+        int[] mRows = new int[4];
+        byte[] mFields = new byte[4];
+        int mSize = 0;
+
+        void add(int row, int fields) {
+            if (mSize > 0 && mRows[mSize - 1] == row) {
+                // The word appears more than once in the event
+                mFields[mSize - 1] |= (byte) fields;
+                return;
+            }
+
+            if (mSize == mRows.length) {
+                mRows = Arrays.copyOf(mRows, mSize * 2);
+                mFields = Arrays.copyOf(mFields, mSize * 2);
+            }
+            mRows[mSize] = row;
+            mFields[mSize] = (byte) fields;
+            mSize++;
+        }
+    }
+
+    /**
+     * Applies event changes to an EpgSearchIndex, sharing the base until it needs rebuilding
+     */
+    static class Builder {
+        private Base mBase;
+        private PersistentLongMap.Builder<Event> mOverlay;
+
+        Builder() {
+            this(EMPTY);
+        }
+
+        private Builder(EpgSearchIndex index) {
+            mBase = index.mBase;
+            mOverlay = index.mOverlay.toBuilder();
+        }
+
+        void put(@NonNull Event event) {
+            mOverlay.put(event.getId(), event);
+        }
+
+        void remove(long id) {
+            if (mBase.findRow(id) >= 0) {
+                mOverlay.put(id, DELETED);
+            } else {
+                mOverlay.remove(id);
+            }
+        }
+
+        @NonNull
+        EpgSearchIndex build() {
+            if (mOverlay.size() > Math.max(MIN_COMPACT_SIZE, mBase.mRowIds.length / 64)) {
+                compact();
+            }
+
+            return new EpgSearchIndex(mBase, mOverlay.build());
+        }
+
+        /**
+         * Merges the overlay into a new base. Words already in the base aren't tokenized again,
+         * their postings are just renumbered.
+         */
+        private void compact() {
+            final PersistentLongMap<Event> overlay = mOverlay.build();
+            final Base base = mBase;
+
+            final List<Event> added = new ArrayList<>();
+            for (Event event : overlay.values()) {
+                if (event != DELETED) {
+                    added.add(event);
+                }
+            }
+            Collections.sort(added, START_ORDER);
+
+            // Merge the surviving base rows with the added events, in start time order
+            final int[] baseRowMap = new int[base.mRowIds.length];
+            final int[] addedRows = new int[added.size()];
+            final long[] rowIds = new long[base.mRowIds.length + added.size()];
+            final long[] rowStarts = new long[rowIds.length];
+            int rows = 0;
+            int baseRow = 0;
+            int addedIndex = 0;
+
+            while (baseRow < base.mRowIds.length || addedIndex < added.size()) {
+                if (baseRow < base.mRowIds.length && overlay.containsKey(base.mRowIds[baseRow])) {
+                    baseRowMap[baseRow++] = -1;
+                    continue;
+                }
+
+                final boolean takeBase = baseRow < base.mRowIds.length && (addedIndex == added.size()
+                        || base.mRowStarts[baseRow] < added.get(addedIndex).getStart()
+                        || (base.mRowStarts[baseRow] == added.get(addedIndex).getStart()
+                        && base.mRowIds[baseRow] < added.get(addedIndex).getId()));
+
+                if (takeBase) {
+                    rowIds[rows] = base.mRowIds[baseRow];
+                    rowStarts[rows] = base.mRowStarts[baseRow];
+                    baseRowMap[baseRow++] = rows++;
+                } else {
+                    rowIds[rows] = added.get(addedIndex).getId();
+                    rowStarts[rows] = added.get(addedIndex).getStart();
+                    addedRows[addedIndex++] = rows++;
+                }
+            }
+
+            // Tokenize the added events, in row order so each word's postings are too
+            final Map<String, Postings> addedPostings = new HashMap<>();
+            final PostingsWordSink sink = new PostingsWordSink(addedPostings);
+            for (int i = 0; i < added.size(); i++) {
+                sink.mRow = addedRows[i];
+                tokenize(added.get(i), sink);
+            }
+
+            final String[] addedWords = addedPostings.keySet().toArray(new String[addedPostings.size()]);
+            Arrays.sort(addedWords);
+
+            // Merge the base's words with the added ones
+            final List<String> words = new ArrayList<>(base.mWords.length + addedWords.length);
+            final List<Integer> wordOffsets = new ArrayList<>(base.mWords.length + addedWords.length + 1);
+            final VarintWriter out = new VarintWriter(base.mPostings.length + addedPostings.size() * 4);
+            final Postings merged = new Postings();
+            int baseWord = 0;
+            int addedWord = 0;
+
+            while (baseWord < base.mWords.length || addedWord < addedWords.length) {
+                final int order;
+                if (baseWord == base.mWords.length) {
+                    order = 1;
+                } else if (addedWord == addedWords.length) {
+                    order = -1;
+                } else {
+                    order = base.mWords[baseWord].compareTo(addedWords[addedWord]);
+                }
+
+                final String word = order <= 0 ? base.mWords[baseWord] : addedWords[addedWord];
+                merged.mSize = 0;
+
+                final Postings fromAdded = order >= 0 ? addedPostings.get(addedWords[addedWord++]) : null;
+                int addedPosition = 0;
+
+                if (order <= 0) {
+                    final PostingsReader reader = new PostingsReader(base, baseWord);
+
+                    while (reader.next()) {
+                        final int newRow = baseRowMap[reader.mRow];
+
+                        if (newRow < 0) {
+                            continue;
+                        }
+
+                        while (fromAdded != null && addedPosition < fromAdded.mSize && fromAdded.mRows[addedPosition] < newRow) {
+                            merged.add(fromAdded.mRows[addedPosition], fromAdded.mFields[addedPosition]);
+                            addedPosition++;
+                        }
+                        merged.add(newRow, reader.mFields);
+                    }
+
+                    baseWord++;
+                }
+
+                while (fromAdded != null && addedPosition < fromAdded.mSize) {
+                    merged.add(fromAdded.mRows[addedPosition], fromAdded.mFields[addedPosition]);
+                    addedPosition++;
+                }
+
+                if (merged.mSize == 0) {
+                    // Every event with this word has gone
+                    continue;
+                }
+
+                words.add(word);
+                wordOffsets.add(out.size());
+
+                int previousRow = -1;
+                for (int i = 0; i < merged.mSize; i++) {
+                    out.write(((long) (merged.mRows[i] - previousRow) << FIELD_BITS) | merged.mFields[i]);
+                    previousRow = merged.mRows[i];
+                }
+            }
+
+            wordOffsets.add(out.size());
+
+            final int[] offsets = new int[wordOffsets.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = wordOffsets.get(i);
+            }
+
+            mBase = new Base(Arrays.copyOf(rowIds, rows), Arrays.copyOf(rowStarts, rows),
+                    words.toArray(new String[words.size()]), offsets, out.toByteArray());
+            mOverlay = new PersistentLongMap.Builder<>();
+        }
+    }
+
+    /**
+     * A growable byte array of unsigned varints
+     */
+    private static class VarintWriter {
+        private byte[] mBytes;
+        private int mSize = 0;
+
+        VarintWriter(int capacity) {
+            mBytes = new byte[Math.max(16, capacity)];
+        }
+
+        void write(long value) {
+            if (mSize + 10 > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+
+            while ((value & ~0x7fL) != 0) {
+                mBytes[mSize++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mSize++] = (byte) value;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mSize);
+        }
+    }
+}
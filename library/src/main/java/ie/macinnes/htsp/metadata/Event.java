@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * An EPG event, as described by eventAdd / eventUpdate
+ */
+public class Event {
+    private final long mId;
+    private final long mChannelId;
+    private final long mStart;
+    private final long mStop;
+    private final String mTitle;
+    private final String mSubtitle;
+    private final String mSummary;
+    private final String mDescription;
+    private final Utf8String mLazyDescription;
+    private final int mContentType;
+    private final int mAgeRating;
+    private final int mSeasonNumber;
+    private final int mEpisodeNumber;
+    private final long mNextEventId;
+
+    public Event(long id, long channelId, long start, long stop, String title, String subtitle,
+                 String summary, String description, int contentType, int ageRating,
+                 int seasonNumber, int episodeNumber, long nextEventId) {
+        this(id, channelId, start, stop, title, subtitle, summary, description, null, contentType,
+                ageRating, seasonNumber, episodeNumber, nextEventId);
+    }
+
+    /**
+     * @param lazyDescription The description, decoded when it's asked for, used instead of
+     *                        description when not null
+     */
+    Event(long id, long channelId, long start, long stop, String title, String subtitle,
+          String summary, String description, Utf8String lazyDescription, int contentType,
+          int ageRating, int seasonNumber, int episodeNumber, long nextEventId) {
+        mId = id;
+        mChannelId = channelId;
+        mStart = start;
+        mStop = stop;
+        mTitle = title;
+        mSubtitle = subtitle;
+        mSummary = summary;
+        mDescription = description;
+        mLazyDescription = lazyDescription;
+        mContentType = contentType;
+        mAgeRating = ageRating;
+        mSeasonNumber = seasonNumber;
+        mEpisodeNumber = episodeNumber;
+        mNextEventId = nextEventId;
+    }
+
+    @NonNull
+    static Event fromMessage(@NonNull HtspMessage message, Event previous) {
+        return new Event(
+                message.getLong("eventId"),
+                message.getLong("channelId", previous != null ? previous.mChannelId : 0),
+                message.getLong("start", previous != null ? previous.mStart : 0),
+                message.getLong("stop", previous != null ? previous.mStop : 0),
+                message.getString("title", previous != null ? previous.mTitle : null),
+                message.getString("subtitle", previous != null ? previous.mSubtitle : null),
+                message.getString("summary", previous != null ? previous.mSummary : null),
+                message.getString("description", previous != null ? previous.getDescription() : null),
+                message.getInteger("contentType", previous != null ? previous.mContentType : 0),
+                message.getInteger("ageRating", previous != null ? previous.mAgeRating : 0),
+                message.getInteger("seasonNumber", previous != null ? previous.mSeasonNumber : 0),
+                message.getInteger("episodeNumber", previous != null ? previous.mEpisodeNumber : 0),
+                message.getLong("nextEventId", previous != null ? previous.mNextEventId : 0));
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getChannelId() {
+        return mChannelId;
+    }
+
+    /**
+     * @return Start time, in seconds since the epoch
+     */
+    public long getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return Stop time, in seconds since the epoch
+     */
+    public long getStop() {
+        return mStop;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getSubtitle() {
+        return mSubtitle;
+    }
+
+    public String getSummary() {
+        return mSummary;
+    }
+
+    public String getDescription() {
+        return mLazyDescription != null ? mLazyDescription.toString() : mDescription;
+    }
+
+    public int getContentType() {
+        return mContentType;
+    }
+
+    public int getAgeRating() {
+        return mAgeRating;
+    }
+
+    public int getSeasonNumber() {
+        return mSeasonNumber;
+    }
+
+    public int getEpisodeNumber() {
+        return mEpisodeNumber;
+    }
+
+    public long getNextEventId() {
+        return mNextEventId;
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable table of EPG events, stored column by column
+ *
+ * Most events live in a base of sorted primitive arrays, one per field, with every title, subtitle
+ * and summary deduplicated into a shared string pool and descriptions kept as UTF-8 in a single
+ * byte array, only decoded when Event.getDescription() is called. Events are materialised from
+ * the columns on each get(), so hold on to the Event rather than calling get() repeatedly.
+ *
+ * Changes after the base was built go into a small PersistentLongMap overlay, which is folded
+ * into a new base once it has grown to a quarter of the base's size. Building the base is a bulk
+ * operation, which is how both the initial sync and the on-disk cache are loaded.
+ */
+public class EventTable {
+    static final EventTable EMPTY = new EventTable(new Loader(0).buildColumns(),
+            PersistentLongMap.<Event>empty(), 0);
+
+    private static final int MIN_COMPACT_SIZE = 1024;
+
+    // Marks events in the base which have since been deleted
+    private static final Event DELETED = new Event(0, 0, 0, 0, null, null, null, null, 0, 0, 0, 0, 0);
+
+    // Rough per object costs used for memory estimates
+    private static final int ARRAY_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int EVENT_OVERHEAD = 120;
+
+    private final Columns mBase;
+    private final PersistentLongMap<Event> mOverlay;
+    private final int mSize;
+
+    private EventTable(@NonNull Columns base, @NonNull PersistentLongMap<Event> overlay, int size) {
+        mBase = base;
+        mOverlay = overlay;
+        mSize = size;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public Event get(long id) {
+        final Event event = mOverlay.get(id);
+
+        if (event != null) {
+            return event != DELETED ? event : null;
+        }
+
+        final int row = mBase.find(id);
+        return row >= 0 ? mBase.getEvent(row) : null;
+    }
+
+    public boolean containsKey(long id) {
+        final Event event = mOverlay.get(id);
+
+        if (event != null) {
+            return event != DELETED;
+        }
+
+        return mBase.find(id) >= 0;
+    }
+
+    /**
+     * @return Every event id, in no particular order
+     */
+    @NonNull
+    public long[] keys() {
+        final long[] keys = new long[mSize];
+        int position = 0;
+
+        for (long id : mBase.mIds) {
+            if (!mOverlay.containsKey(id)) {
+                keys[position++] = id;
+            }
+        }
+
+        for (long id : mOverlay.keys()) {
+            if (mOverlay.get(id) != DELETED) {
+                keys[position++] = id;
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return Every event, in no particular order
+     */
+    @NonNull
+    public List<Event> values() {
+        final List<Event> values = new ArrayList<>(mSize);
+
+        for (int row = 0; row < mBase.mIds.length; row++) {
+            if (!mOverlay.containsKey(mBase.mIds[row])) {
+                values.add(mBase.getEvent(row));
+            }
+        }
+
+        for (Event event : mOverlay.values()) {
+            if (event != DELETED) {
+                values.add(event);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * @return An estimate of the heap used by the table, in bytes
+     */
+    public long getMemoryUsage() {
+        long bytes = mBase.getMemoryUsage();
+
+        for (Event event : mOverlay.values()) {
+            bytes += EVENT_OVERHEAD + estimateString(event.getTitle())
+                    + estimateString(event.getSubtitle()) + estimateString(event.getSummary())
+                    + estimateString(event.getDescription());
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return An estimate of the heap used per event, in bytes
+     */
+    public long getMemoryPerEvent() {
+        return mSize > 0 ? getMemoryUsage() / mSize : 0;
+    }
+
+    @NonNull
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    // Internal Methods
+    private static long estimateString(String value) {
+        return value != null ? STRING_OVERHEAD + 2L * value.length() : 0;
+    }
+
+    /**
+     * Events in primitive arrays sorted by id, strings refer to entries in mStrings, -1 for null
+     */
+    private static class Columns {
+        final long[] mIds;
+        final long[] mChannelIds;
+        final long[] mStarts;
+        final long[] mStops;
+        final long[] mNextEventIds;
+        final int[] mContentTypes;
+        final int[] mAgeRatings;
+        final int[] mSeasonNumbers;
+        final int[] mEpisodeNumbers;
+        final int[] mTitles;
+        final int[] mSubtitles;
+        final int[] mSummaries;
+        final String[] mStrings;
+        final int[] mDescriptionOffsets;
+        final int[] mDescriptionLengths;
+        final byte[] mDescriptions;
+
+        Columns(int size, String[] strings, byte[] descriptions) {
+            mIds = new long[size];
+            mChannelIds = new long[size];
+            mStarts = new long[size];
+            mStops = new long[size];
+            mNextEventIds = new long[size];
+            mContentTypes = new int[size];
+            mAgeRatings = new int[size];
+            mSeasonNumbers = new int[size];
+            mEpisodeNumbers = new int[size];
+            mTitles = new int[size];
+            mSubtitles = new int[size];
+            mSummaries = new int[size];
+            mStrings = strings;
+            mDescriptionOffsets = new int[size];
+            mDescriptionLengths = new int[size];
+            mDescriptions = descriptions;
+        }
+
+        int find(long id) {
+            return Arrays.binarySearch(mIds, id);
+        }
+
+        Event getEvent(int row) {
+            final int descriptionLength = mDescriptionLengths[row];
+
+            return new Event(mIds[row], mChannelIds[row], mStarts[row], mStops[row],
+                    getString(mTitles[row]), getString(mSubtitles[row]), getString(mSummaries[row]),
+                    null, descriptionLength >= 0 ? new Utf8String(mDescriptions, mDescriptionOffsets[row], descriptionLength) : null,
+                    mContentTypes[row], mAgeRatings[row], mSeasonNumbers[row], mEpisodeNumbers[row],
+                    mNextEventIds[row]);
+        }
+
+        long getMemoryUsage() {
+            // 5 long and 9 int columns, the string pool and the description bytes
+            long bytes = 16 * ARRAY_OVERHEAD + mIds.length * (5L * 8 + 9L * 4)
+                    + mStrings.length * 4L + mDescriptions.length;
+
+            for (String string : mStrings) {
+                bytes += estimateString(string);
+            }
+
+            return bytes;
+        }
+
+        private String getString(int index) {
+            return index >= 0 ? mStrings[index] : null;
+        }
+    }
+
+    /**
+     * Bulk loads events into a new EventTable. Events may be added in any order, if an id is
+     * added more than once the last one wins.
+     */
+    static class Loader {
+        private int mSize = 0;
+        private long[] mIds;
+        private long[] mChannelIds;
+        private long[] mStarts;
+        private long[] mStops;
+        private long[] mNextEventIds;
+        private int[] mContentTypes;
+        private int[] mAgeRatings;
+        private int[] mSeasonNumbers;
+        private int[] mEpisodeNumbers;
+        private int[] mTitles;
+        private int[] mSubtitles;
+        private int[] mSummaries;
+        private int[] mDescriptionOffsets;
+        private int[] mDescriptionLengths;
+        private final BitSet mDeleted = new BitSet();
+
+        private final Map<String, Integer> mStringIndexes = new HashMap<>();
+        private final List<String> mStrings = new ArrayList<>();
+        private byte[] mDescriptions = new byte[1024];
+        private int mDescriptionsSize = 0;
+
+        /**
+         * @param capacity The number of events expected
+         */
+        Loader(int capacity) {
+            capacity = Math.max(16, capacity);
+
+            mIds = new long[capacity];
+            mChannelIds = new long[capacity];
+            mStarts = new long[capacity];
+            mStops = new long[capacity];
+            mNextEventIds = new long[capacity];
+            mContentTypes = new int[capacity];
+            mAgeRatings = new int[capacity];
+            mSeasonNumbers = new int[capacity];
+            mEpisodeNumbers = new int[capacity];
+            mTitles = new int[capacity];
+            mSubtitles = new int[capacity];
+            mSummaries = new int[capacity];
+            mDescriptionOffsets = new int[capacity];
+            mDescriptionLengths = new int[capacity];
+        }
+
+        void add(@NonNull Event event) {
+            final int row = addRow(event.getId());
+
+            mChannelIds[row] = event.getChannelId();
+            mStarts[row] = event.getStart();
+            mStops[row] = event.getStop();
+            mNextEventIds[row] = event.getNextEventId();
+            mContentTypes[row] = event.getContentType();
+            mAgeRatings[row] = event.getAgeRating();
+            mSeasonNumbers[row] = event.getSeasonNumber();
+            mEpisodeNumbers[row] = event.getEpisodeNumber();
+            mTitles[row] = intern(event.getTitle());
+            mSubtitles[row] = intern(event.getSubtitle());
+            mSummaries[row] = intern(event.getSummary());
+
+            final String description = event.getDescription();
+            if (description != null) {
+                final byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+                addDescription(row, bytes, 0, bytes.length);
+            } else {
+                mDescriptionLengths[row] = -1;
+            }
+        }
+
+        /**
+         * Records that the event was deleted, removing any earlier version of it
+         */
+        void addDeleted(long id) {
+            mDeleted.set(addRow(id));
+        }
+
+        @NonNull
+        EventTable build() {
+            final Columns columns = buildColumns();
+            return new EventTable(columns, PersistentLongMap.<Event>empty(), columns.mIds.length);
+        }
+
+        /**
+         * Copies a row from existing columns, without decoding its description
+         */
+        private void addRow(Columns columns, int from) {
+            final int row = addRow(columns.mIds[from]);
+
+            mChannelIds[row] = columns.mChannelIds[from];
+            mStarts[row] = columns.mStarts[from];
+            mStops[row] = columns.mStops[from];
+            mNextEventIds[row] = columns.mNextEventIds[from];
+            mContentTypes[row] = columns.mContentTypes[from];
+            mAgeRatings[row] = columns.mAgeRatings[from];
+            mSeasonNumbers[row] = columns.mSeasonNumbers[from];
+            mEpisodeNumbers[row] = columns.mEpisodeNumbers[from];
+            mTitles[row] = intern(columns.getString(columns.mTitles[from]));
+            mSubtitles[row] = intern(columns.getString(columns.mSubtitles[from]));
+            mSummaries[row] = intern(columns.getString(columns.mSummaries[from]));
+
+            if (columns.mDescriptionLengths[from] >= 0) {
+                addDescription(row, columns.mDescriptions, columns.mDescriptionOffsets[from],
+                        columns.mDescriptionLengths[from]);
+            } else {
+                mDescriptionLengths[row] = -1;
+            }
+        }
+
+        private int addRow(long id) {
+            // Ids are u32 in HTSP, which leaves room to sort ids and rows packed into one long
+            if (id < 0 || id > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("Event id out of range: " + id);
+            }
+
+            if (mSize == mIds.length) {
+                final int capacity = mSize * 2;
+                mIds = Arrays.copyOf(mIds, capacity);
+                mChannelIds = Arrays.copyOf(mChannelIds, capacity);
+                mStarts = Arrays.copyOf(mStarts, capacity);
+                mStops = Arrays.copyOf(mStops, capacity);
+                mNextEventIds = Arrays.copyOf(mNextEventIds, capacity);
+                mContentTypes = Arrays.copyOf(mContentTypes, capacity);
+                mAgeRatings = Arrays.copyOf(mAgeRatings, capacity);
+                mSeasonNumbers = Arrays.copyOf(mSeasonNumbers, capacity);
+                mEpisodeNumbers = Arrays.copyOf(mEpisodeNumbers, capacity);
+                mTitles = Arrays.copyOf(mTitles, capacity);
+                mSubtitles = Arrays.copyOf(mSubtitles, capacity);
+                mSummaries = Arrays.copyOf(mSummaries, capacity);
+                mDescriptionOffsets = Arrays.copyOf(mDescriptionOffsets, capacity);
+                mDescriptionLengths = Arrays.copyOf(mDescriptionLengths, capacity);
+            }
+
+            mIds[mSize] = id;
+            return mSize++;
+        }
+
+        private void addDescription(int row, byte[] bytes, int offset, int length) {
+            if (mDescriptionsSize + length > mDescriptions.length) {
+                mDescriptions = Arrays.copyOf(mDescriptions,
+                        Math.max(mDescriptions.length * 2, mDescriptionsSize + length));
+            }
+
+            System.arraycopy(bytes, offset, mDescriptions, mDescriptionsSize, length);
+            mDescriptionOffsets[row] = mDescriptionsSize;
+            mDescriptionLengths[row] = length;
+            mDescriptionsSize += length;
+        }
+
+        private int intern(String value) {
+            if (value == null) {
+                return -1;
+            }
+
+            Integer index = mStringIndexes.get(value);
+            if (index == null) {
+                index = mStrings.size();
+                mStringIndexes.put(value, index);
+                mStrings.add(value);
+            }
+
+            return index;
+        }
+
+        private Columns buildColumns() {
+            // Sort by id, then by the order rows were added in, so the last row for an id wins
+            final long[] order = new long[mSize];
+            for (int row = 0; row < mSize; row++) {
+                order[row] = (mIds[row] << 31) | row;
+            }
+            Arrays.sort(order);
+
+            final int[] rows = new int[mSize];
+            int count = 0;
+            long descriptionsSize = 0;
+
+            for (int i = 0; i < mSize; i++) {
+                final int row = (int) (order[i] & Integer.MAX_VALUE);
+
+                if (i + 1 < mSize && (order[i + 1] >>> 31) == mIds[row]) {
+                    // Superseded by a later row
+                    continue;
+                }
+
+                if (!mDeleted.get(row)) {
+                    rows[count++] = row;
+                    descriptionsSize += Math.max(0, mDescriptionLengths[row]);
+                }
+            }
+
+            // Only keep strings and descriptions which are still in use
+            final int[] stringIndexes = new int[mStrings.size()];
+            Arrays.fill(stringIndexes, -1);
+            final List<String> strings = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                final int row = rows[i];
+                mTitles[row] = remap(mTitles[row], stringIndexes, strings);
+                mSubtitles[row] = remap(mSubtitles[row], stringIndexes, strings);
+                mSummaries[row] = remap(mSummaries[row], stringIndexes, strings);
+            }
+
+            final Columns columns = new Columns(count, strings.toArray(new String[strings.size()]),
+                    new byte[(int) descriptionsSize]);
+            int descriptionOffset = 0;
+
+            for (int i = 0; i < count; i++) {
+                final int row = rows[i];
+
+                columns.mIds[i] = mIds[row];
+                columns.mChannelIds[i] = mChannelIds[row];
+                columns.mStarts[i] = mStarts[row];
+                columns.mStops[i] = mStops[row];
+                columns.mNextEventIds[i] = mNextEventIds[row];
+                columns.mContentTypes[i] = mContentTypes[row];
+                columns.mAgeRatings[i] = mAgeRatings[row];
+                columns.mSeasonNumbers[i] = mSeasonNumbers[row];
+                columns.mEpisodeNumbers[i] = mEpisodeNumbers[row];
+                columns.mTitles[i] = mTitles[row];
+                columns.mSubtitles[i] = mSubtitles[row];
+                columns.mSummaries[i] = mSummaries[row];
+
+                final int length = mDescriptionLengths[row];
+                if (length >= 0) {
+                    System.arraycopy(mDescriptions, mDescriptionOffsets[row], columns.mDescriptions, descriptionOffset, length);
+                    columns.mDescriptionOffsets[i] = descriptionOffset;
+                    descriptionOffset += length;
+                }
+                columns.mDescriptionLengths[i] = length;
+            }
+
+            return columns;
+        }
+
+        private int remap(int index, int[] stringIndexes, List<String> strings) {
+            if (index < 0) {
+                return index;
+            }
+
+            if (stringIndexes[index] == -1) {
+                stringIndexes[index] = strings.size();
+                strings.add(mStrings.get(index));
+            }
+
+            return stringIndexes[index];
+        }
+    }
+
+    /**
+     * Applies changes to an EventTable, sharing the base columns until they need rebuilding
+     */
+    static class Builder {
+        private Columns mBase;
+        private PersistentLongMap.Builder<Event> mOverlay;
+        private int mSize;
+
+        Builder() {
+            this(EMPTY);
+        }
+
+        private Builder(EventTable base) {
+            mBase = base.mBase;
+            mOverlay = base.mOverlay.toBuilder();
+            mSize = base.mSize;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        Event get(long id) {
+            final Event event = mOverlay.get(id);
+
+            if (event != null) {
+                return event != DELETED ? event : null;
+            }
+
+            final int row = mBase.find(id);
+            return row >= 0 ? mBase.getEvent(row) : null;
+        }
+
+        boolean containsKey(long id) {
+            final Event event = mOverlay.get(id);
+
+            if (event != null) {
+                return event != DELETED;
+            }
+
+            return mBase.find(id) >= 0;
+        }
+
+        void put(long id, @NonNull Event event) {
+            if (!containsKey(id)) {
+                mSize += 1;
+            }
+
+            mOverlay.put(id, event);
+        }
+
+        void remove(long id) {
+            if (!containsKey(id)) {
+                return;
+            }
+
+            if (mBase.find(id) >= 0) {
+                mOverlay.put(id, DELETED);
+            } else {
+                mOverlay.remove(id);
+            }
+
+            mSize -= 1;
+        }
+
+        /**
+         * Builds the table, folding the changes into new base columns if there are enough of them
+         */
+        @NonNull
+        EventTable build() {
+            if (mOverlay.size() > Math.max(MIN_COMPACT_SIZE, mBase.mIds.length / 4)) {
+                compact();
+            }
+
+            return new EventTable(mBase, mOverlay.build(), mSize);
+        }
+
+        private void compact() {
+            final PersistentLongMap<Event> overlay = mOverlay.build();
+            final Loader loader = new Loader(mSize);
+
+            for (int row = 0; row < mBase.mIds.length; row++) {
+                if (!overlay.containsKey(mBase.mIds[row])) {
+                    loader.addRow(mBase, row);
+                }
+            }
+
+            for (Event event : overlay.values()) {
+                if (event != DELETED) {
+                    loader.add(event);
+                }
+            }
+
+            mBase = loader.buildColumns();
+            mOverlay = new PersistentLongMap.Builder<>();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * Helpers for reading HtspMessage fields into compact records
+ */
+final class MessageFields {
+    static final long[] EMPTY_LONGS = new long[0];
+
+    private MessageFields() {
+    }
+
+    static long[] getLongArray(@NonNull HtspMessage message, @NonNull String key, long[] fallback) {
+        if (!message.containsKey(key)) {
+            return fallback;
+        }
+
+        final List<?> list = message.getArrayList(key);
+        final long[] values = new long[list.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ((Number) list.get(i)).longValue();
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Persists a MetadataStore's records to disk, so they're available before the connection is up
+ *
+ * The file is a 20 byte header (magic, format version, the time of the last change written and
+ * flags, e.g. whether the events are the complete EPG) followed by a log of records, each being
+ * a put or a delete of a single channel, tag, event or recording. A full snapshot is simply a
+ * log of puts, and changes after that are appended to the end, so keeping the file up to date
+ * never means rewriting it. Loading maps the file and replays the log, the last record for any
+ * id wins. Once enough has been appended the file is rewritten as a fresh snapshot.
+ *
+ * A record torn by a crash part way through an append is dropped, along with anything after it,
+ * and the file is truncated back to the last good record before anything else is appended.
+ */
+class MetadataCache {
+    private static final String TAG = MetadataCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x4854534d; // "HTSM"
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 20;
+    private static final int LAST_UPDATE_OFFSET = 8;
+
+    private static final int FLAG_EPG_COMPLETE = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    static final byte TYPE_CHANNEL = 1;
+    static final byte TYPE_CHANNEL_TAG = 2;
+    static final byte TYPE_EVENT = 3;
+    static final byte TYPE_DVR_ENTRY = 4;
+
+    private static final byte OP_PUT = 0;
+    private static final byte OP_DELETE = 1;
+
+    /**
+     * A single put or delete, to be appended to the cache
+     */
+    static class Change {
+        final byte mType;
+        final long mId;
+        final Object mRecord;
+
+        /**
+         * @param record The new version of the record, or null if it was deleted
+         */
+        Change(byte type, long id, Object record) {
+            mType = type;
+            mId = id;
+            mRecord = record;
+        }
+    }
+
+    /**
+     * Everything read back from the cache file
+     */
+    static class Contents {
+        final PersistentLongMap<Channel> mChannels;
+        final PersistentLongMap<ChannelTag> mChannelTags;
+        final EventTable mEvents;
+        final PersistentLongMap<DvrEntry> mDvrEntries;
+        final long mLastUpdate;
+        final boolean mEpgComplete;
+
+        Contents(PersistentLongMap<Channel> channels, PersistentLongMap<ChannelTag> channelTags,
+                 EventTable events, PersistentLongMap<DvrEntry> dvrEntries,
+                 long lastUpdate, boolean epgComplete) {
+            mChannels = channels;
+            mChannelTags = channelTags;
+            mEvents = events;
+            mDvrEntries = dvrEntries;
+            mLastUpdate = lastUpdate;
+            mEpgComplete = epgComplete;
+        }
+    }
+
+    private final File mFile;
+
+    // Only touched from the thread writing to the cache
+    private long mValidLength = -1;
+    private int mAppendedRecords = 0;
+
+    MetadataCache(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return The number of records appended since the file was last written in full
+     */
+    int getAppendedRecords() {
+        return mAppendedRecords;
+    }
+
+    /**
+     * Reads the cache file back
+     *
+     * @return The cached records, or null if there is no usable cache
+     */
+    Contents load() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        final long startTime = System.currentTimeMillis();
+
+        final ByteBuffer buffer;
+        try {
+            buffer = map(mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map metadata cache " + mFile, e);
+            return null;
+        }
+
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            Log.w(TAG, "Ignoring metadata cache " + mFile + " with an unknown format");
+            return null;
+        }
+
+        final long lastUpdate = buffer.getLong();
+        final int flags = buffer.getInt();
+
+        PersistentLongMap.Builder<Channel> channels = new PersistentLongMap.Builder<>();
+        PersistentLongMap.Builder<ChannelTag> channelTags = new PersistentLongMap.Builder<>();
+        EventTable.Loader events = new EventTable.Loader(0);
+        PersistentLongMap.Builder<DvrEntry> dvrEntries = new PersistentLongMap.Builder<>();
+        int records = 0;
+
+        while (buffer.hasRemaining()) {
+            final int recordStart = buffer.position();
+
+            try {
+                final byte type = buffer.get();
+                final byte op = buffer.get();
+                final long id = buffer.getLong();
+                final int length = buffer.getInt();
+
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+
+                final int recordEnd = buffer.position() + length;
+
+                Object record = null;
+                if (op == OP_PUT) {
+                    record = readRecord(buffer, type, id);
+                } else if (op != OP_DELETE) {
+                    throw new IllegalArgumentException("Unknown record op " + op);
+                }
+
+                if (buffer.position() != recordEnd) {
+                    throw new IllegalArgumentException("Record length mismatch");
+                }
+
+                switch (type) {
+                    case TYPE_CHANNEL:
+                        applyRecord(channels, id, (Channel) record);
+                        break;
+                    case TYPE_CHANNEL_TAG:
+                        applyRecord(channelTags, id, (ChannelTag) record);
+                        break;
+                    case TYPE_EVENT:
+                        if (record != null) {
+                            events.add((Event) record);
+                        } else {
+                            events.addDeleted(id);
+                        }
+                        break;
+                    case TYPE_DVR_ENTRY:
+                        applyRecord(dvrEntries, id, (DvrEntry) record);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown record type " + type);
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                Log.w(TAG, "Metadata cache truncated at offset " + recordStart + ": " + e.getMessage());
+                buffer.position(recordStart);
+                break;
+            }
+
+            records += 1;
+        }
+
+        mValidLength = buffer.position();
+        mAppendedRecords = records;
+
+        Log.i(TAG, "Loaded " + records + " metadata records from cache in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+
+        return new Contents(channels.build(), channelTags.build(), events.build(),
+                dvrEntries.build(), lastUpdate, (flags & FLAG_EPG_COMPLETE) != 0);
+    }
+
+    /**
+     * Replaces the cache file with a snapshot of everything in the store
+     *
+     * @param lastUpdate Time of the most recent change included, in seconds since the epoch
+     * @param epgComplete Whether the snapshot's events are the server's complete EPG, only then
+     *                    can changes since lastUpdate be asked for
+     */
+    void write(@NonNull MetadataSnapshot snapshot, long lastUpdate, boolean epgComplete) throws IOException {
+        final File tempFile = new File(mFile.getPath() + TEMP_SUFFIX);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(lastUpdate);
+            out.writeInt(epgComplete ? FLAG_EPG_COMPLETE : 0);
+
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+            for (Channel channel : snapshot.getChannels().values()) {
+                writeRecord(out, payload, new Change(TYPE_CHANNEL, channel.getId(), channel));
+            }
+            for (ChannelTag channelTag : snapshot.getChannelTags().values()) {
+                writeRecord(out, payload, new Change(TYPE_CHANNEL_TAG, channelTag.getId(), channelTag));
+            }
+            for (Event event : snapshot.getEvents().values()) {
+                writeRecord(out, payload, new Change(TYPE_EVENT, event.getId(), event));
+            }
+            for (DvrEntry dvrEntry : snapshot.getDvrEntries().values()) {
+                writeRecord(out, payload, new Change(TYPE_DVR_ENTRY, dvrEntry.getId(), dvrEntry));
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile);
+        }
+
+        mValidLength = mFile.length();
+        mAppendedRecords = 0;
+    }
+
+    /**
+     * Appends changes to the end of the cache file. Without a full snapshot to append to, e.g.
+     * after the file was deleted, the changes are dropped until the next write(). The flags
+     * written by it are kept.
+     *
+     * @param lastUpdate Time of the most recent change included, in seconds since the epoch
+     */
+    void append(@NonNull List<Change> changes, long lastUpdate) throws IOException {
+        if (mValidLength < HEADER_SIZE) {
+            return;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        for (Change change : changes) {
+            writeRecord(out, payload, change);
+        }
+        out.flush();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            if (randomAccessFile.length() != mValidLength) {
+                // Drop a torn record left behind by an earlier crash
+                randomAccessFile.setLength(mValidLength);
+            }
+
+            // Records first, then the header. If we die in between, the header is merely older
+            // than it needs to be and we'll be sent a few more changes than necessary next time.
+            final long end = randomAccessFile.length();
+            randomAccessFile.seek(end);
+            randomAccessFile.write(bytes.toByteArray());
+            randomAccessFile.seek(LAST_UPDATE_OFFSET);
+            randomAccessFile.writeLong(lastUpdate);
+
+            mValidLength = end + bytes.size();
+        } finally {
+            randomAccessFile.close();
+        }
+
+        mAppendedRecords += changes.size();
+    }
+
+    void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Failed to delete metadata cache " + mFile);
+        }
+        mValidLength = -1;
+        mAppendedRecords = 0;
+    }
+
+    // Internal Methods
+    private static <V> void applyRecord(PersistentLongMap.Builder<V> builder, long id, V record) {
+        if (record != null) {
+            builder.put(id, record);
+        } else {
+            builder.remove(id);
+        }
+    }
+
+    private static Object readRecord(ByteBuffer buffer, byte type, long id) {
+        switch (type) {
+            case TYPE_CHANNEL:
+                return readChannel(buffer, id);
+            case TYPE_CHANNEL_TAG:
+                return readChannelTag(buffer, id);
+            case TYPE_EVENT:
+                return readEvent(buffer, id);
+            case TYPE_DVR_ENTRY:
+                return readDvrEntry(buffer, id);
+            default:
+                throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream payload, Change change) throws IOException {
+        payload.reset();
+
+        if (change.mRecord != null) {
+            final DataOutputStream payloadOut = new DataOutputStream(payload);
+
+            switch (change.mType) {
+                case TYPE_CHANNEL:
+                    writeChannel(payloadOut, (Channel) change.mRecord);
+                    break;
+                case TYPE_CHANNEL_TAG:
+                    writeChannelTag(payloadOut, (ChannelTag) change.mRecord);
+                    break;
+                case TYPE_EVENT:
+                    writeEvent(payloadOut, (Event) change.mRecord);
+                    break;
+                case TYPE_DVR_ENTRY:
+                    writeDvrEntry(payloadOut, (DvrEntry) change.mRecord);
+                    break;
+            }
+
+            payloadOut.flush();
+        }
+
+        out.writeByte(change.mType);
+        out.writeByte(change.mRecord != null ? OP_PUT : OP_DELETE);
+        out.writeLong(change.mId);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    private static void writeChannel(DataOutputStream out, Channel channel) throws IOException {
+        out.writeInt(channel.getNumber());
+        out.writeInt(channel.getNumberMinor());
+        writeString(out, channel.getName());
+        writeString(out, channel.getIcon());
+        out.writeLong(channel.getEventId());
+        out.writeLong(channel.getNextEventId());
+        writeLongs(out, channel.getTagIds());
+        out.writeInt(channel.getServiceTypes().length);
+        for (String serviceType : channel.getServiceTypes()) {
+            writeString(out, serviceType);
+        }
+        out.writeBoolean(channel.isEncrypted());
+    }
+
+    private static Channel readChannel(ByteBuffer buffer, long id) {
+        final int number = buffer.getInt();
+        final int numberMinor = buffer.getInt();
+        final String name = readString(buffer);
+        final String icon = readString(buffer);
+        final long eventId = buffer.getLong();
+        final long nextEventId = buffer.getLong();
+        final long[] tagIds = readLongs(buffer);
+
+        final int serviceCount = buffer.getInt();
+        if (serviceCount < 0 || serviceCount > buffer.remaining() / 4) {
+            throw new IllegalArgumentException("Bad service count " + serviceCount);
+        }
+
+        final String[] serviceTypes = new String[serviceCount];
+        for (int i = 0; i < serviceCount; i++) {
+            serviceTypes[i] = readString(buffer);
+        }
+
+        return new Channel(id, number, numberMinor, name, icon, eventId, nextEventId, tagIds,
+                serviceTypes, buffer.get() != 0);
+    }
+
+    private static void writeChannelTag(DataOutputStream out, ChannelTag channelTag) throws IOException {
+        writeString(out, channelTag.getName());
+        out.writeInt(channelTag.getIndex());
+        writeString(out, channelTag.getIcon());
+        writeLongs(out, channelTag.getChannelIds());
+    }
+
+    private static ChannelTag readChannelTag(ByteBuffer buffer, long id) {
+        return new ChannelTag(id, readString(buffer), buffer.getInt(), readString(buffer),
+                readLongs(buffer));
+    }
+
+    private static void writeEvent(DataOutputStream out, Event event) throws IOException {
+        out.writeLong(event.getChannelId());
+        out.writeLong(event.getStart());
+        out.writeLong(event.getStop());
+        writeString(out, event.getTitle());
+        writeString(out, event.getSubtitle());
+        writeString(out, event.getSummary());
+        writeString(out, event.getDescription());
+        out.writeInt(event.getContentType());
+        out.writeInt(event.getAgeRating());
+        out.writeInt(event.getSeasonNumber());
+        out.writeInt(event.getEpisodeNumber());
+        out.writeLong(event.getNextEventId());
+    }
+
+    private static Event readEvent(ByteBuffer buffer, long id) {
+        return new Event(id, buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                readString(buffer), readString(buffer), readString(buffer), readString(buffer),
+                buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getLong());
+    }
+
+    private static void writeDvrEntry(DataOutputStream out, DvrEntry dvrEntry) throws IOException {
+        out.writeLong(dvrEntry.getChannelId());
+        out.writeLong(dvrEntry.getEventId());
+        out.writeLong(dvrEntry.getStart());
+        out.writeLong(dvrEntry.getStop());
+        writeString(out, dvrEntry.getTitle());
+        writeString(out, dvrEntry.getSubtitle());
+        writeString(out, dvrEntry.getDescription());
+        writeString(out, dvrEntry.getState());
+        writeString(out, dvrEntry.getError());
+    }
+
+    private static DvrEntry readDvrEntry(ByteBuffer buffer, long id) {
+        return new DvrEntry(id, buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                buffer.getLong(), readString(buffer), readString(buffer), readString(buffer),
+                readString(buffer), readString(buffer));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+
+        if (length == 0) {
+            return MessageFields.EMPTY_LONGS;
+        } else if (length < 0 || length > buffer.remaining() / 8) {
+            throw new IllegalArgumentException("Bad array length " + length);
+        }
+
+        final long[] values = new long[length];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + length * 8);
+        return values;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
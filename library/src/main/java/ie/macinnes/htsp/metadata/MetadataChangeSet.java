@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+import android.util.LongSparseArray;
+
+/**
+ * A batch of changes published by a MetadataStore, see MetadataStore.Listener
+ *
+ * Changes to the same record within a batch are merged, so each id appears once, as either
+ * changed (added or updated) or removed, according to the last message about it.
+ */
+public class MetadataChangeSet {
+    private static final int TYPE_COUNT = 5;
+
+    private final MetadataSnapshot mSnapshot;
+    private final long[][] mChanged;
+    private final long[][] mRemoved;
+    private final int mUpdateCount;
+
+    private MetadataChangeSet(@NonNull MetadataSnapshot snapshot, @NonNull long[][] changed,
+                              @NonNull long[][] removed, int updateCount) {
+        mSnapshot = snapshot;
+        mChanged = changed;
+        mRemoved = removed;
+        mUpdateCount = updateCount;
+    }
+
+    /**
+     * @return A snapshot which includes every change in the set
+     */
+    @NonNull
+    public MetadataSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    @NonNull
+    public long[] getChangedChannelIds() {
+        return mChanged[MetadataCache.TYPE_CHANNEL];
+    }
+
+    @NonNull
+    public long[] getRemovedChannelIds() {
+        return mRemoved[MetadataCache.TYPE_CHANNEL];
+    }
+
+    @NonNull
+    public long[] getChangedChannelTagIds() {
+        return mChanged[MetadataCache.TYPE_CHANNEL_TAG];
+    }
+
+    @NonNull
+    public long[] getRemovedChannelTagIds() {
+        return mRemoved[MetadataCache.TYPE_CHANNEL_TAG];
+    }
+
+    @NonNull
+    public long[] getChangedEventIds() {
+        return mChanged[MetadataCache.TYPE_EVENT];
+    }
+
+    @NonNull
+    public long[] getRemovedEventIds() {
+        return mRemoved[MetadataCache.TYPE_EVENT];
+    }
+
+    @NonNull
+    public long[] getChangedDvrEntryIds() {
+        return mChanged[MetadataCache.TYPE_DVR_ENTRY];
+    }
+
+    @NonNull
+    public long[] getRemovedDvrEntryIds() {
+        return mRemoved[MetadataCache.TYPE_DVR_ENTRY];
+    }
+
+    /**
+     * @return The number of records changed or removed
+     */
+    public int size() {
+        int size = 0;
+
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            size += mChanged[type].length + mRemoved[type].length;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The number of add, update and delete messages merged into this set
+     */
+    public int getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * Merges changes as they arrive
+     */
+    static class Builder {
+        // Per type, true for changed and false for removed
+        private final LongSparseArray<Boolean>[] mRecords;
+        private int mUpdateCount = 0;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Builder() {
+            mRecords = new LongSparseArray[TYPE_COUNT];
+
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                mRecords[type] = new LongSparseArray<>();
+            }
+        }
+
+        /**
+         * @param type One of the MetadataCache.TYPE_ constants
+         */
+        void put(byte type, long id, boolean removed) {
+            mRecords[type].put(id, !removed);
+            mUpdateCount += 1;
+        }
+
+        boolean isEmpty() {
+            return mUpdateCount == 0;
+        }
+
+        @NonNull
+        MetadataChangeSet build(@NonNull MetadataSnapshot snapshot) {
+            final long[][] changed = new long[TYPE_COUNT][];
+            final long[][] removed = new long[TYPE_COUNT][];
+
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                final LongSparseArray<Boolean> records = mRecords[type];
+
+                int changedCount = 0;
+                for (int i = 0; i < records.size(); i++) {
+                    if (records.valueAt(i)) {
+                        changedCount += 1;
+                    }
+                }
+
+                changed[type] = new long[changedCount];
+                removed[type] = new long[records.size() - changedCount];
+
+                int changedIndex = 0;
+                int removedIndex = 0;
+                for (int i = 0; i < records.size(); i++) {
+                    if (records.valueAt(i)) {
+                        changed[type][changedIndex++] = records.keyAt(i);
+                    } else {
+                        removed[type][removedIndex++] = records.keyAt(i);
+                    }
+                }
+            }
+
+            return new MetadataChangeSet(snapshot, changed, removed, mUpdateCount);
+        }
+    }
+}
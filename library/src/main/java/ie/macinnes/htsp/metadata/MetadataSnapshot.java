@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable, consistent, view of everything in a MetadataStore at one point in time
+ */
+public class MetadataSnapshot {
+    static final MetadataSnapshot EMPTY = new MetadataSnapshot(
+            PersistentLongMap.<Channel>empty(), PersistentLongMap.<ChannelTag>empty(),
+            EventTable.EMPTY, PersistentLongMap.<DvrEntry>empty(),
+            EpgIndex.EMPTY, ChannelFilterIndex.EMPTY, false, false, 0);
+
+    private final PersistentLongMap<Channel> mChannels;
+    private final PersistentLongMap<ChannelTag> mChannelTags;
+    private final EventTable mEvents;
+    private final PersistentLongMap<DvrEntry> mDvrEntries;
+    private final EpgIndex mEpgIndex;
+    private final ChannelFilterIndex mChannelFilterIndex;
+    private final boolean mInitialSyncCompleted;
+    private final boolean mFromCache;
+    private final long mVersion;
+
+    MetadataSnapshot(@NonNull PersistentLongMap<Channel> channels,
+                     @NonNull PersistentLongMap<ChannelTag> channelTags,
+                     @NonNull EventTable events,
+                     @NonNull PersistentLongMap<DvrEntry> dvrEntries,
+                     @NonNull EpgIndex epgIndex,
+                     @NonNull ChannelFilterIndex channelFilterIndex,
+                     boolean initialSyncCompleted, boolean fromCache, long version) {
+        mChannels = channels;
+        mChannelTags = channelTags;
+        mEvents = events;
+        mDvrEntries = dvrEntries;
+        mEpgIndex = epgIndex;
+        mChannelFilterIndex = channelFilterIndex;
+        mInitialSyncCompleted = initialSyncCompleted;
+        mFromCache = fromCache;
+        mVersion = version;
+    }
+
+    @NonNull
+    public PersistentLongMap<Channel> getChannels() {
+        return mChannels;
+    }
+
+    @NonNull
+    public PersistentLongMap<ChannelTag> getChannelTags() {
+        return mChannelTags;
+    }
+
+    @NonNull
+    public EventTable getEvents() {
+        return mEvents;
+    }
+
+    @NonNull
+    public PersistentLongMap<DvrEntry> getDvrEntries() {
+        return mDvrEntries;
+    }
+
+    /**
+     * @return An index of the events by channel and time
+     */
+    @NonNull
+    public EpgIndex getEpgIndex() {
+        return mEpgIndex;
+    }
+
+    /**
+     * @return An index of the channels by tag and attribute, see ChannelFilterIndex.Filter
+     */
+    @NonNull
+    public ChannelFilterIndex getChannelFilterIndex() {
+        return mChannelFilterIndex;
+    }
+
+    /**
+     * @param time Seconds since the epoch
+     * @return The event airing on the channel at time, or null
+     */
+    public Event getEventAt(long channelId, long time) {
+        return mEvents.get(mEpgIndex.getEventIdAt(channelId, time));
+    }
+
+    /**
+     * @param time Seconds since the epoch
+     * @return The first event starting on the channel after time, or null
+     */
+    public Event getNextEvent(long channelId, long time) {
+        return mEvents.get(mEpgIndex.getNextEventId(channelId, time));
+    }
+
+    /**
+     * @param from Seconds since the epoch
+     * @param to Seconds since the epoch
+     * @return The events airing on the channel at any point in [from, to), in start time order
+     */
+    @NonNull
+    public List<Event> getEvents(long channelId, long from, long to) {
+        final long[] eventIds = mEpgIndex.getEventIds(channelId, from, to);
+        final List<Event> events = new ArrayList<>(eventIds.length);
+
+        for (long eventId : eventIds) {
+            events.add(mEvents.get(eventId));
+        }
+
+        return events;
+    }
+
+    /**
+     * @return true once TVHeadend has sent everything it has, before that the snapshot may be
+     * missing records
+     */
+    public boolean isInitialSyncCompleted() {
+        return mInitialSyncCompleted;
+    }
+
+    /**
+     * @return true if this snapshot was loaded from the on-disk cache and hasn't been brought up
+     * to date with TVHeadend yet, it may contain records which have since changed or gone
+     */
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    /**
+     * @return A number that increases with every change published by the store
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+}
@@ -0,0 +1,809 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.metrics.Counter;
+import ie.macinnes.htsp.metrics.Histogram;
+import ie.macinnes.htsp.metrics.MetricsRegistry;
+import ie.macinnes.htsp.tasks.Authenticator;
+
+/**
+ * Keeps a typed model of TVHeadend's channels, tags, EPG events and recordings
+ *
+ * Once authenticated, the store sends enableAsyncMetadata and applies the add, update and delete
+ * messages that follow to compact, immutable, records held in PersistentLongMaps, or for EPG
+ * events, a columnar EventTable.
+ *
+ * Readers call getSnapshot() and get a consistent view they can use for as long as they like,
+ * with no locking, while the dispatcher thread carries on applying changes. During the initial
+ * sync changes are accumulated in builders and published as a single snapshot once TVHeadend
+ * signals the sync is complete, so readers never see a half synced state after a reconnect.
+ *
+ * Register the MetadataStore as an Authenticator.Listener, it (re)starts the sync each time the
+ * connection is authenticated. Remove it again along with calling stop().
+ *
+ * Given a cache file, the store is persisted to disk and loaded back when it is created, so the
+ * channel list can be shown before the connection is even up (see MetadataSnapshot.isFromCache).
+ * Once it has a complete set of EPG events, from the cache or an earlier sync, it asks TVHeadend
+ * to only send events which changed since then. Channels, tags and recordings are always sent in
+ * full. TVHeadend doesn't tell us about events deleted in the meantime, so cached events are
+ * dropped once they've finished airing instead. Use a separate cache file for each server.
+ *
+ * A full text index of the events is maintained on a background thread, see search(). Building it
+ * after a sync is too slow to do on the dispatcher thread, so it may lag slightly behind the
+ * snapshot.
+ *
+ * Listeners aren't told about individual messages. Changes are merged over a short window and
+ * sent as one MetadataChangeSet, and an initial sync, however many messages it took, is a single
+ * onInitialSyncCompleted() call.
+ */
+public class MetadataStore implements HtspMessage.Listener, Authenticator.Listener {
+    private static final String TAG = MetadataStore.class.getSimpleName();
+
+    private static final Set<String> HANDLED_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "channelAdd", "channelUpdate", "channelDelete",
+            "tagAdd", "tagUpdate", "tagDelete",
+            "eventAdd", "eventUpdate", "eventDelete",
+            "dvrEntryAdd", "dvrEntryUpdate", "dvrEntryDelete",
+            "initialSyncCompleted",
+    }));
+
+    // Allow for the server's clock being ahead of ours when asking for changes since lastUpdate
+    private static final long LAST_UPDATE_MARGIN = 10 * 60; // seconds
+    private static final int MIN_COMPACT_RECORDS = 1000;
+    private static final long DEFAULT_CHANGE_WINDOW = 250; // milliseconds
+
+    /**
+     * A listener for batches of metadata changes
+     */
+    public interface Listener {
+        /**
+         * Returns the Handler on which to execute the callback.
+         *
+         * @return Handler, or null to be called on the store's background thread
+         */
+        Handler getHandler();
+
+        /**
+         * Called with the changes made since the last call, once the change window has passed
+         * since the first of them. Not called for changes made during an initial sync.
+         */
+        void onMetadataChanged(@NonNull MetadataChangeSet changes);
+
+        /**
+         * Called once an initial sync has completed, after which anything may have changed
+         *
+         * @param snapshot The first complete snapshot
+         */
+        void onInitialSyncCompleted(@NonNull MetadataSnapshot snapshot);
+    }
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final boolean mEpg;
+
+    private volatile MetadataSnapshot mSnapshot = MetadataSnapshot.EMPTY;
+    private volatile boolean mResyncRequested = false;
+    private volatile long mLastUpdate = 0;
+    private volatile long mSyncStartTime = 0;
+    private volatile boolean mIncrementalSync = false;
+    // Whether the events are the complete EPG, as of mLastUpdate
+    private volatile boolean mEpgComplete = false;
+
+    // Only touched from the dispatcher thread
+    private boolean mSyncing = false;
+    private long mVersion = 0;
+    private PersistentLongMap.Builder<Channel> mChannels;
+    private PersistentLongMap.Builder<ChannelTag> mChannelTags;
+    private EventTable.Builder mEvents;
+    private PersistentLongMap.Builder<DvrEntry> mDvrEntries;
+    private EpgIndex.Builder mEpgIndex;
+    private ChannelFilterIndex.Builder mChannelFilter;
+    private boolean mChannelsChanged;
+    private boolean mChannelTagsChanged;
+    private boolean mEventsChanged;
+    private boolean mDvrEntriesChanged;
+    private int mSyncUpdateCount;
+
+    private final ScheduledExecutorService mExecutor;
+    private volatile boolean mStopped = false;
+
+    private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
+    private volatile long mChangeWindow = DEFAULT_CHANGE_WINDOW;
+    private final Object mChangeLock = new Object();
+    private MetadataChangeSet.Builder mPendingChangeSet = new MetadataChangeSet.Builder();
+    private boolean mChangeSetScheduled = false;
+
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final Histogram mBatchUpdates = mMetrics.histogram("changes.batch.updates");
+    private final Histogram mBatchRecords = mMetrics.histogram("changes.batch.records");
+    private final Counter mUpdatesCoalesced = mMetrics.counter("changes.coalesced");
+    private final Histogram mSyncUpdates = mMetrics.histogram("changes.sync.updates");
+
+    private volatile EpgSearchIndex mSearchIndex = EpgSearchIndex.EMPTY;
+    private final Object mSearchIndexLock = new Object();
+    private ArrayList<MetadataCache.Change> mPendingSearchChanges = new ArrayList<>();
+    private EventTable mPendingSearchRebuild;
+    private boolean mSearchIndexUpdateScheduled = false;
+    // Only touched from the executor
+    private EpgSearchIndex.Builder mSearchIndexBuilder = new EpgSearchIndex.Builder();
+
+    private final MetadataCache mCache;
+    private final Object mCacheLock = new Object();
+    private ArrayList<MetadataCache.Change> mPendingChanges = new ArrayList<>();
+    private MetadataSnapshot mPendingFullWrite;
+    private long mPendingLastUpdate;
+    private boolean mCacheWriteScheduled = false;
+
+    /**
+     * @param dispatcher The dispatcher to send and receive messages with
+     * @param epg Whether to ask TVHeadend for EPG events too
+     */
+    public MetadataStore(@NonNull HtspMessage.Dispatcher dispatcher, boolean epg) {
+        this(dispatcher, epg, null);
+    }
+
+    /**
+     * Creates a MetadataStore which persists itself to cacheFile. Anything already in the cache
+     * is loaded straight away, so this reads from disk and shouldn't be called on the UI thread.
+     *
+     * @param dispatcher The dispatcher to send and receive messages with
+     * @param epg Whether to ask TVHeadend for EPG events too
+     * @param cacheFile Where to keep the cache, or null to not cache at all
+     */
+    public MetadataStore(@NonNull HtspMessage.Dispatcher dispatcher, boolean epg, File cacheFile) {
+        mDispatcher = dispatcher;
+        mEpg = epg;
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "MetadataStore");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (cacheFile != null) {
+            mCache = new MetadataCache(cacheFile);
+            loadCache();
+        } else {
+            mCache = null;
+        }
+
+        mDispatcher.addMessageListener(this);
+    }
+
+    public void addListener(Listener listener) {
+        if (mListeners.contains(listener)) {
+            Log.w(TAG, "Attempted to add duplicate metadata listener");
+            return;
+        }
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            Log.w(TAG, "Attempted to remove non existing metadata listener");
+            return;
+        }
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Sets how long changes are collected for before they're sent to listeners as one
+     * MetadataChangeSet. Longer windows mean fewer, larger, batches during EPG refreshes.
+     *
+     * @param changeWindow Milliseconds, 250 by default
+     */
+    public void setChangeWindow(long changeWindow) {
+        mChangeWindow = changeWindow;
+    }
+
+    /**
+     * Returns the store's metrics
+     *
+     * Histograms: "changes.batch.updates" and "changes.batch.records", the number of messages
+     * merged into each change set and the number of records in it, and "changes.sync.updates",
+     * the number of messages received during each initial sync.
+     *
+     * Counters: "changes.coalesced", messages which didn't add a record to a change set as an
+     * earlier message in the same window was about the same record.
+     */
+    @NonNull
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return The latest consistent view of the metadata, never null
+     */
+    @NonNull
+    public MetadataSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return The latest full text index of the events, which may lag slightly behind the
+     * snapshot
+     */
+    @NonNull
+    public EpgSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * Searches event titles, subtitles, summaries and descriptions, see EpgSearchIndex
+     *
+     * @return Up to limit matching events from the latest snapshot, best matches first
+     */
+    @NonNull
+    public List<Event> search(@NonNull String query, int limit) {
+        final EventTable events = mSnapshot.getEvents();
+        final long[] eventIds = mSearchIndex.search(query, limit);
+        final List<Event> results = new ArrayList<>(eventIds.length);
+
+        for (long eventId : eventIds) {
+            final Event event = events.get(eventId);
+
+            // The index may not have caught up with a deletion yet
+            if (event != null) {
+                results.add(event);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Stops the store, it no longer follows the connection. Callers registered it with the
+     * Authenticator themselves, and so must also remove it from there, or it is kept alive by it.
+     */
+    public void stop() {
+        mStopped = true;
+        mDispatcher.removeMessageListener(this);
+
+        // Anything already queued is still written out
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    // Authenticator.Listener Methods
+    @Override
+    public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
+        if (mStopped || state != Authenticator.State.AUTHENTICATED) {
+            return;
+        }
+
+        // TVHeadend is about to send everything again, the dispatcher thread will start afresh
+        // rather than keep records that have since gone.
+        mSyncStartTime = System.currentTimeMillis() / 1000;
+        mIncrementalSync = mEpg && mEpgComplete && mLastUpdate > 0;
+        mResyncRequested = true;
+
+        HtspMessage enableAsyncMetadataRequest = new HtspMessage();
+
+        enableAsyncMetadataRequest.put("method", "enableAsyncMetadata");
+
+        if (mEpg) {
+            enableAsyncMetadataRequest.put("epg", 1);
+        }
+
+        if (mIncrementalSync) {
+            enableAsyncMetadataRequest.put("lastUpdate", mLastUpdate - LAST_UPDATE_MARGIN);
+        }
+
+        try {
+            mDispatcher.sendMessage(enableAsyncMetadataRequest);
+        } catch (HtspNotConnectedException e) {
+            // Ignore: If we're not connected, we'll be back here once we are
+        }
+    }
+
+    // HtspMessage.Listener Methods
+    @Override
+    public void onMessage(@NonNull HtspMessage message) {
+        if (mStopped) {
+            // A message already on its way to us when we were removed
+            return;
+        }
+
+        final String method = message.getString("method", null);
+
+        if (!HANDLED_METHODS.contains(method)) {
+            return;
+        }
+
+        if (mResyncRequested) {
+            mResyncRequested = false;
+            startSync();
+        }
+
+        if (mChannels == null) {
+            // Metadata we didn't ask for
+            return;
+        }
+
+        if (mSyncing) {
+            mSyncUpdateCount += 1;
+        }
+
+        MetadataCache.Change change = null;
+
+        switch (method) {
+            case "channelAdd":
+            case "channelUpdate":
+                final long channelId = message.getLong("channelId");
+                final Channel channel = Channel.fromMessage(message, mChannels.get(channelId));
+                mChannels.put(channelId, channel);
+                mChannelFilter.putChannel(channel);
+                mChannelsChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_CHANNEL, channelId, channel);
+                break;
+            case "channelDelete":
+                mChannels.remove(message.getLong("channelId"));
+                mChannelFilter.removeChannel(message.getLong("channelId"));
+                mChannelsChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_CHANNEL, message.getLong("channelId"), null);
+                break;
+            case "tagAdd":
+            case "tagUpdate":
+                final long tagId = message.getLong("tagId");
+                final ChannelTag channelTag = ChannelTag.fromMessage(message, mChannelTags.get(tagId));
+                mChannelTags.put(tagId, channelTag);
+                mChannelFilter.putTag(channelTag);
+                mChannelTagsChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_CHANNEL_TAG, tagId, channelTag);
+                break;
+            case "tagDelete":
+                mChannelTags.remove(message.getLong("tagId"));
+                mChannelFilter.removeTag(message.getLong("tagId"));
+                mChannelTagsChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_CHANNEL_TAG, message.getLong("tagId"), null);
+                break;
+            case "eventAdd":
+            case "eventUpdate":
+                final long eventId = message.getLong("eventId");
+                final Event previousEvent = mEvents.get(eventId);
+                final Event event = Event.fromMessage(message, previousEvent);
+                mEvents.put(eventId, event);
+                mEpgIndex.put(event, previousEvent);
+                mEventsChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_EVENT, eventId, event);
+                break;
+            case "eventDelete":
+                final Event deletedEvent = mEvents.get(message.getLong("eventId"));
+                if (deletedEvent != null) {
+                    mEvents.remove(deletedEvent.getId());
+                    mEpgIndex.remove(deletedEvent);
+                }
+                mEventsChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_EVENT, message.getLong("eventId"), null);
+                break;
+            case "dvrEntryAdd":
+            case "dvrEntryUpdate":
+                final long dvrEntryId = message.getLong("id");
+                final DvrEntry previousDvrEntry = mDvrEntries.get(dvrEntryId);
+                final DvrEntry dvrEntry = DvrEntry.fromMessage(message, previousDvrEntry);
+                mDvrEntries.put(dvrEntryId, dvrEntry);
+                mChannelFilter.putDvrEntry(dvrEntry, previousDvrEntry);
+                mDvrEntriesChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_DVR_ENTRY, dvrEntryId, dvrEntry);
+                break;
+            case "dvrEntryDelete":
+                final DvrEntry deletedDvrEntry = mDvrEntries.get(message.getLong("id"));
+                if (deletedDvrEntry != null) {
+                    mDvrEntries.remove(deletedDvrEntry.getId());
+                    mChannelFilter.removeDvrEntry(deletedDvrEntry);
+                }
+                mDvrEntriesChanged = true;
+                change = new MetadataCache.Change(MetadataCache.TYPE_DVR_ENTRY, message.getLong("id"), null);
+                break;
+            case "initialSyncCompleted":
+                mSyncing = false;
+                publish();
+
+                Log.i(TAG, "Initial sync completed, " + mChannels.size() + " channels, "
+                        + mEvents.size() + " events, ~" + mSnapshot.getEvents().getMemoryPerEvent()
+                        + " bytes per event");
+
+                // Everything changed before the sync started has now been sent to us
+                mEpgComplete = mEpg;
+                mLastUpdate = mSyncStartTime;
+                requestCacheWrite(mSnapshot, mLastUpdate);
+                requestSearchIndexRebuild(mSnapshot.getEvents());
+                notifyInitialSyncCompleted(mSnapshot, mSyncUpdateCount);
+                return;
+        }
+
+        if (!mSyncing) {
+            publish();
+            mLastUpdate = System.currentTimeMillis() / 1000;
+
+            // Changes made during a sync are picked up in one go once it completes
+            recordChange(change);
+        }
+    }
+
+    // Internal Methods
+    private void loadCache() {
+        final MetadataCache.Contents contents = mCache.load();
+
+        if (contents == null) {
+            return;
+        }
+
+        final EventTable.Builder events = contents.mEvents.toBuilder();
+        final EpgIndex.Builder epgIndex = new EpgIndex.Builder();
+
+        for (Event event : contents.mEvents.values()) {
+            epgIndex.put(event, null);
+        }
+        removeFinishedEvents(contents.mEvents, events, epgIndex);
+
+        final ChannelFilterIndex.Builder channelFilter = new ChannelFilterIndex.Builder();
+
+        for (Channel channel : contents.mChannels.values()) {
+            channelFilter.putChannel(channel);
+        }
+        for (ChannelTag channelTag : contents.mChannelTags.values()) {
+            channelFilter.putTag(channelTag);
+        }
+        for (DvrEntry dvrEntry : contents.mDvrEntries.values()) {
+            channelFilter.putDvrEntry(dvrEntry, null);
+        }
+
+        mSnapshot = new MetadataSnapshot(contents.mChannels, contents.mChannelTags,
+                events.build(), contents.mDvrEntries, epgIndex.build(), channelFilter.build(),
+                false, true, 0);
+        mLastUpdate = contents.mLastUpdate;
+        mEpgComplete = contents.mEpgComplete;
+
+        requestSearchIndexRebuild(mSnapshot.getEvents());
+    }
+
+    private void startSync() {
+        Log.i(TAG, "Initial sync started" + (mIncrementalSync ? ", events changed since " + mLastUpdate : ""));
+
+        mChannels = new PersistentLongMap.Builder<>();
+        mChannelTags = new PersistentLongMap.Builder<>();
+        mDvrEntries = new PersistentLongMap.Builder<>();
+        mChannelFilter = new ChannelFilterIndex.Builder();
+
+        if (mIncrementalSync) {
+            // Only changed events will be sent, keep the ones we have
+            mEvents = mSnapshot.getEvents().toBuilder();
+            mEpgIndex = mSnapshot.getEpgIndex().toBuilder();
+            removeFinishedEvents(mSnapshot.getEvents(), mEvents, mEpgIndex);
+        } else {
+            mEvents = new EventTable.Builder();
+            mEpgIndex = new EpgIndex.Builder();
+        }
+
+        mChannelsChanged = true;
+        mChannelTagsChanged = true;
+        mEventsChanged = true;
+        mDvrEntriesChanged = true;
+        mSyncUpdateCount = 0;
+        mSyncing = true;
+    }
+
+    private void publish() {
+        final MetadataSnapshot previous = mSnapshot;
+
+        // Only rebuild what changed, the rest is shared with the previous snapshot
+        mVersion += 1;
+        mSnapshot = new MetadataSnapshot(
+                mChannelsChanged ? mChannels.build() : previous.getChannels(),
+                mChannelTagsChanged ? mChannelTags.build() : previous.getChannelTags(),
+                mEventsChanged ? mEvents.build() : previous.getEvents(),
+                mDvrEntriesChanged ? mDvrEntries.build() : previous.getDvrEntries(),
+                mEventsChanged ? mEpgIndex.build() : previous.getEpgIndex(),
+                mChannelFilter.build(),
+                true, false, mVersion);
+
+        mChannelsChanged = false;
+        mChannelTagsChanged = false;
+        mEventsChanged = false;
+        mDvrEntriesChanged = false;
+    }
+
+    private static void removeFinishedEvents(EventTable events, EventTable.Builder builder,
+                                             EpgIndex.Builder epgIndex) {
+        final long now = System.currentTimeMillis() / 1000;
+
+        for (Event event : events.values()) {
+            if (event.getStop() < now) {
+                builder.remove(event.getId());
+                epgIndex.remove(event);
+            }
+        }
+    }
+
+    /**
+     * Queues a published change for the search index, cache and listeners
+     */
+    private void recordChange(MetadataCache.Change change) {
+        if (change.mType == MetadataCache.TYPE_EVENT) {
+            synchronized (mSearchIndexLock) {
+                mPendingSearchChanges.add(change);
+                scheduleSearchIndexUpdate();
+            }
+        }
+
+        if (mCache != null) {
+            synchronized (mCacheLock) {
+                mPendingChanges.add(change);
+                mPendingLastUpdate = System.currentTimeMillis() / 1000;
+                scheduleCacheWrite();
+            }
+        }
+
+        if (!mListeners.isEmpty()) {
+            synchronized (mChangeLock) {
+                mPendingChangeSet.put(change.mType, change.mId, change.mRecord == null);
+                scheduleChangeSet();
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the executor after delay milliseconds, unless the store was stopped
+     */
+    private void schedule(@NonNull Runnable task, long delay) {
+        try {
+            mExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped while the dispatcher thread was still handling a message
+            Log.d(TAG, "Not running task, the store has been stopped");
+        }
+    }
+
+    private void scheduleChangeSet() {
+        if (mChangeSetScheduled) {
+            return;
+        }
+
+        // Wait out the window, merging everything that arrives in the meantime
+        mChangeSetScheduled = true;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendChangeSet();
+            }
+        }, mChangeWindow);
+    }
+
+    private void sendChangeSet() {
+        final MetadataChangeSet.Builder pending;
+
+        synchronized (mChangeLock) {
+            pending = mPendingChangeSet;
+            mPendingChangeSet = new MetadataChangeSet.Builder();
+            mChangeSetScheduled = false;
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // The snapshot was published before the change was queued, so it includes all of them
+        final MetadataChangeSet changeSet = pending.build(mSnapshot);
+
+        mBatchUpdates.record(changeSet.getUpdateCount());
+        mBatchRecords.record(changeSet.size());
+        mUpdatesCoalesced.add(changeSet.getUpdateCount() - changeSet.size());
+
+        for (final Listener listener : mListeners) {
+            Handler handler = listener.getHandler();
+            if (handler == null) {
+                listener.onMetadataChanged(changeSet);
+            } else {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onMetadataChanged(changeSet);
+                    }
+                });
+            }
+        }
+    }
+
+    private void notifyInitialSyncCompleted(final MetadataSnapshot snapshot, int updateCount) {
+        mSyncUpdates.record(updateCount);
+
+        synchronized (mChangeLock) {
+            // Listeners will reload everything, anything pending from before the sync is moot
+            mPendingChangeSet = new MetadataChangeSet.Builder();
+        }
+
+        // Via the executor, so it's ordered after any change set already being sent
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (final Listener listener : mListeners) {
+                    Handler handler = listener.getHandler();
+                    if (handler == null) {
+                        listener.onInitialSyncCompleted(snapshot);
+                    } else {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onInitialSyncCompleted(snapshot);
+                            }
+                        });
+                    }
+                }
+            }
+        }, 0);
+    }
+
+    private void requestSearchIndexRebuild(EventTable events) {
+        synchronized (mSearchIndexLock) {
+            // Anything still pending is already part of the events
+            mPendingSearchChanges.clear();
+            mPendingSearchRebuild = events;
+            scheduleSearchIndexUpdate();
+        }
+    }
+
+    private void scheduleSearchIndexUpdate() {
+        if (mSearchIndexUpdateScheduled) {
+            return;
+        }
+
+        mSearchIndexUpdateScheduled = true;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                updateSearchIndex();
+            }
+        }, 0);
+    }
+
+    private void updateSearchIndex() {
+        final EventTable rebuild;
+        final ArrayList<MetadataCache.Change> changes;
+
+        synchronized (mSearchIndexLock) {
+            rebuild = mPendingSearchRebuild;
+            changes = mPendingSearchChanges;
+
+            mPendingSearchRebuild = null;
+            mPendingSearchChanges = new ArrayList<>();
+            mSearchIndexUpdateScheduled = false;
+        }
+
+        if (rebuild != null) {
+            final long startTime = System.currentTimeMillis();
+
+            mSearchIndexBuilder = new EpgSearchIndex.Builder();
+            for (Event event : rebuild.values()) {
+                mSearchIndexBuilder.put(event);
+            }
+            mSearchIndex = mSearchIndexBuilder.build();
+
+            Log.i(TAG, "Built search index of " + rebuild.size() + " events in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+
+        for (MetadataCache.Change change : changes) {
+            if (change.mRecord != null) {
+                mSearchIndexBuilder.put((Event) change.mRecord);
+            } else {
+                mSearchIndexBuilder.remove(change.mId);
+            }
+        }
+
+        if (!changes.isEmpty()) {
+            mSearchIndex = mSearchIndexBuilder.build();
+        }
+    }
+
+    private void requestCacheWrite(MetadataSnapshot snapshot, long lastUpdate) {
+        if (mCache == null) {
+            return;
+        }
+
+        synchronized (mCacheLock) {
+            // Anything still pending is already part of the snapshot
+            mPendingChanges.clear();
+            mPendingFullWrite = snapshot;
+            mPendingLastUpdate = lastUpdate;
+            scheduleCacheWrite();
+        }
+    }
+
+    private void scheduleCacheWrite() {
+        if (mCacheWriteScheduled) {
+            return;
+        }
+
+        mCacheWriteScheduled = true;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                writeCache();
+            }
+        }, 0);
+    }
+
+    private void writeCache() {
+        final MetadataSnapshot fullWrite;
+        final ArrayList<MetadataCache.Change> changes;
+        final long lastUpdate;
+
+        // Take everything queued up so far in one go, changes arriving while we write are
+        // picked up by the next run
+        synchronized (mCacheLock) {
+            fullWrite = mPendingFullWrite;
+            changes = mPendingChanges;
+            lastUpdate = mPendingLastUpdate;
+
+            mPendingFullWrite = null;
+            mPendingChanges = new ArrayList<>();
+            mCacheWriteScheduled = false;
+        }
+
+        try {
+            if (fullWrite != null) {
+                mCache.write(fullWrite, lastUpdate, mEpgComplete);
+            }
+
+            if (!changes.isEmpty()) {
+                mCache.append(changes, lastUpdate);
+            }
+
+            // Rewrite the file once it's mostly changes, so it doesn't grow forever. Any changes
+            // queued since are in this snapshot already, appending them again later is harmless.
+            final MetadataSnapshot snapshot = mSnapshot;
+            final int records = snapshot.getChannels().size() + snapshot.getChannelTags().size()
+                    + snapshot.getEvents().size() + snapshot.getDvrEntries().size();
+
+            if (mCache.getAppendedRecords() > Math.max(MIN_COMPACT_RECORDS, records)) {
+                mCache.write(snapshot, lastUpdate, mEpgComplete);
+            }
+        } catch (IOException e) {
+            // Better to sync in full next time than to start from a cache we couldn't update
+            Log.w(TAG, "Failed to write metadata cache, discarding it", e);
+            mCache.delete();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable map of long keys to values, cheap to copy with changes
+ *
+ * Entries are spread over a power of two number of buckets, each an immutable pair of arrays
+ * holding keys in sorted order. A modified copy shares every bucket it doesn't touch, so a single
+ * put or remove costs one bucket copy plus the bucket table, not a copy of the whole map. Readers
+ * need no locking, a map never changes once built.
+ *
+ * Many changes at once, e.g. during an initial sync, should go through a Builder, which only
+ * copies each bucket the first time it touches it.
+ */
+public class PersistentLongMap<V> {
+    private static final int MIN_BUCKET_BITS = 4;
+    private static final int MAX_BUCKET_SIZE = 64;
+
+    private static final long[] EMPTY_KEYS = new long[0];
+    private static final Object[] EMPTY_VALUES = new Object[0];
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentLongMap EMPTY = new PersistentLongMap(newBuckets(MIN_BUCKET_BITS), MIN_BUCKET_BITS, 0);
+
+    private final Bucket[] mBuckets;
+    private final int mBucketBits;
+    private final int mSize;
+
+    private static class Bucket {
+        final long[] mKeys;
+        final Object[] mValues;
+
+        Bucket(long[] keys, Object[] values) {
+            mKeys = keys;
+            mValues = values;
+        }
+    }
+
+    private PersistentLongMap(Bucket[] buckets, int bucketBits, int size) {
+        mBuckets = buckets;
+        mBucketBits = bucketBits;
+        mSize = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    public static <V> PersistentLongMap<V> empty() {
+        return (PersistentLongMap<V>) EMPTY;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final Bucket bucket = mBuckets[bucketIndex(key, mBucketBits)];
+        final int index = Arrays.binarySearch(bucket.mKeys, key);
+
+        return index >= 0 ? (V) bucket.mValues[index] : null;
+    }
+
+    public boolean containsKey(long key) {
+        return Arrays.binarySearch(mBuckets[bucketIndex(key, mBucketBits)].mKeys, key) >= 0;
+    }
+
+    /**
+     * @return A copy of this map with the given entry added or replaced
+     */
+    @NonNull
+    public PersistentLongMap<V> put(long key, @NonNull V value) {
+        return new Builder<>(this).put(key, value).build();
+    }
+
+    /**
+     * @return A copy of this map without the given key, or this map if it wasn't present
+     */
+    @NonNull
+    public PersistentLongMap<V> remove(long key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        return new Builder<>(this).remove(key).build();
+    }
+
+    /**
+     * @return Every key, in no particular order
+     */
+    @NonNull
+    public long[] keys() {
+        final long[] keys = new long[mSize];
+        int position = 0;
+
+        for (Bucket bucket : mBuckets) {
+            System.arraycopy(bucket.mKeys, 0, keys, position, bucket.mKeys.length);
+            position += bucket.mKeys.length;
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return Every value, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    public List<V> values() {
+        final List<V> values = new ArrayList<>(mSize);
+
+        for (Bucket bucket : mBuckets) {
+            for (Object value : bucket.mValues) {
+                values.add((V) value);
+            }
+        }
+
+        return values;
+    }
+
+    @NonNull
+    public Builder<V> toBuilder() {
+        return new Builder<>(this);
+    }
+
+    // Internal Methods
+    private static int bucketIndex(long key, int bucketBits) {
+        // Fibonacci hashing, so sequential ids spread over every bucket
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bucketBits));
+    }
+
+    private static Bucket[] newBuckets(int bucketBits) {
+        final Bucket empty = new Bucket(EMPTY_KEYS, EMPTY_VALUES);
+        final Bucket[] buckets = new Bucket[1 << bucketBits];
+
+        Arrays.fill(buckets, empty);
+
+        return buckets;
+    }
+
+    /**
+     * Accumulates changes to a PersistentLongMap. Not thread safe, but the maps it builds are.
+     */
+    public static class Builder<V> {
+        private Bucket[] mBuckets;
+        private boolean[] mOwned;
+        private int mBucketBits;
+        private int mSize;
+
+        public Builder() {
+            this(PersistentLongMap.<V>empty());
+        }
+
+        public Builder(@NonNull PersistentLongMap<V> base) {
+            mBuckets = base.mBuckets.clone();
+            mOwned = new boolean[mBuckets.length];
+            mBucketBits = base.mBucketBits;
+            mSize = base.mSize;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(long key) {
+            final Bucket bucket = mBuckets[bucketIndex(key, mBucketBits)];
+            final int index = Arrays.binarySearch(bucket.mKeys, key);
+
+            return index >= 0 ? (V) bucket.mValues[index] : null;
+        }
+
+        @NonNull
+        public Builder<V> put(long key, @NonNull V value) {
+            final int bucketIndex = bucketIndex(key, mBucketBits);
+            final Bucket bucket = mBuckets[bucketIndex];
+            final int index = Arrays.binarySearch(bucket.mKeys, key);
+
+            if (index >= 0) {
+                own(bucketIndex).mValues[index] = value;
+                return this;
+            }
+
+            // Inserting always needs new arrays, so there's no point copying the old ones first
+            final int insertAt = -(index + 1);
+            final int length = bucket.mKeys.length;
+            final long[] keys = new long[length + 1];
+            final Object[] values = new Object[length + 1];
+
+            System.arraycopy(bucket.mKeys, 0, keys, 0, insertAt);
+            System.arraycopy(bucket.mValues, 0, values, 0, insertAt);
+            keys[insertAt] = key;
+            values[insertAt] = value;
+            System.arraycopy(bucket.mKeys, insertAt, keys, insertAt + 1, length - insertAt);
+            System.arraycopy(bucket.mValues, insertAt, values, insertAt + 1, length - insertAt);
+
+            mBuckets[bucketIndex] = new Bucket(keys, values);
+            mOwned[bucketIndex] = true;
+            mSize += 1;
+
+            if (keys.length > MAX_BUCKET_SIZE && mSize > (MAX_BUCKET_SIZE / 2) << mBucketBits) {
+                rehash(mBucketBits + 1);
+            }
+
+            return this;
+        }
+
+        @NonNull
+        public Builder<V> remove(long key) {
+            final int bucketIndex = bucketIndex(key, mBucketBits);
+            final Bucket bucket = mBuckets[bucketIndex];
+            final int index = Arrays.binarySearch(bucket.mKeys, key);
+
+            if (index < 0) {
+                return this;
+            }
+
+            final int length = bucket.mKeys.length;
+            final long[] keys = new long[length - 1];
+            final Object[] values = new Object[length - 1];
+
+            System.arraycopy(bucket.mKeys, 0, keys, 0, index);
+            System.arraycopy(bucket.mValues, 0, values, 0, index);
+            System.arraycopy(bucket.mKeys, index + 1, keys, index, length - index - 1);
+            System.arraycopy(bucket.mValues, index + 1, values, index, length - index - 1);
+
+            mBuckets[bucketIndex] = new Bucket(keys, values);
+            mOwned[bucketIndex] = true;
+            mSize -= 1;
+
+            return this;
+        }
+
+        /**
+         * Builds the map. The Builder can carry on being used, without affecting the map.
+         */
+        @NonNull
+        public PersistentLongMap<V> build() {
+            final PersistentLongMap<V> map = new PersistentLongMap<>(mBuckets.clone(), mBucketBits, mSize);
+
+            // Every bucket is now shared with the map
+            Arrays.fill(mOwned, false);
+
+            return map;
+        }
+
+        private Bucket own(int bucketIndex) {
+            if (!mOwned[bucketIndex]) {
+                final Bucket bucket = mBuckets[bucketIndex];
+                mBuckets[bucketIndex] = new Bucket(bucket.mKeys.clone(), bucket.mValues.clone());
+                mOwned[bucketIndex] = true;
+            }
+            return mBuckets[bucketIndex];
+        }
+
+        private void rehash(int bucketBits) {
+            final long[] allKeys = new long[mSize];
+            final Object[] allValues = new Object[mSize];
+            int position = 0;
+
+            for (Bucket bucket : mBuckets) {
+                System.arraycopy(bucket.mKeys, 0, allKeys, position, bucket.mKeys.length);
+                System.arraycopy(bucket.mValues, 0, allValues, position, bucket.mValues.length);
+                position += bucket.mKeys.length;
+            }
+
+            final Bucket[] buckets = new Bucket[1 << bucketBits];
+            final int[] counts = new int[buckets.length];
+
+            for (long key : allKeys) {
+                counts[bucketIndex(key, bucketBits)] += 1;
+            }
+
+            final long[][] bucketKeys = new long[buckets.length][];
+            final Object[][] bucketValues = new Object[buckets.length][];
+            for (int i = 0; i < buckets.length; i++) {
+                bucketKeys[i] = new long[counts[i]];
+                bucketValues[i] = new Object[counts[i]];
+                counts[i] = 0;
+            }
+
+            for (int i = 0; i < allKeys.length; i++) {
+                final int bucketIndex = bucketIndex(allKeys[i], bucketBits);
+                bucketKeys[bucketIndex][counts[bucketIndex]] = allKeys[i];
+                bucketValues[bucketIndex][counts[bucketIndex]] = allValues[i];
+                counts[bucketIndex] += 1;
+            }
+
+            for (int i = 0; i < buckets.length; i++) {
+                sortBucket(bucketKeys[i], bucketValues[i]);
+                buckets[i] = new Bucket(bucketKeys[i], bucketValues[i]);
+            }
+
+            mBuckets = buckets;
+            mOwned = new boolean[buckets.length];
+            Arrays.fill(mOwned, true);
+            mBucketBits = bucketBits;
+        }
+
+        private static void sortBucket(long[] keys, Object[] values) {
+            // Buckets are small, insertion sort is fine
+            for (int i = 1; i < keys.length; i++) {
+                final long key = keys[i];
+                final Object value = values[i];
+                int j = i - 1;
+
+                while (j >= 0 && keys[j] > key) {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+        }
+    }
+}
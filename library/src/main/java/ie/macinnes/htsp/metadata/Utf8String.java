@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.metadata;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A string kept as UTF-8 bytes in a shared buffer, and only decoded when it's asked for
+ */
+final class Utf8String {
+    private final byte[] mBuffer;
+    private final int mOffset;
+    private final int mLength;
+
+    Utf8String(@NonNull byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    /**
+     * @return The decoded string, a new copy every time
+     */
+    @Override
+    public String toString() {
+        return new String(mBuffer, mOffset, mLength, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.macinnes.htsp.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The most recently reported value of something, safe to update from any thread without locking
+ */
+public class Gauge {
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void set(long value) {
+        mValue.set(value);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
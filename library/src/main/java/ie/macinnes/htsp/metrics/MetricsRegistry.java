@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.macinnes.htsp.metrics;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named collection of Counters, Gauges and Histograms
+ *
+ * Updating a metric is a single atomic operation. All of the work of building a view of the
+ * metrics, including per second rates, is deferred until somebody asks for a snapshot.
+ */
+public class MetricsRegistry {
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    private final Object mSnapshotLock = new Object();
+    private MetricsSnapshot mLastSnapshot;
+
+    /**
+     * Returns the Counter with the given name, creating it if needed
+     *
+     * Callers on a hot path should hold on to the returned Counter rather than looking it up
+     * each time.
+     */
+    @NonNull
+    public Counter counter(@NonNull String name) {
+        Counter counter = mCounters.get(name);
+
+        if (counter == null) {
+            counter = new Counter();
+            Counter existing = mCounters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Returns the Gauge with the given name, creating it if needed
+     */
+    @NonNull
+    public Gauge gauge(@NonNull String name) {
+        Gauge gauge = mGauges.get(name);
+
+        if (gauge == null) {
+            gauge = new Gauge();
+            Gauge existing = mGauges.putIfAbsent(name, gauge);
+            if (existing != null) {
+                gauge = existing;
+            }
+        }
+
+        return gauge;
+    }
+
+    /**
+     * Returns the Histogram with the given name, creating it if needed
+     */
+    @NonNull
+    public Histogram histogram(@NonNull String name) {
+        Histogram histogram = mHistograms.get(name);
+
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = mHistograms.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Captures the current value of every metric
+     *
+     * Rates in the returned snapshot are calculated against the previous call to snapshot(), so
+     * readers should poll at a steady interval.
+     */
+    @NonNull
+    public MetricsSnapshot snapshot() {
+        synchronized (mSnapshotLock) {
+            Map<String, Long> counters = new HashMap<>();
+            for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+                counters.put(entry.getKey(), entry.getValue().get());
+            }
+
+            Map<String, Long> gauges = new HashMap<>();
+            for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+                gauges.put(entry.getKey(), entry.getValue().get());
+            }
+
+            Map<String, Histogram.Snapshot> histograms = new HashMap<>();
+            for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                histograms.put(entry.getKey(), entry.getValue().snapshot());
+            }
+
+            mLastSnapshot = new MetricsSnapshot(
+                    System.currentTimeMillis(), counters, gauges, histograms, mLastSnapshot);
+
+            return mLastSnapshot;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.macinnes.htsp.metrics;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable point in time view of a MetricsRegistry
+ */
+public class MetricsSnapshot {
+    private final long mTimestamp;
+    private final long mInterval;
+    private final Map<String, Long> mCounters;
+    private final Map<String, Long> mGauges;
+    private final Map<String, Double> mRates;
+    private final Map<String, Histogram.Snapshot> mHistograms;
+
+    MetricsSnapshot(long timestamp, @NonNull Map<String, Long> counters,
+                    @NonNull Map<String, Long> gauges, @NonNull Map<String, Histogram.Snapshot> histograms,
+                    @Nullable MetricsSnapshot previous) {
+        mTimestamp = timestamp;
+        mCounters = Collections.unmodifiableMap(counters);
+        mGauges = Collections.unmodifiableMap(gauges);
+        mHistograms = Collections.unmodifiableMap(histograms);
+
+        Map<String, Double> rates = new HashMap<>();
+
+        if (previous != null && timestamp > previous.mTimestamp) {
+            mInterval = timestamp - previous.mTimestamp;
+
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                Long previousValue = previous.mCounters.get(entry.getKey());
+                long delta = entry.getValue() - (previousValue != null ? previousValue : 0);
+                rates.put(entry.getKey(), delta * 1000.0 / mInterval);
+            }
+        } else {
+            mInterval = 0;
+        }
+
+        mRates = Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * @return The time this snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return The time since the previous snapshot in milliseconds, or 0 if this is the first
+     */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    @NonNull
+    public Map<String, Long> getCounters() {
+        return mCounters;
+    }
+
+    @NonNull
+    public Map<String, Long> getGauges() {
+        return mGauges;
+    }
+
+    /**
+     * @return Per second rates for each counter since the previous snapshot, empty on the first
+     */
+    @NonNull
+    public Map<String, Double> getRates() {
+        return mRates;
+    }
+
+    @NonNull
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        return mHistograms;
+    }
+
+    @Nullable
+    public Histogram.Snapshot getHistogram(@NonNull String name) {
+        return mHistograms.get(name);
+    }
+
+    public long getCounter(@NonNull String name, long defaultValue) {
+        Long value = mCounters.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public long getGauge(@NonNull String name, long defaultValue) {
+        Long value = mGauges.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public double getRate(@NonNull String name, double defaultValue) {
+        Double value = mRates.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
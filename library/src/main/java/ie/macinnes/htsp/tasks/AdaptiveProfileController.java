@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.metrics.Counter;
+import ie.macinnes.htsp.metrics.Gauge;
+
+/**
+ * Steps a Subscriber through an ordered list of streaming profiles as the link allows
+ *
+ * Much like adaptive bitrate streaming: when the queueStatus reports show the subscription
+ * falling behind (the queue delay climbing, or TVHeadend dropping B or P frames) for several
+ * reports in a row, the Subscriber is resubscribed with the next, cheaper, profile. Once it has
+ * been stable for a while it steps back up. Each step up that is soon followed by a step down
+ * doubles the stable period needed for the next one, so a link on the edge doesn't flap. Should
+ * a switch fail, the connection being down, the previous profile is subscribed to again, retrying
+ * until the connection is back.
+ *
+ * Switches are counted in the Subscriber's metrics as "profile.switches.down" and
+ * "profile.switches.up", with the current position in "profile.level" (0 being the best).
+ */
+public class AdaptiveProfileController implements Subscriber.Listener {
+    private static final String TAG = AdaptiveProfileController.class.getSimpleName();
+
+    private static final long DOWN_DELAY = 1500000; // us
+    private static final long UP_DELAY = 300000; // us
+    private static final int DOWN_SAMPLES = 3;
+    private static final long SETTLE_TIME = 5000; // ms
+    private static final long INITIAL_STABLE_PERIOD = 30000; // ms
+    private static final long MAX_STABLE_PERIOD = 10 * 60000; // ms
+    private static final long RESTORE_RETRY_DELAY = 5000; // ms
+
+    private final Subscriber mSubscriber;
+    private final List<String> mProfiles;
+    private final ScheduledExecutorService mExecutor;
+
+    private final Counter mSwitchesDown;
+    private final Counter mSwitchesUp;
+    private final Gauge mLevelGauge;
+
+    // Guarded by this
+    private int mLevel;
+    private boolean mSwitching = false;
+    private long mSettleUntil = 0;
+    private long mStableSince = -1;
+    private long mStablePeriod = INITIAL_STABLE_PERIOD;
+    private long mLastUpSwitch = -1;
+    private int mCongestedSamples = 0;
+    private long mLastDrops = 0;
+
+    /**
+     * @param subscriber The Subscriber to control, already subscribed or about to be
+     * @param profiles Profile names, best first. The Subscriber's current profile, if it's in
+     *                 the list, is the starting point.
+     */
+    public AdaptiveProfileController(@NonNull Subscriber subscriber, @NonNull List<String> profiles) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("At least one profile is required");
+        }
+
+        mSubscriber = subscriber;
+        mProfiles = new ArrayList<>(profiles);
+        mLevel = Math.max(0, mProfiles.indexOf(subscriber.getSubscribeOptions().getProfile()));
+
+        mSwitchesDown = subscriber.getMetrics().counter("profile.switches.down");
+        mSwitchesUp = subscriber.getMetrics().counter("profile.switches.up");
+        mLevelGauge = subscriber.getMetrics().gauge("profile.level");
+        mLevelGauge.set(mLevel);
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "AdaptiveProfileController");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mSubscriber.addSubscriptionListener(this);
+    }
+
+    public synchronized String getCurrentProfile() {
+        return mProfiles.get(mLevel);
+    }
+
+    public void stop() {
+        mSubscriber.removeSubscriptionListener(this);
+        mExecutor.shutdown();
+    }
+
+    // Subscriber.Listener Methods
+    @Override
+    public synchronized void onSubscriptionStart(@NonNull HtspMessage message) {
+        // A new subscription has a fresh queue, give it a moment before judging it
+        mSettleUntil = SystemClock.elapsedRealtime() + SETTLE_TIME;
+        mCongestedSamples = 0;
+        mLastDrops = 0;
+        mStableSince = -1;
+    }
+
+    @Override
+    public void onSubscriptionStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSubscriptionStop(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSubscriptionSkip(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSubscriptionSpeed(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onQueueStatus(@NonNull HtspMessage message) {
+        final long now = SystemClock.elapsedRealtime();
+        final long delay = message.getLong("delay", 0);
+        final long drops = message.getLong("Bdrops", 0) + message.getLong("Pdrops", 0);
+        final int target;
+        final boolean up;
+
+        synchronized (this) {
+            final long newDrops = drops >= mLastDrops ? drops - mLastDrops : drops;
+            mLastDrops = drops;
+
+            if (mSwitching || now < mSettleUntil) {
+                return;
+            }
+
+            if (delay > DOWN_DELAY || newDrops > 0) {
+                mCongestedSamples += 1;
+                mStableSince = -1;
+            } else {
+                mCongestedSamples = 0;
+
+                if (delay < UP_DELAY) {
+                    if (mStableSince == -1) {
+                        mStableSince = now;
+                    }
+                } else {
+                    mStableSince = -1;
+                }
+            }
+
+            if (mCongestedSamples >= DOWN_SAMPLES && mLevel < mProfiles.size() - 1) {
+                if (mLastUpSwitch != -1 && now - mLastUpSwitch < mStablePeriod) {
+                    // Stepping up didn't stick, be more cautious next time
+                    mStablePeriod = Math.min(MAX_STABLE_PERIOD, mStablePeriod * 2);
+                }
+                target = mLevel + 1;
+                up = false;
+            } else if (mStableSince != -1 && now - mStableSince >= mStablePeriod && mLevel > 0) {
+                target = mLevel - 1;
+                up = true;
+            } else {
+                return;
+            }
+
+            mSwitching = true;
+        }
+
+        // Subscribing blocks until the response arrives on the dispatcher thread, the very
+        // thread we're called on, so switch from our own.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                switchTo(target, up);
+            }
+        });
+    }
+
+    @Override
+    public void onSignalStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onTimeshiftStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onMuxpkt(@NonNull HtspMessage message) {
+
+    }
+
+    // Internal Methods
+    private void switchTo(int level, boolean up) {
+        final String profile = mProfiles.get(level);
+        final long channelId = mSubscriber.getChannelId();
+        final SubscribeOptions previous = mSubscriber.getSubscribeOptions();
+
+        try {
+            if (!mSubscriber.isSubscribed()) {
+                // Unsubscribed in the meantime, there's nothing to switch
+                return;
+            }
+
+            Log.i(TAG, "Switching channel " + channelId + " to profile " + profile);
+
+            mSubscriber.unsubscribe();
+
+            try {
+                // A profile switch isn't a zap, keep it out of the zap times
+                mSubscriber.subscribe(channelId, new SubscribeOptions(previous).setProfile(profile).setTraceZap(false));
+            } catch (HtspNotConnectedException e) {
+                Log.w(TAG, "Failed to switch profile, not connected");
+                restore(channelId, previous);
+                return;
+            }
+
+            synchronized (this) {
+                mLevel = level;
+                mLevelGauge.set(level);
+
+                if (up) {
+                    mLastUpSwitch = SystemClock.elapsedRealtime();
+                    mSwitchesUp.increment();
+                } else {
+                    mSwitchesDown.increment();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mSwitching = false;
+                mCongestedSamples = 0;
+                mStableSince = -1;
+            }
+        }
+    }
+
+    /**
+     * Subscribes with the options from before a failed switch, so the viewer isn't left without
+     * a subscription
+     */
+    private void restore(final long channelId, @NonNull final SubscribeOptions options) {
+        if (mSubscriber.isSubscribed()) {
+            // Someone else has subscribed it since
+            return;
+        }
+
+        try {
+            mSubscriber.subscribe(channelId, new SubscribeOptions(options).setTraceZap(false));
+        } catch (HtspNotConnectedException e) {
+            try {
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        restore(channelId, options);
+                    }
+                }, RESTORE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                // Stopped, give up
+            }
+        }
+    }
+}
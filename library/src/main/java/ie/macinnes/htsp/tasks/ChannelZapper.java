@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+
+/**
+ * Zaps between channels, keeping neighbouring channels subscribed in the background
+ *
+ * The channels either side of the active channel in the channel list are subscribed at a low
+ * weight, so TVHeadend will give up their tuners to any other subscription. Their packets are
+ * discarded, or optionally only the most recent GOP is kept. Zapping to one of them just raises
+ * its weight and starts passing its packets on, skipping the subscribe round trip and the wait
+ * for the mux to start.
+ *
+ * All packets for the active channel are passed to a single Subscriber.Listener. Promoted
+ * standby subscriptions replay their subscriptionStart, plus the buffered GOP if enabled.
+ */
+public class ChannelZapper {
+    private static final String TAG = ChannelZapper.class.getSimpleName();
+
+    public static final int DEFAULT_ACTIVE_WEIGHT = 150;
+    public static final int DEFAULT_STANDBY_WEIGHT = 1;
+    public static final int DEFAULT_STANDBY_COUNT = 1;
+
+    private static final int MAX_GOP_PACKETS = 1024;
+    private static final int FRAME_TYPE_I = 'I';
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final Subscriber.Listener mListener;
+
+    private final Object mLock = new Object();
+    private final Map<Long, Slot> mStandby = new HashMap<>();
+    private Slot mActive;
+    private long[] mChannelIds = new long[0];
+
+    private final ExecutorService mExecutor;
+
+    private String mProfile;
+    private int mStandbyCount = DEFAULT_STANDBY_COUNT;
+    private int mActiveWeight = DEFAULT_ACTIVE_WEIGHT;
+    private int mStandbyWeight = DEFAULT_STANDBY_WEIGHT;
+    private boolean mKeepLastGop = false;
+
+    public ChannelZapper(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull Subscriber.Listener listener) {
+        mDispatcher = dispatcher;
+        mListener = listener;
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "ChannelZapper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the channel list, in zapping order, used to pick neighbouring channels
+     */
+    public void setChannelIds(@NonNull long[] channelIds) {
+        synchronized (mLock) {
+            mChannelIds = channelIds.clone();
+        }
+        scheduleUpdateStandby();
+    }
+
+    /**
+     * Sets how many channels either side of the active channel are kept subscribed
+     */
+    public void setStandbyCount(int standbyCount) {
+        synchronized (mLock) {
+            mStandbyCount = Math.max(0, standbyCount);
+        }
+        scheduleUpdateStandby();
+    }
+
+    public void setProfile(String profile) {
+        synchronized (mLock) {
+            mProfile = profile;
+        }
+    }
+
+    public void setWeights(int activeWeight, int standbyWeight) {
+        synchronized (mLock) {
+            mActiveWeight = activeWeight;
+            mStandbyWeight = standbyWeight;
+        }
+    }
+
+    /**
+     * Keeps the packets since the latest video keyframe of each standby channel, so playback
+     * can start immediately on promotion rather than waiting for the next keyframe.
+     */
+    public void setKeepLastGop(boolean keepLastGop) {
+        synchronized (mLock) {
+            mKeepLastGop = keepLastGop;
+        }
+    }
+
+    /**
+     * @return The Subscriber for the active channel, or null before the first zap
+     */
+    public Subscriber getActiveSubscriber() {
+        synchronized (mLock) {
+            return mActive != null ? mActive.mSubscriber : null;
+        }
+    }
+
+    /**
+     * @return true if the given channel is currently subscribed in the background
+     */
+    public boolean isStandby(long channelId) {
+        synchronized (mLock) {
+            return mStandby.containsKey(channelId);
+        }
+    }
+
+    /**
+     * Makes the given channel the active channel
+     *
+     * This blocks for the subscribe round trip when the channel isn't on standby, so, like
+     * Subscriber.subscribe, it shouldn't be called from the main thread.
+     */
+    public void zap(long channelId) throws HtspNotConnectedException {
+        Slot slot;
+        Slot previous;
+        int activeWeight;
+
+        synchronized (mLock) {
+            slot = mStandby.remove(channelId);
+            previous = mActive;
+            activeWeight = mActiveWeight;
+
+            if (previous != null && previous.mChannelId == channelId) {
+                // Already there
+                return;
+            }
+        }
+
+        // Silence the channel we're leaving first, the listener must never get the two
+        // interleaved, and the new channel's stream indexes mean something else
+        int standbyWeight = 0;
+
+        if (previous != null) {
+            synchronized (mLock) {
+                standbyWeight = mStandbyWeight;
+                previous.deactivate(mKeepLastGop);
+            }
+        }
+
+        if (slot != null) {
+            Log.i(TAG, "Promoting standby subscription for channel " + channelId);
+            slot.mSubscriber.setWeight(activeWeight);
+            slot.traceZap(getProfile());
+            slot.activate();
+        } else {
+            Log.i(TAG, "No standby subscription for channel " + channelId + ", subscribing");
+            slot = new Slot(channelId, false);
+            slot.activate();
+            slot.mSubscriber.setWeight(activeWeight);
+
+            try {
+                slot.mSubscriber.subscribe(channelId, getProfile());
+            } catch (HtspNotConnectedException e) {
+                slot.release();
+
+                if (previous != null) {
+                    // Stay on the channel we were on, replaying its subscriptionStart
+                    previous.activate();
+                }
+                throw e;
+            }
+        }
+
+        if (previous != null) {
+            previous.mSubscriber.setWeight(standbyWeight);
+        }
+
+        synchronized (mLock) {
+            mActive = slot;
+
+            if (previous != null) {
+                // Keep the channel we're leaving around, it's likely to be zapped back to. The
+                // standby update will drop it if it's not a neighbour.
+                mStandby.put(previous.mChannelId, previous);
+            }
+        }
+
+        scheduleUpdateStandby();
+    }
+
+    /**
+     * Unsubscribes from all channels
+     */
+    public void stop() {
+        final List<Slot> slots = new ArrayList<>();
+
+        synchronized (mLock) {
+            if (mActive != null) {
+                slots.add(mActive);
+                mActive = null;
+            }
+            slots.addAll(mStandby.values());
+            mStandby.clear();
+        }
+
+        for (Slot slot : slots) {
+            slot.release();
+        }
+
+        mExecutor.shutdown();
+    }
+
+    // Internal Methods
+    private String getProfile() {
+        synchronized (mLock) {
+            return mProfile;
+        }
+    }
+
+    private void scheduleUpdateStandby() {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                updateStandby();
+            }
+        });
+    }
+
+    private Set<Long> getWantedStandby() {
+        final Set<Long> wanted = new HashSet<>();
+
+        if (mActive == null || mChannelIds.length == 0) {
+            return wanted;
+        }
+
+        int position = -1;
+        for (int i = 0; i < mChannelIds.length; i++) {
+            if (mChannelIds[i] == mActive.mChannelId) {
+                position = i;
+                break;
+            }
+        }
+
+        if (position == -1) {
+            return wanted;
+        }
+
+        final int length = mChannelIds.length;
+        final int count = Math.min(mStandbyCount, length / 2);
+        for (int i = 1; i <= count; i++) {
+            wanted.add(mChannelIds[(position + i) % length]);
+            wanted.add(mChannelIds[((position - i) % length + length) % length]);
+        }
+
+        wanted.remove(mActive.mChannelId);
+
+        return wanted;
+    }
+
+    private void updateStandby() {
+        final List<Slot> unwanted = new ArrayList<>();
+        final List<Long> missing = new ArrayList<>();
+        final String profile;
+        final int standbyWeight;
+        final boolean keepLastGop;
+
+        synchronized (mLock) {
+            final Set<Long> wanted = getWantedStandby();
+
+            for (Slot slot : new ArrayList<>(mStandby.values())) {
+                if (!wanted.contains(slot.mChannelId)) {
+                    mStandby.remove(slot.mChannelId);
+                    unwanted.add(slot);
+                }
+            }
+
+            for (Long channelId : wanted) {
+                if (!mStandby.containsKey(channelId)) {
+                    missing.add(channelId);
+                }
+            }
+
+            profile = mProfile;
+            standbyWeight = mStandbyWeight;
+            keepLastGop = mKeepLastGop;
+        }
+
+        for (Slot slot : unwanted) {
+            Log.i(TAG, "Dropping standby subscription for channel " + slot.mChannelId);
+            slot.release();
+        }
+
+        for (Long channelId : missing) {
+            Log.i(TAG, "Adding standby subscription for channel " + channelId);
+
+            final Slot slot = new Slot(channelId, keepLastGop);
+            slot.mSubscriber.setWeight(standbyWeight);
+
+            try {
+                // Nobody is watching yet, so this isn't a zap
+                slot.mSubscriber.subscribe(channelId, new SubscribeOptions().setProfile(profile).setTraceZap(false));
+            } catch (HtspNotConnectedException e) {
+                Log.w(TAG, "Failed to add standby subscription for channel " + channelId + ", not connected");
+                slot.release();
+                return;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to add standby subscription for channel " + channelId, e);
+                slot.release();
+                continue;
+            }
+
+            boolean keep;
+            synchronized (mLock) {
+                // The active channel may have moved on while we were subscribing
+                keep = getWantedStandby().contains(channelId) && !mStandby.containsKey(channelId);
+                if (keep) {
+                    mStandby.put(channelId, slot);
+                }
+            }
+
+            if (!keep) {
+                slot.release();
+            }
+        }
+    }
+
+    private void onStandbyStopped(@NonNull Slot slot) {
+        synchronized (mLock) {
+            if (mStandby.get(slot.mChannelId) == slot) {
+                Log.i(TAG, "Standby subscription for channel " + slot.mChannelId + " was stopped");
+                mStandby.remove(slot.mChannelId);
+            }
+        }
+    }
+
+    /**
+     * A subscription to a single channel, either passing packets on or holding them back
+     */
+    private class Slot implements Subscriber.Listener {
+        final long mChannelId;
+        final Subscriber mSubscriber;
+
+        private boolean mActive = false;
+        private boolean mKeepLastGop;
+        private HtspMessage mSubscriptionStart;
+        private final SparseArray<String> mStreamTypes = new SparseArray<>();
+        private final List<HtspMessage> mGop = new ArrayList<>();
+        private String mZapProfile;
+        private long mZapStartTime = -1;
+
+        Slot(long channelId, boolean keepLastGop) {
+            mChannelId = channelId;
+            mKeepLastGop = keepLastGop;
+            mSubscriber = new Subscriber(mDispatcher);
+            mSubscriber.addSubscriptionListener(this);
+        }
+
+        /**
+         * Times the promotion of this slot until the first video keyframe is delivered
+         */
+        synchronized void traceZap(String profile) {
+            mZapProfile = profile;
+            mZapStartTime = SystemClock.elapsedRealtime();
+        }
+
+        synchronized void activate() {
+            mActive = true;
+
+            if (mSubscriptionStart != null) {
+                mListener.onSubscriptionStart(mSubscriptionStart);
+            }
+
+            for (HtspMessage message : mGop) {
+                deliverMuxpkt(message);
+            }
+            mGop.clear();
+        }
+
+        synchronized void deactivate(boolean keepLastGop) {
+            mActive = false;
+            mZapStartTime = -1;
+            mKeepLastGop = keepLastGop;
+            mGop.clear();
+        }
+
+        void release() {
+            mSubscriber.removeSubscriptionListener(this);
+            mSubscriber.unsubscribe();
+
+            synchronized (this) {
+                mActive = false;
+                mGop.clear();
+            }
+        }
+
+        @Override
+        public void onSubscriptionStart(@NonNull HtspMessage message) {
+            synchronized (this) {
+                mSubscriptionStart = message;
+                mStreamTypes.clear();
+
+                HtspMessage[] streams = message.getHtspMessageArray("streams", null);
+                if (streams != null) {
+                    for (HtspMessage stream : streams) {
+                        mStreamTypes.put(stream.getInteger("index", -1), stream.getString("type", null));
+                    }
+                }
+
+                if (mActive) {
+                    mListener.onSubscriptionStart(message);
+                }
+            }
+        }
+
+        @Override
+        public void onSubscriptionStatus(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    mListener.onSubscriptionStatus(message);
+                }
+            }
+        }
+
+        @Override
+        public void onSubscriptionStop(@NonNull HtspMessage message) {
+            boolean active;
+
+            synchronized (this) {
+                active = mActive;
+                mSubscriptionStart = null;
+                mGop.clear();
+
+                if (active) {
+                    mListener.onSubscriptionStop(message);
+                }
+            }
+
+            if (!active) {
+                onStandbyStopped(this);
+            }
+        }
+
+        @Override
+        public void onSubscriptionSkip(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    mListener.onSubscriptionSkip(message);
+                }
+            }
+        }
+
+        @Override
+        public void onSubscriptionSpeed(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    mListener.onSubscriptionSpeed(message);
+                }
+            }
+        }
+
+        @Override
+        public void onQueueStatus(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    mListener.onQueueStatus(message);
+                }
+            }
+        }
+
+        @Override
+        public void onSignalStatus(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    mListener.onSignalStatus(message);
+                }
+            }
+        }
+
+        @Override
+        public void onTimeshiftStatus(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    mListener.onTimeshiftStatus(message);
+                }
+            }
+        }
+
+        @Override
+        public void onMuxpkt(@NonNull HtspMessage message) {
+            synchronized (this) {
+                if (mActive) {
+                    deliverMuxpkt(message);
+                    return;
+                }
+
+                if (!mKeepLastGop) {
+                    return;
+                }
+
+                final String streamType = mStreamTypes.get(message.getInteger("stream", -1));
+                final boolean isKeyframe = message.getInteger("frametype", 0) == FRAME_TYPE_I
+                        && StreamKind.isVideo(streamType);
+
+                if (isKeyframe) {
+                    mGop.clear();
+                } else if (mGop.isEmpty()) {
+                    // Nothing is decodable until the first keyframe
+                    return;
+                }
+
+                if (mGop.size() >= MAX_GOP_PACKETS) {
+                    // Unusually long GOP, give up on it rather than hold on to the memory
+                    mGop.clear();
+                    return;
+                }
+
+                mGop.add(message);
+            }
+        }
+
+        // Internal Methods
+        private void deliverMuxpkt(HtspMessage message) {
+            mListener.onMuxpkt(message);
+
+            if (mZapStartTime != -1 && message.getInteger("frametype", 0) == FRAME_TYPE_I
+                    && StreamKind.isVideo(mStreamTypes.get(message.getInteger("stream", -1)))) {
+                Subscriber.recordZap(mChannelId, mZapProfile, "promoted",
+                        SystemClock.elapsedRealtime() - mZapStartTime);
+                mZapStartTime = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+/**
+ * An index of keyframe positions, ordered by PTS
+ *
+ * Entries are held in a pair of primitive ring arrays, so adding to the newest end and removing
+ * from the oldest end are O(1) and allocation free once the arrays have grown to size. Lookups
+ * by PTS are binary searches, O(log n).
+ *
+ * Each entry is a PTS plus an opaque position supplied by the caller. An index may be given a
+ * maximum size, beyond which adding a keyframe drops the oldest. Not thread safe.
+ */
+public class KeyframeIndex {
+    public static final int NOT_FOUND = -1;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    private final int mMaxSize;
+    private long[] mPts;
+    private long[] mPositions;
+    private int mFirst = 0;
+    private int mSize = 0;
+
+    public KeyframeIndex() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public KeyframeIndex(int initialCapacity) {
+        this(initialCapacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize The most keyframes to keep, the oldest are dropped beyond this
+     */
+    public KeyframeIndex(int initialCapacity, int maxSize) {
+        mMaxSize = Math.max(1, maxSize);
+        mPts = new long[Math.max(1, Math.min(initialCapacity, mMaxSize))];
+        mPositions = new long[mPts.length];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mFirst = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Adds a keyframe at the newest end of the index
+     *
+     * Keyframes must arrive in increasing PTS order. One that doesn't, e.g. after skipping
+     * backwards, is ignored, the range it falls in is already indexed.
+     *
+     * @return true if the keyframe was added
+     */
+    public boolean add(long pts, long position) {
+        if (mSize > 0 && pts <= getPts(mSize - 1)) {
+            return false;
+        }
+
+        if (mSize == mMaxSize) {
+            removeOldest();
+        } else if (mSize == mPts.length) {
+            grow();
+        }
+
+        final int slot = physical(mSize);
+        mPts[slot] = pts;
+        mPositions[slot] = position;
+        mSize += 1;
+
+        return true;
+    }
+
+    public void removeOldest() {
+        if (mSize == 0) {
+            return;
+        }
+
+        mFirst = (mFirst + 1) % mPts.length;
+        mSize -= 1;
+    }
+
+    /**
+     * Removes every keyframe with a PTS before the given one
+     */
+    public void removeBefore(long pts) {
+        while (mSize > 0 && mPts[mFirst] < pts) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * @param index Index from 0 (oldest) to size() - 1 (newest)
+     */
+    public long getPts(int index) {
+        return mPts[physical(checkIndex(index))];
+    }
+
+    public long getPosition(int index) {
+        return mPositions[physical(checkIndex(index))];
+    }
+
+    /**
+     * @return The index of the latest keyframe at or before the given PTS, or NOT_FOUND
+     */
+    public int floor(long pts) {
+        int low = 0;
+        int high = mSize - 1;
+        int result = NOT_FOUND;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+
+            if (mPts[physical(mid)] <= pts) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The index of the earliest keyframe at or after the given PTS, or NOT_FOUND
+     */
+    public int ceiling(long pts) {
+        final int floor = floor(pts);
+
+        if (floor != NOT_FOUND && mPts[physical(floor)] == pts) {
+            return floor;
+        }
+
+        final int next = floor + 1;
+        return next < mSize ? next : NOT_FOUND;
+    }
+
+    /**
+     * @return The index of the keyframe closest to the given PTS, or NOT_FOUND if empty
+     */
+    public int nearest(long pts) {
+        final int floor = floor(pts);
+        final int ceiling = ceiling(pts);
+
+        if (floor == NOT_FOUND) {
+            return ceiling;
+        }
+
+        if (ceiling == NOT_FOUND) {
+            return floor;
+        }
+
+        return pts - mPts[physical(floor)] <= mPts[physical(ceiling)] - pts ? floor : ceiling;
+    }
+
+    // Internal Methods
+    private int physical(int index) {
+        return (mFirst + index) % mPts.length;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        return index;
+    }
+
+    private void grow() {
+        final long[] pts = new long[(int) Math.min((long) mPts.length * 2, mMaxSize)];
+        final long[] positions = new long[pts.length];
+
+        for (int i = 0; i < mSize; i++) {
+            pts[i] = mPts[physical(i)];
+            positions[i] = mPositions[physical(i)];
+        }
+
+        mPts = pts;
+        mPositions = positions;
+        mFirst = 0;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.metrics.MetricsRegistry;
+
+/**
+ * Delivers a Subscription's messages from a thread of its own, shedding video frames when the
+ * consumer lags behind
+ *
+ * Lag is how long the oldest undelivered message has been waiting. Past maxLag, B-frames are
+ * dropped, nothing depends on them. Past twice maxLag, P-frames are dropped too, and each video
+ * stream then waits for its next I-frame, as anything before it can no longer be decoded. Once
+ * the lag is back under half of maxLag everything is delivered again. Audio, and anything that
+ * isn't a muxpkt, is always delivered.
+ *
+ * The queue is also bounded, should a consumer stall outright the P-frame level is forced and,
+ * should that not be enough, the oldest video frames are shed to make room. Audio and anything
+ * else is still queued.
+ */
+class LagAwareDeliveryQueue {
+    private static final String TAG = LagAwareDeliveryQueue.class.getSimpleName();
+
+    private static final int FRAME_TYPE_I = 'I';
+    private static final int FRAME_TYPE_P = 'P';
+    private static final int FRAME_TYPE_B = 'B';
+
+    private static final int LEVEL_NONE = 0;
+    private static final int LEVEL_B_FRAMES = 1;
+    private static final int LEVEL_P_FRAMES = 2;
+
+    // A few seconds of a typical subscription's muxpkts
+    private static final int MAX_QUEUED_MESSAGES = 2048;
+
+    // How long stop() waits for a message being delivered, in milliseconds
+    private static final long STOP_TIMEOUT = 1000;
+
+    interface Consumer {
+        void deliver(@NonNull HtspMessage message);
+    }
+
+    private static class Entry {
+        final HtspMessage mMessage;
+        final long mEnqueuedAt;
+
+        Entry(HtspMessage message, long enqueuedAt) {
+            mMessage = message;
+            mEnqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final MetricsRegistry mMetrics;
+    private final Consumer mConsumer;
+
+    // All guarded by this
+    private long mMaxLag;
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<>();
+    private final SparseArray<String> mStreamTypes = new SparseArray<>();
+    private final SparseArray<Boolean> mAwaitingKeyframe = new SparseArray<>();
+    private int mLevel = LEVEL_NONE;
+    private boolean mRunning = false;
+
+    private Thread mThread;
+
+    LagAwareDeliveryQueue(long maxLag, @NonNull MetricsRegistry metrics, @NonNull Consumer consumer) {
+        mMaxLag = maxLag;
+        mMetrics = metrics;
+        mConsumer = consumer;
+    }
+
+    synchronized void start(@NonNull String name) {
+        mRunning = true;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        }, name + "-Delivery");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    synchronized void setMaxLag(long maxLag) {
+        mMaxLag = maxLag;
+    }
+
+    /**
+     * Seeds the stream types, for a queue started part way through a subscription, after its
+     * subscriptionStart was delivered
+     */
+    synchronized void setStreams(@NonNull HtspMessage[] streams) {
+        mStreamTypes.clear();
+        mAwaitingKeyframe.clear();
+
+        for (HtspMessage stream : streams) {
+            mStreamTypes.put(stream.getInteger("index", -1), stream.getString("type", null));
+        }
+    }
+
+    /**
+     * Stops the delivery thread, waiting for a message it's delivering
+     *
+     * @return Everything still queued other than muxpkts, in order, which the consumer should
+     * still be given
+     */
+    List<HtspMessage> stop() {
+        final List<HtspMessage> pending = new ArrayList<>();
+        final Thread thread;
+
+        synchronized (this) {
+            mRunning = false;
+
+            for (Entry entry : mQueue) {
+                if (!"muxpkt".equals(entry.mMessage.getString("method", null))) {
+                    pending.add(entry.mMessage);
+                }
+            }
+
+            mQueue.clear();
+            notifyAll();
+            thread = mThread;
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return pending;
+    }
+
+    synchronized void enqueue(@NonNull HtspMessage message) {
+        if (!mRunning) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+
+        if ("subscriptionStart".equals(message.getString("method", null))) {
+            onSubscriptionStart(message);
+        } else if ("muxpkt".equals(message.getString("method", null))) {
+            updateLevel(now);
+
+            if (shouldDrop(message)) {
+                return;
+            }
+        }
+
+        if (mQueue.size() >= MAX_QUEUED_MESSAGES) {
+            makeRoom();
+        }
+
+        mQueue.addLast(new Entry(message, now));
+        notifyAll();
+    }
+
+    // Internal Methods
+    private void deliverLoop() {
+        while (true) {
+            final Entry entry;
+
+            synchronized (this) {
+                while (mRunning && mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (!mRunning) {
+                    return;
+                }
+
+                entry = mQueue.pollFirst();
+            }
+
+            try {
+                mConsumer.deliver(entry.mMessage);
+            } catch (Exception e) {
+                Log.e(TAG, "Unhandled exception in subscription listener", e);
+            }
+        }
+    }
+
+    private void onSubscriptionStart(@NonNull HtspMessage message) {
+        setStreams(message.getHtspMessageArray("streams", new HtspMessage[0]));
+    }
+
+    private void updateLevel(long now) {
+        final long lag = mQueue.isEmpty() ? 0 : now - mQueue.peekFirst().mEnqueuedAt;
+        final int previous = mLevel;
+
+        if (lag > mMaxLag * 2) {
+            mLevel = LEVEL_P_FRAMES;
+        } else if (lag > mMaxLag) {
+            mLevel = Math.max(mLevel, LEVEL_B_FRAMES);
+        } else if (lag < mMaxLag / 2) {
+            mLevel = LEVEL_NONE;
+        }
+
+        mMetrics.gauge("delivery.lag").set(lag);
+
+        if (mLevel > previous) {
+            Log.w(TAG, "Consumer is " + lag + "ms behind, dropping " + (mLevel == LEVEL_P_FRAMES ? "P and B" : "B") + " frames");
+            purgeQueued();
+        } else if (mLevel < previous) {
+            Log.i(TAG, "Consumer has caught up, no longer dropping frames");
+        }
+    }
+
+    /**
+     * Drops queued frames the consumer would no longer get at the current level, that's what
+     * actually lets it catch up.
+     */
+    private void purgeQueued() {
+        final Iterator<Entry> iterator = mQueue.iterator();
+
+        while (iterator.hasNext()) {
+            final HtspMessage message = iterator.next().mMessage;
+
+            if (!"muxpkt".equals(message.getString("method", null))) {
+                continue;
+            }
+
+            final int stream = message.getInteger("stream", -1);
+            final int frameType = message.getInteger("frametype", 0);
+
+            if (isDroppable(stream, frameType)) {
+                iterator.remove();
+                countDrop(stream, frameType);
+            }
+        }
+
+        if (mLevel == LEVEL_P_FRAMES) {
+            // The P-frames just purged were references for whatever comes next
+            for (int i = 0; i < mStreamTypes.size(); i++) {
+                if (StreamKind.isVideo(mStreamTypes.valueAt(i))) {
+                    mAwaitingKeyframe.put(mStreamTypes.keyAt(i), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with the queue full, however little time the oldest message has waited
+     */
+    private void makeRoom() {
+        if (mLevel < LEVEL_P_FRAMES) {
+            Log.w(TAG, "Delivery queue is full, dropping P and B frames");
+            mLevel = LEVEL_P_FRAMES;
+            purgeQueued();
+        }
+
+        final Iterator<Entry> iterator = mQueue.iterator();
+
+        while (mQueue.size() >= MAX_QUEUED_MESSAGES && iterator.hasNext()) {
+            final HtspMessage message = iterator.next().mMessage;
+
+            if (!"muxpkt".equals(message.getString("method", null))) {
+                continue;
+            }
+
+            final int stream = message.getInteger("stream", -1);
+
+            if (!StreamKind.isVideo(mStreamTypes.get(stream))) {
+                // Audio is never dropped
+                continue;
+            }
+
+            iterator.remove();
+            countDrop(stream, message.getInteger("frametype", 0));
+            mMetrics.counter("delivery.dropped.overflow").increment();
+
+            // Whatever follows may have referenced it
+            mAwaitingKeyframe.put(stream, true);
+        }
+    }
+
+    private boolean shouldDrop(@NonNull HtspMessage message) {
+        final int stream = message.getInteger("stream", -1);
+        final int frameType = message.getInteger("frametype", 0);
+
+        if (!StreamKind.isVideo(mStreamTypes.get(stream))) {
+            return false;
+        }
+
+        if (mAwaitingKeyframe.get(stream, false)) {
+            if (frameType == FRAME_TYPE_I) {
+                mAwaitingKeyframe.put(stream, false);
+                return false;
+            }
+
+            countDrop(stream, frameType);
+            return true;
+        }
+
+        if (isDroppable(stream, frameType)) {
+            if (frameType == FRAME_TYPE_P) {
+                mAwaitingKeyframe.put(stream, true);
+            }
+
+            countDrop(stream, frameType);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean isDroppable(int stream, int frameType) {
+        if (!StreamKind.isVideo(mStreamTypes.get(stream))) {
+            return false;
+        }
+
+        switch (mLevel) {
+            case LEVEL_B_FRAMES:
+                return frameType == FRAME_TYPE_B;
+            case LEVEL_P_FRAMES:
+                return frameType == FRAME_TYPE_B || frameType == FRAME_TYPE_P;
+            default:
+                return false;
+        }
+    }
+
+    private void countDrop(int stream, int frameType) {
+        mMetrics.counter("delivery.dropped." + mStreamTypes.get(stream, "UNKNOWN")).increment();
+
+        if (frameType == FRAME_TYPE_B) {
+            mMetrics.counter("delivery.dropped.b").increment();
+        } else if (frameType == FRAME_TYPE_P) {
+            mMetrics.counter("delivery.dropped.p").increment();
+        }
+    }
+}
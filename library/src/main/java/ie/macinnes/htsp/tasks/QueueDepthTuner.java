@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * Picks a subscribe queueDepth from the queueStatus reports of previous subscriptions
+ *
+ * A deep server side queue rides out link stalls without dropping frames, but everything in it
+ * is latency. Between subscriptions the depth is:
+ *
+ * - Shrunk if the queue delay went over the target latency, trading drops for latency
+ * - Otherwise grown if TVHeadend had to drop frames, as the link is bursty rather than slow
+ * - Otherwise left alone
+ *
+ * A tuner may be shared between Subscribers on the same link, they then all learn from each
+ * other's subscriptions. Observations are kept per subscription, and applied as each one ends.
+ */
+public class QueueDepthTuner {
+    private static final String TAG = QueueDepthTuner.class.getSimpleName();
+
+    public static final int DEFAULT_QUEUE_DEPTH = 500000; // TVHeadend's own default
+    public static final int MIN_QUEUE_DEPTH = 100000;
+    public static final int MAX_QUEUE_DEPTH = 4000000;
+    public static final long DEFAULT_TARGET_DELAY = 2000000; // us
+
+    private final long mTargetDelay;
+    private int mQueueDepth;
+
+    private static class Observations {
+        long mMaxDelay = 0;
+        long mDrops = 0;
+        long mLastDrops = 0;
+        int mSamples = 0;
+    }
+
+    // Guarded by this, by subscriptionId
+    private final SparseArray<Observations> mObservations = new SparseArray<>();
+
+    public QueueDepthTuner() {
+        this(DEFAULT_TARGET_DELAY);
+    }
+
+    /**
+     * @param targetDelay The queue delay, in microseconds, that is acceptable. Low latency
+     *                    setups want this small, lossy links want it large.
+     */
+    public QueueDepthTuner(long targetDelay) {
+        mTargetDelay = targetDelay;
+        mQueueDepth = DEFAULT_QUEUE_DEPTH;
+    }
+
+    /**
+     * Called for each subscribe, applies what was learned from the subscriptions before it
+     *
+     * @param subscriptionId The subscription being made, any earlier one with the same id has
+     *                       ended
+     * @return The queue depth to request
+     */
+    public synchronized int onSubscribe(int subscriptionId) {
+        apply(subscriptionId);
+        mObservations.put(subscriptionId, new Observations());
+
+        return mQueueDepth;
+    }
+
+    /**
+     * Called as a subscription ends, applies what was learned from it
+     */
+    public synchronized void onUnsubscribe(int subscriptionId) {
+        apply(subscriptionId);
+    }
+
+    public synchronized void onQueueStatus(int subscriptionId, @NonNull HtspMessage message) {
+        final Observations observations = mObservations.get(subscriptionId);
+        if (observations == null) {
+            return;
+        }
+
+        final long drops = message.getLong("Bdrops", 0) + message.getLong("Pdrops", 0) + message.getLong("Idrops", 0);
+
+        // Drop counts are cumulative, per subscription
+        observations.mMaxDelay = Math.max(observations.mMaxDelay, message.getLong("delay", 0));
+        observations.mDrops += drops >= observations.mLastDrops ? drops - observations.mLastDrops : drops;
+        observations.mLastDrops = drops;
+        observations.mSamples += 1;
+    }
+
+    public synchronized int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    // Internal Methods
+    private void apply(int subscriptionId) {
+        final Observations observations = mObservations.get(subscriptionId);
+        mObservations.remove(subscriptionId);
+
+        if (observations == null || observations.mSamples == 0) {
+            return;
+        }
+
+        final int previous = mQueueDepth;
+
+        if (observations.mMaxDelay > mTargetDelay) {
+            mQueueDepth = Math.max(MIN_QUEUE_DEPTH, mQueueDepth * 3 / 4);
+        } else if (observations.mDrops > 0) {
+            mQueueDepth = Math.min(MAX_QUEUE_DEPTH, mQueueDepth * 3 / 2);
+        }
+
+        if (previous != mQueueDepth) {
+            Log.i(TAG, "Queue depth changed from " + previous + " to " + mQueueDepth + " (max delay "
+                    + observations.mMaxDelay + "us, " + observations.mDrops + " drops)");
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * Chooses which of a Subscription's elementary streams are wanted
+ *
+ * Subscriber asks TVHeadend, via subscriptionFilterStream, to stop sending everything else.
+ */
+public interface StreamFilter {
+    /**
+     * @param streams The streams from subscriptionStart
+     * @return The indexes of the streams to keep
+     */
+    @NonNull
+    Set<Integer> selectStreams(@NonNull HtspMessage[] streams);
+
+    /**
+     * Keeps the highest resolution video stream and a single audio stream, picking the first
+     * available of the preferred languages, and optionally subtitles in the same languages.
+     */
+    class BestVideoPreferredAudio implements StreamFilter {
+        private final List<String> mLanguages;
+        private final boolean mKeepSubtitles;
+
+        public BestVideoPreferredAudio(@NonNull String... languages) {
+            this(false, languages);
+        }
+
+        /**
+         * @param keepSubtitles Keep subtitle streams in the chosen audio language
+         * @param languages ISO 639-2 language codes (e.g. "eng"), most preferred first
+         */
+        public BestVideoPreferredAudio(boolean keepSubtitles, @NonNull String... languages) {
+            mLanguages = Arrays.asList(languages);
+            mKeepSubtitles = keepSubtitles;
+        }
+
+        @NonNull
+        @Override
+        public Set<Integer> selectStreams(@NonNull HtspMessage[] streams) {
+            HtspMessage bestVideo = null;
+            HtspMessage bestAudio = null;
+            int bestAudioRank = Integer.MAX_VALUE;
+
+            for (HtspMessage stream : streams) {
+                switch (StreamKind.fromType(stream.getString("type", null))) {
+                    case VIDEO:
+                        if (bestVideo == null || pixels(stream) > pixels(bestVideo)) {
+                            bestVideo = stream;
+                        }
+                        break;
+                    case AUDIO:
+                        final int rank = languageRank(stream);
+                        if (bestAudio == null || rank < bestAudioRank) {
+                            bestAudio = stream;
+                            bestAudioRank = rank;
+                        }
+                        break;
+                }
+            }
+
+            final Set<Integer> selected = new HashSet<>();
+
+            if (bestVideo != null) {
+                selected.add(bestVideo.getInteger("index"));
+            }
+
+            if (bestAudio != null) {
+                selected.add(bestAudio.getInteger("index"));
+            }
+
+            if (mKeepSubtitles && bestAudio != null) {
+                final String language = bestAudio.getString("language", null);
+
+                for (HtspMessage stream : streams) {
+                    if (StreamKind.fromType(stream.getString("type", null)) == StreamKind.SUBTITLE
+                            && language != null && language.equals(stream.getString("language", null))) {
+                        selected.add(stream.getInteger("index"));
+                    }
+                }
+            }
+
+            return selected;
+        }
+
+        private static long pixels(@NonNull HtspMessage stream) {
+            return (long) stream.getInteger("width", 0) * stream.getInteger("height", 0);
+        }
+
+        private int languageRank(@NonNull HtspMessage stream) {
+            final int rank = mLanguages.indexOf(stream.getString("language", null));
+            return rank == -1 ? mLanguages.size() : rank;
+        }
+    }
+}
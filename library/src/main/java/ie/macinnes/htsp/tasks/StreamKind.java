@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Broad classification of the elementary stream types TVHeadend reports in subscriptionStart
+ */
+public enum StreamKind {
+    VIDEO,
+    AUDIO,
+    SUBTITLE,
+    TELETEXT,
+    OTHER;
+
+    private static final Set<String> VIDEO_TYPES = new HashSet<>(Arrays.asList(new String[]{
+            "MPEG2VIDEO", "H264", "HEVC", "VP8", "VP9", "THEORA",
+    }));
+
+    private static final Set<String> AUDIO_TYPES = new HashSet<>(Arrays.asList(new String[]{
+            "MPEG2AUDIO", "AC3", "EAC3", "AAC", "MP4A", "VORBIS", "OPUS", "FLAC",
+    }));
+
+    private static final Set<String> SUBTITLE_TYPES = new HashSet<>(Arrays.asList(new String[]{
+            "DVBSUB", "TEXTSUB",
+    }));
+
+    public static StreamKind fromType(String type) {
+        if (type == null) {
+            return OTHER;
+        } else if (VIDEO_TYPES.contains(type)) {
+            return VIDEO;
+        } else if (AUDIO_TYPES.contains(type)) {
+            return AUDIO;
+        } else if (SUBTITLE_TYPES.contains(type)) {
+            return SUBTITLE;
+        } else if ("TELETEXT".equals(type)) {
+            return TELETEXT;
+        }
+
+        return OTHER;
+    }
+
+    public static boolean isVideo(String type) {
+        return VIDEO_TYPES.contains(type);
+    }
+}
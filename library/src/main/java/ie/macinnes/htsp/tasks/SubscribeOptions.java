@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Options for a HTSP subscribe request
+ */
+public class SubscribeOptions {
+    public static final int DEFAULT_QUEUE_DEPTH = -1;
+
+    private String mProfile;
+    private int mTimeshiftPeriod = 0;
+    private int mQueueDepth = DEFAULT_QUEUE_DEPTH;
+    private boolean mNinetyKhz = false;
+    private boolean mNormalizeTimestamps = false;
+    private QueueDepthTuner mQueueDepthTuner;
+    private boolean mTraceZap = true;
+
+    public SubscribeOptions() {
+    }
+
+    public SubscribeOptions(@NonNull SubscribeOptions other) {
+        mProfile = other.mProfile;
+        mTimeshiftPeriod = other.mTimeshiftPeriod;
+        mQueueDepth = other.mQueueDepth;
+        mNinetyKhz = other.mNinetyKhz;
+        mNormalizeTimestamps = other.mNormalizeTimestamps;
+        mQueueDepthTuner = other.mQueueDepthTuner;
+        mTraceZap = other.mTraceZap;
+    }
+
+    public String getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * @param profile The streaming profile to use, or null for the server default
+     */
+    public SubscribeOptions setProfile(String profile) {
+        mProfile = profile;
+        return this;
+    }
+
+    public int getTimeshiftPeriod() {
+        return mTimeshiftPeriod;
+    }
+
+    /**
+     * @param timeshiftPeriod Server side timeshift period to request, in seconds
+     */
+    public SubscribeOptions setTimeshiftPeriod(int timeshiftPeriod) {
+        mTimeshiftPeriod = timeshiftPeriod;
+        return this;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @param queueDepth Bytes TVHeadend may queue for us before it starts dropping frames, or
+     *                   DEFAULT_QUEUE_DEPTH for the server default. Ignored when a
+     *                   QueueDepthTuner is set.
+     */
+    public SubscribeOptions setQueueDepth(int queueDepth) {
+        mQueueDepth = queueDepth;
+        return this;
+    }
+
+    public boolean isNinetyKhz() {
+        return mNinetyKhz;
+    }
+
+    /**
+     * @param ninetyKhz Have TVHeadend send timestamps in 90kHz units rather than microseconds,
+     *                  which saves it a conversion for every packet. Every PTS and DTS, including
+     *                  skip targets and the timeshift window, is then in 90kHz units too.
+     */
+    public SubscribeOptions setNinetyKhz(boolean ninetyKhz) {
+        mNinetyKhz = ninetyKhz;
+        return this;
+    }
+
+    public boolean isNormalizeTimestamps() {
+        return mNormalizeTimestamps;
+    }
+
+    /**
+     * @param normalizeTimestamps Have TVHeadend normalize timestamps to start from zero
+     */
+    public SubscribeOptions setNormalizeTimestamps(boolean normalizeTimestamps) {
+        mNormalizeTimestamps = normalizeTimestamps;
+        return this;
+    }
+
+    public QueueDepthTuner getQueueDepthTuner() {
+        return mQueueDepthTuner;
+    }
+
+    /**
+     * @param queueDepthTuner Picks the queue depth for each subscribe from what was observed
+     *                        during the previous ones, or null to use the fixed queue depth.
+     *                        A tuner may be shared between Subscribers on the same link.
+     */
+    public SubscribeOptions setQueueDepthTuner(QueueDepthTuner queueDepthTuner) {
+        mQueueDepthTuner = queueDepthTuner;
+        return this;
+    }
+
+    public boolean isTraceZap() {
+        return mTraceZap;
+    }
+
+    /**
+     * @param traceZap Record this subscribe in the zap latency histograms, see
+     *                 Subscriber.getZapMetrics(). Turn off for background subscriptions nobody
+     *                 is waiting to watch.
+     */
+    public SubscribeOptions setTraceZap(boolean traceZap) {
+        mTraceZap = traceZap;
+        return this;
+    }
+}
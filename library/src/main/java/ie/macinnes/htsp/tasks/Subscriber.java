@@ -17,19 +17,33 @@
 package ie.macinnes.htsp.tasks;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import ie.macinnes.htsp.HtspException;
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.metrics.Counter;
+import ie.macinnes.htsp.metrics.Histogram;
+import ie.macinnes.htsp.metrics.MetricsRegistry;
 
 /**
  * Handles a Subscription on a HTSP Connection
@@ -41,6 +55,10 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
     private static final int INVALID_START_TIME = -1;
     private static final int STATS_INTERVAL = 10000;
     private static final int DEFAULT_TIMESHIFT_PERIOD = 0;
+    private static final int DEFAULT_WEIGHT = -1;
+    private static final int COMMAND_ACK_TIMEOUT = 2000;
+    // A few hours of keyframes at a typical GOP length, ~1MB
+    private static final int MAX_INDEXED_KEYFRAMES = 65536;
 
     // Copy of TvInputManager.TIME_SHIFT_INVALID_TIME, available on M+ Only.
     public static final long INVALID_TIMESHIFT_TIME = -9223372036854775808L;
@@ -54,6 +72,19 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
 
     private static final AtomicInteger mSubscriptionCount = new AtomicInteger();
 
+    private static final int FRAME_TYPE_I = 'I';
+
+    // Zap latencies are kept across all Subscribers, so they build up per profile regardless of
+    // which Subscriber did the zapping.
+    private static final MetricsRegistry sZapMetrics = new MetricsRegistry();
+    private static final int MAX_ZAP_CHANNELS = 16;
+    // In access order, so the least recently zapped to channel is first
+    private static final Map<Long, Histogram> sChannelZapTimes = new LinkedHashMap<>(MAX_ZAP_CHANNELS, 0.75f, true);
+
+    // A single thread runs the periodic work for every subscription, rather than a Timer (and so
+    // a thread) per subscription.
+    private static final ScheduledThreadPoolExecutor sScheduler = createScheduler();
+
     /**
      * A listener for Subscription events
      */
@@ -73,14 +104,49 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
     private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
     private final int mSubscriptionId;
 
-    private Timer mTimer;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final SparseArray<StreamMetrics> mStreamMetrics = new SparseArray<>();
+    private final Counter mPackets = mMetrics.counter("packets");
+    private final Counter mBytes = mMetrics.counter("bytes");
+    private final Counter mBDrops = mMetrics.counter("queue.drops.b");
+    private final Counter mPDrops = mMetrics.counter("queue.drops.p");
+    private final Counter mIDrops = mMetrics.counter("queue.drops.i");
+    private final Counter mCommandsCoalesced = mMetrics.counter("commands.coalesced");
+    private final Counter mResubscribes = mMetrics.counter("resubscribe.count");
+    private final Counter mResubscribeFailures = mMetrics.counter("resubscribe.failures");
+    private volatile long mRestoreStartTime = -1;
+    private long mLastBDrops;
+    private long mLastPDrops;
+    private long mLastIDrops;
+
+    private volatile ZapTrace mZapTrace;
+
+    // Keyframe PTS and DTS of this subscription, guarded by itself
+    private final KeyframeIndex mKeyframeIndex = new KeyframeIndex(256, MAX_INDEXED_KEYFRAMES);
+    private final SparseArray<String> mStreamTypes = new SparseArray<>();
+
+    // Both guarded by mDeliveryLock, which is also held while handing a message to either, so
+    // nothing overtakes what a stopped queue still had to deliver
+    private final Object mDeliveryLock = new Object();
+    private long mDeliveryMaxLag;
+    private LagAwareDeliveryQueue mDeliveryQueue;
+    private volatile StreamFilter mStreamFilter;
+    private volatile HtspMessage[] mStreams;
+    private volatile Set<Integer> mFilteredStreams = Collections.emptySet();
+
+    private final CommandCoalescer mSkipCoalescer = new CommandCoalescer();
+    private final CommandCoalescer mSpeedCoalescer = new CommandCoalescer();
+
+    private ScheduledFuture<?> mStatsTask;
     private HtspMessage mQueueStatus;
     private HtspMessage mSignalStatus;
     private HtspMessage mTimeshiftStatus;
 
     private long mChannelId;
     private String mProfile;
+    private volatile SubscribeOptions mOptions = new SubscribeOptions();
     private int mTimeshiftPeriod = 0;
+    private int mWeight = DEFAULT_WEIGHT;
     private long mStartTime = INVALID_START_TIME;
 
     private boolean mIsSubscribed = false;
@@ -111,6 +177,102 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         return mSubscriptionId;
     }
 
+    public long getChannelId() {
+        return mChannelId;
+    }
+
+    /**
+     * @return The options of the most recent subscribe
+     */
+    @NonNull
+    public SubscribeOptions getSubscribeOptions() {
+        return mOptions;
+    }
+
+    public boolean isSubscribed() {
+        return mIsSubscribed;
+    }
+
+    /**
+     * Returns the metrics for this subscription
+     *
+     * Counters: "packets" and "bytes" for all muxpkts, "stream.N.packets" and "stream.N.bytes"
+     * for each stream index N, "stream.N.dropped_packets" and "stream.N.dropped_bytes" for
+     * packets of filtered out streams, "queue.drops.b", "queue.drops.p" and "queue.drops.i" for
+     * frames dropped by TVHeadend, and "commands.coalesced" for skip and speed commands that
+     * were replaced by a newer one before being sent, and "resubscribe.count" and
+     * "resubscribe.failures" for resubscribes after re-authentication. Snapshots include per
+     * second rates for each of these.
+     *
+     * Histograms: "resubscribe.response_time" and "resubscribe.restore_time", the milliseconds
+     * from re-authentication until the subscribe response and the first muxpkt respectively.
+     *
+     * Gauges: "queue.packets", "queue.bytes", "queue.errors" and "queue.delay" (in
+     * microseconds), "queue.depth" for the queueDepth requested, "signal.snr", "signal.signal",
+     * "signal.ber" and "signal.unc" as reported by the frontend, "timeshift.full",
+     * "timeshift.shift", "timeshift.duration" (in microseconds), "timeshift.fill" (in thousandths
+     * of the available timeshift period), and "filter.disabled_streams" for the number of
+     * streams the StreamFilter has turned off.
+     */
+    @NonNull
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns channel zap latency histograms, shared by all Subscribers
+     *
+     * Each histogram is named "zap.{profile}.{phase}", where profile is "default" when none was
+     * requested, and records the milliseconds from subscribe() being called until:
+     *
+     * - "request_sent": the subscribe request was written to the socket
+     * - "response": the subscribe response was received
+     * - "start": subscriptionStart was received, i.e. the tuner is locked and the mux is running
+     * - "first_packet": the first muxpkt on any stream, i.e. after any descrambling
+     * - "first_packet.{streamType}": the first muxpkt on a stream of that type
+     * - "first_keyframe": the first video I-frame, i.e. the earliest playback can start
+     *
+     * The difference between phases shows whether time is spent tuning, descrambling, or in
+     * the client pipeline.
+     *
+     * Subscribes with SubscribeOptions.setTraceZap(false) aren't recorded. A ChannelZapper
+     * promoting a standby subscription records the time from zap() until the first video
+     * keyframe is delivered as "first_keyframe", and also as "promoted.first_keyframe".
+     *
+     * Histograms aren't kept per channel, as they'd grow with every channel ever zapped to, see
+     * getChannelZapTimes() instead.
+     */
+    @NonNull
+    public static MetricsRegistry getZapMetrics() {
+        return sZapMetrics;
+    }
+
+    /**
+     * Records a zap which didn't go through subscribe(), e.g. the promotion of a ChannelZapper
+     * standby subscription, as "first_keyframe" and "{kind}.first_keyframe"
+     *
+     * @param elapsed Milliseconds from the zap until the first video keyframe was delivered
+     */
+    static void recordZap(long channelId, String profile, @NonNull String kind, long elapsed) {
+        final String prefix = "zap." + (profile != null ? profile : "default") + ".";
+
+        sZapMetrics.histogram(prefix + "first_keyframe").record(elapsed);
+        sZapMetrics.histogram(prefix + kind + ".first_keyframe").record(elapsed);
+        recordChannelZap(channelId, elapsed);
+    }
+
+    /**
+     * Returns the "first_keyframe" zap histogram of a recently zapped to channel. Only the most
+     * recently used MAX_ZAP_CHANNELS channels are kept.
+     *
+     * @return The histogram, or null if the channel hasn't been zapped to recently
+     */
+    public static Histogram getChannelZapTimes(long channelId) {
+        synchronized (sChannelZapTimes) {
+            return sChannelZapTimes.get(channelId);
+        }
+    }
+
     public void subscribe(long channelId) throws HtspNotConnectedException {
         subscribe(channelId, null, DEFAULT_TIMESHIFT_PERIOD);
     }
@@ -124,33 +286,126 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
     }
 
     public void subscribe(long channelId, String profile, int timeshiftPeriod) throws HtspNotConnectedException {
+        subscribe(channelId, new SubscribeOptions().setProfile(profile).setTimeshiftPeriod(timeshiftPeriod));
+    }
+
+    public void subscribe(long channelId, @NonNull SubscribeOptions options) throws HtspNotConnectedException {
         Log.i(TAG, "Requesting subscription to channel " + mChannelId);
 
+        final ZapTrace zapTrace = options.isTraceZap() ? new ZapTrace(channelId, options.getProfile()) : null;
+        mZapTrace = zapTrace;
+
+        HtspMessage subscribeRequest = prepareSubscribeRequest(channelId, options);
+
+        if (zapTrace != null) {
+            subscribeRequest.setSentCallback(new Runnable() {
+                @Override
+                public void run() {
+                    zapTrace.record("request_sent");
+                }
+            });
+        }
+
+        HtspMessage subscribeResponse = mDispatcher.sendMessage(subscribeRequest, 5000);
+
+        if (zapTrace != null) {
+            zapTrace.record("response");
+        }
+
+        onSubscribeResponse(subscribeResponse);
+    }
+
+    /**
+     * Subscribes without waiting for the response, which is handled on the dispatcher thread.
+     * Falls back to blocking if the dispatcher isn't an AsyncDispatcher.
+     */
+    private void subscribeAsync(long channelId, @NonNull SubscribeOptions options) throws HtspNotConnectedException {
+        final long requestedAt = SystemClock.elapsedRealtime();
+
+        HtspMessage subscribeRequest = prepareSubscribeRequest(channelId, options);
+
+        if (!(mDispatcher instanceof HtspMessage.AsyncDispatcher)) {
+            // Only a blocking subscribe is possible
+            HtspMessage subscribeResponse = mDispatcher.sendMessage(subscribeRequest, 5000);
+            mMetrics.histogram("resubscribe.response_time").record(SystemClock.elapsedRealtime() - requestedAt);
+            onSubscribeResponse(subscribeResponse);
+            return;
+        }
+
+        ((HtspMessage.AsyncDispatcher) mDispatcher).sendMessage(subscribeRequest, new HtspMessage.ResponseListener() {
+            @Override
+            public void onResponse(@NonNull HtspMessage response) {
+                mMetrics.histogram("resubscribe.response_time").record(SystemClock.elapsedRealtime() - requestedAt);
+                onSubscribeResponse(response);
+            }
+
+            @Override
+            public void onResponseFailed(@NonNull HtspException e) {
+                Log.e(TAG, "Resubscribing to channel " + mChannelId + " failed", e);
+                mResubscribeFailures.increment();
+                mRestoreStartTime = -1;
+            }
+        });
+    }
+
+    private HtspMessage prepareSubscribeRequest(long channelId, @NonNull SubscribeOptions options) {
         if (!mIsSubscribed) {
             mDispatcher.addMessageListener(this);
         }
 
+        startDeliveryQueue();
+
         mChannelId = channelId;
-        mProfile = profile;
+        mProfile = options.getProfile();
+        mOptions = options;
 
         HtspMessage subscribeRequest = new HtspMessage();
 
         subscribeRequest.put("method", "subscribe");
         subscribeRequest.put("subscriptionId", mSubscriptionId);
         subscribeRequest.put("channelId", channelId);
-        subscribeRequest.put("timeshiftPeriod", timeshiftPeriod);
+        subscribeRequest.put("timeshiftPeriod", options.getTimeshiftPeriod());
 
         if (mProfile != null) {
             subscribeRequest.put("profile", mProfile);
         }
 
-        HtspMessage subscribeResponse = mDispatcher.sendMessage(subscribeRequest, 5000);
+        if (mWeight != DEFAULT_WEIGHT) {
+            subscribeRequest.put("weight", mWeight);
+        }
+
+        int queueDepth = options.getQueueDepth();
+        if (options.getQueueDepthTuner() != null) {
+            queueDepth = options.getQueueDepthTuner().onSubscribe(mSubscriptionId);
+        }
 
+        if (queueDepth != SubscribeOptions.DEFAULT_QUEUE_DEPTH) {
+            subscribeRequest.put("queueDepth", queueDepth);
+            mMetrics.gauge("queue.depth").set(queueDepth);
+        }
+
+        if (options.isNinetyKhz()) {
+            subscribeRequest.put("90khz", 1);
+        }
+
+        if (options.isNormalizeTimestamps()) {
+            subscribeRequest.put("normts", 1);
+        }
+
+        return subscribeRequest;
+    }
+
+    private void onSubscribeResponse(@NonNull HtspMessage subscribeResponse) {
         mTimeshiftPeriod = subscribeResponse.getInteger("timeshiftPeriod", 0);
         Log.i(TAG, "Available timeshift period in seconds: " + mTimeshiftPeriod);
 
         mIsSubscribed = true;
 
+        // TVHeadend's drop counts start again with each subscription
+        mLastBDrops = 0;
+        mLastPDrops = 0;
+        mLastIDrops = 0;
+
         startTimer();
     }
 
@@ -160,9 +415,21 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         cancelTimer();
 
         mIsSubscribed = false;
+        mZapTrace = null;
+
+        mSkipCoalescer.reset();
+        mSpeedCoalescer.reset();
 
         mDispatcher.removeMessageListener(this);
 
+        // Nothing more will be delivered, don't leave the delivery thread waiting on it
+        stopDeliveryQueue();
+
+        final QueueDepthTuner queueDepthTuner = mOptions.getQueueDepthTuner();
+        if (queueDepthTuner != null) {
+            queueDepthTuner.onUnsubscribe(mSubscriptionId);
+        }
+
         HtspMessage unsubscribeRequest = new HtspMessage();
 
         unsubscribeRequest.put("method", "unsubscribe");
@@ -175,6 +442,81 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         }
     }
 
+    /**
+     * Sets the weight TVHeadend uses to decide which subscriptions get tuners when they are
+     * contended. Applies to the current subscription, if any, and to future subscribe calls.
+     */
+    public void setWeight(int weight) {
+        mWeight = weight;
+
+        if (!mIsSubscribed) {
+            return;
+        }
+
+        Log.i(TAG, "Requesting weight " + weight + " for channel " + mChannelId);
+
+        HtspMessage subscriptionChangeWeightRequest = new HtspMessage();
+
+        subscriptionChangeWeightRequest.put("method", "subscriptionChangeWeight");
+        subscriptionChangeWeightRequest.put("subscriptionId", mSubscriptionId);
+        subscriptionChangeWeightRequest.put("weight", weight);
+
+        try {
+            mDispatcher.sendMessage(subscriptionChangeWeightRequest);
+        } catch (HtspNotConnectedException e) {
+            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
+        }
+    }
+
+    /**
+     * Sets the policy deciding which elementary streams are wanted, or null for all of them
+     *
+     * Unwanted streams are disabled server side with subscriptionFilterStream, so they no longer
+     * use any bandwidth. Any of their packets still arriving, e.g. before the filter takes
+     * effect or from servers without stream filtering, are dropped before reaching listeners
+     * and counted in the "stream.N.dropped_packets" and "stream.N.dropped_bytes" metrics.
+     */
+    public void setStreamFilter(StreamFilter streamFilter) {
+        mStreamFilter = streamFilter;
+
+        final HtspMessage[] streams = mStreams;
+        if (streams != null) {
+            applyStreamFilter(streams);
+        }
+    }
+
+    /**
+     * Enables lag aware delivery, or disables it with a maxLag of 0
+     *
+     * Listeners are then called from a delivery thread of their own, decoupled from the
+     * connection. Should they fall more than maxLag behind, B-frames are dropped, and should
+     * that not be enough, P-frames too until the next I-frame. Audio is never dropped. Once
+     * they catch up, everything is delivered again, with no need to resubscribe. Drops are
+     * counted in the "delivery.dropped.{streamType}", "delivery.dropped.b" and
+     * "delivery.dropped.p" metrics, and frames shed because the queue filled up regardless of
+     * lag in "delivery.dropped.overflow".
+     *
+     * The delivery thread runs only while subscribed, the setting is kept across unsubscribe
+     * and subscribe. It may be changed at any time, disabling it delivers anything other than
+     * frames still queued before carrying on without.
+     *
+     * @param maxLag The lag, in milliseconds, to start dropping frames at
+     */
+    public void setLagAwareDelivery(long maxLag) {
+        synchronized (mDeliveryLock) {
+            mDeliveryMaxLag = Math.max(maxLag, 0);
+
+            if (mDeliveryQueue != null && mDeliveryMaxLag > 0) {
+                // Keep the queue, and what it knows of the streams
+                mDeliveryQueue.setMaxLag(mDeliveryMaxLag);
+            } else if (mDeliveryQueue != null) {
+                stopDeliveryQueue();
+            } else if (mIsSubscribed) {
+                startDeliveryQueue();
+            }
+        }
+    }
+
     public void setSpeed(int speed) {
         Log.i(TAG, "Requesting speed " + speed + " for channel " + mChannelId);
 
@@ -184,11 +526,7 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         subscriptionSpeedRequest.put("subscriptionId", mSubscriptionId);
         subscriptionSpeedRequest.put("speed", speed);
 
-        try {
-            mDispatcher.sendMessage(subscriptionSpeedRequest);
-        } catch (HtspNotConnectedException e) {
-            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
-        }
+        mSpeedCoalescer.send(subscriptionSpeedRequest);
     }
 
     public void pause() {
@@ -209,11 +547,7 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         subscriptionSkipRequest.put("time", time);
         subscriptionSkipRequest.put("absolute", 1);
 
-        try {
-            mDispatcher.sendMessage(subscriptionSkipRequest);
-        } catch (HtspNotConnectedException e) {
-            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
-        }
+        mSkipCoalescer.send(subscriptionSkipRequest);
     }
 
     public void live() {
@@ -247,6 +581,52 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         return INVALID_TIMESHIFT_TIME;
     }
 
+    /**
+     * Finds the buffered keyframe nearest to the given time, so a skip lands somewhere that
+     * decodes immediately rather than waiting on, and paying for, frames that can't be shown.
+     *
+     * @param time A PTS within the timeshift window
+     * @return The PTS of the nearest known keyframe inside the timeshift window, or
+     * INVALID_TIMESHIFT_TIME if there isn't one
+     */
+    public long resolveKeyframe(long time) {
+        final long start = getTimeshiftStartPts();
+        final long end = mTimeshiftStatus != null ? mTimeshiftStatus.getLong("end", INVALID_TIMESHIFT_TIME) : INVALID_TIMESHIFT_TIME;
+
+        synchronized (mKeyframeIndex) {
+            int index = mKeyframeIndex.nearest(time);
+
+            if (index == KeyframeIndex.NOT_FOUND) {
+                return INVALID_TIMESHIFT_TIME;
+            }
+
+            long pts = mKeyframeIndex.getPts(index);
+
+            if (start != INVALID_TIMESHIFT_TIME && pts < start) {
+                // Nearest has already left the window, take the first one still in it
+                index = mKeyframeIndex.ceiling(start);
+            } else if (end != INVALID_TIMESHIFT_TIME && pts > end) {
+                index = mKeyframeIndex.floor(end);
+            }
+
+            if (index == KeyframeIndex.NOT_FOUND) {
+                return INVALID_TIMESHIFT_TIME;
+            }
+
+            return mKeyframeIndex.getPts(index);
+        }
+    }
+
+    /**
+     * Skips to the keyframe nearest to the given time, or to the time itself if no keyframe near
+     * it has been seen yet
+     */
+    public void skipToKeyframe(long time) {
+        final long keyframe = resolveKeyframe(time);
+
+        skip(keyframe != INVALID_TIMESHIFT_TIME ? keyframe : time);
+    }
+
     public long getTimeshiftStartTime() {
         long startPts = getTimeshiftStartPts();
 
@@ -278,56 +658,43 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
             switch (method) {
                 case "subscriptionStart":
                     onSubscriptionStart(message);
-                    for (final Listener listener : mListeners) {
-                        listener.onSubscriptionStart(message);
-                    }
                     break;
                 case "subscriptionStatus":
                     onSubscriptionStatus(message);
-                    for (final Listener listener : mListeners) {
-                        listener.onSubscriptionStatus(message);
-                    }
                     break;
                 case "subscriptionStop":
                     onSubscriptionStop(message);
-                    for (final Listener listener : mListeners) {
-                        listener.onSubscriptionStop(message);
-                    }
                     break;
                 case "subscriptionSkip":
-                    for (final Listener listener : mListeners) {
-                        listener.onSubscriptionSkip(message);
-                    }
+                    mSkipCoalescer.onAcknowledged();
                     break;
                 case "subscriptionSpeed":
-                    for (final Listener listener : mListeners) {
-                        listener.onSubscriptionSpeed(message);
-                    }
+                    mSpeedCoalescer.onAcknowledged();
                     break;
                 case "queueStatus":
                     onQueueStatus(message);
-                    for (final Listener listener : mListeners) {
-                        listener.onQueueStatus(message);
-                    }
                     break;
                 case "signalStatus":
                     onSignalStatus(message);
-                    for (final Listener listener : mListeners) {
-                        listener.onSignalStatus(message);
-                    }
                     break;
                 case "timeshiftStatus":
                     onTimeshiftStatus(message);
-                    for (final Listener listener : mListeners) {
-                        listener.onTimeshiftStatus(message);
-                    }
                     break;
                 case "muxpkt":
-                    for (final Listener listener : mListeners) {
-                        listener.onMuxpkt(message);
+                    if (!onMuxpkt(message)) {
+                        // Filtered out
+                        return;
                     }
                     break;
             }
+
+            synchronized (mDeliveryLock) {
+                if (mDeliveryQueue != null) {
+                    mDeliveryQueue.enqueue(message);
+                } else {
+                    deliverToListeners(message);
+                }
+            }
         }
     }
 
@@ -336,18 +703,100 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
     public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
         if (mIsSubscribed && state == Authenticator.State.AUTHENTICATED) {
             Log.w(TAG, "Resubscribing to channel " + mChannelId);
+
+            // Don't block whoever delivers this event, possibly the connection's own thread, and
+            // let every Subscriber resubscribe at once rather than one round trip after another.
+            mResubscribes.increment();
+            mRestoreStartTime = SystemClock.elapsedRealtime();
+
             try {
-                subscribe(mChannelId, mProfile, mTimeshiftPeriod);
+                subscribeAsync(mChannelId, new SubscribeOptions(mOptions).setTimeshiftPeriod(mTimeshiftPeriod));
             } catch (HtspNotConnectedException e) {
                 Log.e(TAG, "Resubscribing to channel failed, not connected");
+                mResubscribeFailures.increment();
+                mRestoreStartTime = -1;
             }
         }
     }
 
     // Misc Internal Methods
+    private void deliverToListeners(@NonNull HtspMessage message) {
+        switch (message.getString("method")) {
+            case "subscriptionStart":
+                for (final Listener listener : mListeners) {
+                    listener.onSubscriptionStart(message);
+                }
+                break;
+            case "subscriptionStatus":
+                for (final Listener listener : mListeners) {
+                    listener.onSubscriptionStatus(message);
+                }
+                break;
+            case "subscriptionStop":
+                for (final Listener listener : mListeners) {
+                    listener.onSubscriptionStop(message);
+                }
+                break;
+            case "subscriptionSkip":
+                for (final Listener listener : mListeners) {
+                    listener.onSubscriptionSkip(message);
+                }
+                break;
+            case "subscriptionSpeed":
+                for (final Listener listener : mListeners) {
+                    listener.onSubscriptionSpeed(message);
+                }
+                break;
+            case "queueStatus":
+                for (final Listener listener : mListeners) {
+                    listener.onQueueStatus(message);
+                }
+                break;
+            case "signalStatus":
+                for (final Listener listener : mListeners) {
+                    listener.onSignalStatus(message);
+                }
+                break;
+            case "timeshiftStatus":
+                for (final Listener listener : mListeners) {
+                    listener.onTimeshiftStatus(message);
+                }
+                break;
+            case "muxpkt":
+                for (final Listener listener : mListeners) {
+                    listener.onMuxpkt(message);
+                }
+                break;
+        }
+    }
+
     private void onSubscriptionStart(@NonNull HtspMessage message) {
         // TODO: -1000 is a total hack, we're running this about 500ms after the actual start time..
         mStartTime = (System.currentTimeMillis() * 1000) - 1000;
+
+        final ZapTrace zapTrace = mZapTrace;
+        if (zapTrace != null) {
+            zapTrace.onSubscriptionStart(message);
+        }
+
+        final HtspMessage[] streams = message.getHtspMessageArray("streams", new HtspMessage[0]);
+
+        synchronized (mKeyframeIndex) {
+            mKeyframeIndex.clear();
+            mStreamTypes.clear();
+
+            for (HtspMessage stream : streams) {
+                mStreamTypes.put(stream.getInteger("index", -1), stream.getString("type", null));
+            }
+        }
+
+        // Every stream starts out enabled for a new subscription
+        mStreams = streams;
+        mFilteredStreams = Collections.emptySet();
+
+        if (mStreamFilter != null) {
+            applyStreamFilter(streams);
+        }
     }
 
     private void onSubscriptionStatus(@NonNull HtspMessage message) {
@@ -378,31 +827,428 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
 
     private void onQueueStatus(@NonNull HtspMessage message) {
         mQueueStatus = message;
+
+        final QueueDepthTuner queueDepthTuner = mOptions.getQueueDepthTuner();
+        if (queueDepthTuner != null) {
+            queueDepthTuner.onQueueStatus(mSubscriptionId, message);
+        }
+
+        mMetrics.gauge("queue.packets").set(message.getLong("packets", 0));
+        mMetrics.gauge("queue.bytes").set(message.getLong("bytes", 0));
+        mMetrics.gauge("queue.errors").set(message.getLong("errors", 0));
+        mMetrics.gauge("queue.delay").set(message.getLong("delay", 0));
+
+        mLastBDrops = addDrops(mBDrops, mLastBDrops, message.getLong("Bdrops", 0));
+        mLastPDrops = addDrops(mPDrops, mLastPDrops, message.getLong("Pdrops", 0));
+        mLastIDrops = addDrops(mIDrops, mLastIDrops, message.getLong("Idrops", 0));
     }
 
     private void onSignalStatus(@NonNull HtspMessage message) {
         mSignalStatus = message;
+
+        setGaugeIfPresent("signal.snr", message, "feSNR");
+        setGaugeIfPresent("signal.signal", message, "feSignal");
+        setGaugeIfPresent("signal.ber", message, "feBER");
+        setGaugeIfPresent("signal.unc", message, "feUNC");
     }
 
     private void onTimeshiftStatus(@NonNull HtspMessage message) {
         mTimeshiftStatus = message;
+
+        mMetrics.gauge("timeshift.full").set(message.getLong("full", 0));
+        mMetrics.gauge("timeshift.shift").set(message.getLong("shift", 0));
+
+        final long start = message.getLong("start", -1);
+        final long end = message.getLong("end", -1);
+
+        if (start != -1 && end != -1) {
+            final long duration = end - start;
+            mMetrics.gauge("timeshift.duration").set(duration);
+
+            if (mTimeshiftPeriod > 0) {
+                mMetrics.gauge("timeshift.fill").set(duration * 1000 / (mTimeshiftPeriod * 1000000L));
+            }
+        }
+
+        if (start != -1) {
+            synchronized (mKeyframeIndex) {
+                mKeyframeIndex.removeBefore(start);
+            }
+        }
+    }
+
+    /**
+     * @return false if the packet belongs to a filtered out stream, and should be dropped
+     */
+    private boolean onMuxpkt(@NonNull HtspMessage message) {
+        final int streamIndex = message.getInteger("stream", -1);
+        final byte[] payload = message.getByteArray("payload", null);
+        final int length = payload != null ? payload.length : 0;
+
+        mPackets.increment();
+        mBytes.add(length);
+
+        final long restoreStartTime = mRestoreStartTime;
+        if (restoreStartTime != -1) {
+            final long restoreTime = SystemClock.elapsedRealtime() - restoreStartTime;
+            mRestoreStartTime = -1;
+
+            mMetrics.histogram("resubscribe.restore_time").record(restoreTime);
+            Log.i(TAG, "Stream for channel " + mChannelId + " restored " + restoreTime + "ms after re-authentication");
+        }
+
+        // Only ever touched from the dispatcher thread
+        StreamMetrics streamMetrics = mStreamMetrics.get(streamIndex);
+        if (streamMetrics == null) {
+            streamMetrics = new StreamMetrics(streamIndex);
+            mStreamMetrics.put(streamIndex, streamMetrics);
+        }
+
+        streamMetrics.mPackets.increment();
+        streamMetrics.mBytes.add(length);
+
+        if (mFilteredStreams.contains(streamIndex)) {
+            streamMetrics.mDroppedPackets.increment();
+            streamMetrics.mDroppedBytes.add(length);
+            return false;
+        }
+
+        final int frameType = message.getInteger("frametype", 0);
+
+        // Keyframes are only trimmed as they leave the timeshift window, so only index them
+        // while there is one
+        if (frameType == FRAME_TYPE_I && mTimeshiftPeriod > 0) {
+            synchronized (mKeyframeIndex) {
+                if (StreamKind.isVideo(mStreamTypes.get(streamIndex))) {
+                    final long dts = message.getLong("dts", INVALID_TIMESHIFT_TIME);
+                    mKeyframeIndex.add(message.getLong("pts", dts), dts);
+                }
+            }
+        }
+
+        final ZapTrace zapTrace = mZapTrace;
+        if (zapTrace != null && zapTrace.onMuxpkt(streamIndex, frameType)) {
+            // Zap is complete, stop looking at packets
+            mZapTrace = null;
+        }
+
+        return true;
+    }
+
+    private void applyStreamFilter(@NonNull HtspMessage[] streams) {
+        final StreamFilter streamFilter = mStreamFilter;
+        final Set<Integer> selected = streamFilter != null ? streamFilter.selectStreams(streams) : null;
+
+        final List<Integer> enable = new ArrayList<>();
+        final List<Integer> disable = new ArrayList<>();
+        final Set<Integer> filtered = new HashSet<>();
+
+        for (HtspMessage stream : streams) {
+            final int index = stream.getInteger("index", -1);
+
+            if (selected == null || selected.contains(index)) {
+                enable.add(index);
+            } else {
+                disable.add(index);
+                filtered.add(index);
+            }
+        }
+
+        final Set<Integer> previouslyFiltered = mFilteredStreams;
+        mFilteredStreams = Collections.unmodifiableSet(filtered);
+        mMetrics.gauge("filter.disabled_streams").set(filtered.size());
+
+        if (filtered.equals(previouslyFiltered)) {
+            return;
+        }
+
+        Log.i(TAG, "Filtering streams for channel " + mChannelId + ", enabled: " + enable + " disabled: " + disable);
+
+        HtspMessage subscriptionFilterStreamRequest = new HtspMessage();
+
+        subscriptionFilterStreamRequest.put("method", "subscriptionFilterStream");
+        subscriptionFilterStreamRequest.put("subscriptionId", mSubscriptionId);
+        subscriptionFilterStreamRequest.put("enable", enable);
+        subscriptionFilterStreamRequest.put("disable", disable);
+
+        try {
+            mDispatcher.sendMessage(subscriptionFilterStreamRequest);
+        } catch (HtspNotConnectedException e) {
+            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
+        }
+    }
+
+    private static long addDrops(@NonNull Counter counter, long lastReported, long reported) {
+        if (reported >= lastReported) {
+            counter.add(reported - lastReported);
+        } else {
+            // TVHeadend has started counting from zero again
+            counter.add(reported);
+        }
+
+        return reported;
+    }
+
+    private void setGaugeIfPresent(@NonNull String name, @NonNull HtspMessage message, @NonNull String key) {
+        final long value = message.getLong(key, -1);
+
+        if (value != -1) {
+            mMetrics.gauge(name).set(value);
+        }
+    }
+
+    /**
+     * Holds back a command while the previous one of the same kind is still being acted on
+     *
+     * TVHeadend flushes and restarts the stream for every subscriptionSkip or subscriptionSpeed,
+     * so when a seek bar is dragged only the most recent target is worth sending. Commands issued
+     * while one is outstanding replace each other, and the latest is sent once TVHeadend
+     * acknowledges the outstanding one, or after a timeout should the acknowledgement never come.
+     */
+    private class CommandCoalescer {
+        private boolean mOutstanding = false;
+        private HtspMessage mPending;
+        private ScheduledFuture<?> mTimeout;
+
+        void send(@NonNull HtspMessage request) {
+            synchronized (this) {
+                if (mOutstanding) {
+                    if (mPending != null) {
+                        mCommandsCoalesced.increment();
+                    }
+                    mPending = request;
+                    return;
+                }
+
+                mOutstanding = true;
+                scheduleTimeout();
+            }
+
+            // Never send while holding our lock, acknowledgements arrive on the dispatcher thread
+            sendRequest(request);
+        }
+
+        void onAcknowledged() {
+            final HtspMessage next;
+
+            synchronized (this) {
+                if (mTimeout != null) {
+                    mTimeout.cancel(false);
+                    mTimeout = null;
+                }
+
+                next = mPending;
+                mPending = null;
+                mOutstanding = next != null;
+
+                if (next != null) {
+                    scheduleTimeout();
+                }
+            }
+
+            if (next != null) {
+                sendRequest(next);
+            }
+        }
+
+        synchronized void reset() {
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+                mTimeout = null;
+            }
+
+            mOutstanding = false;
+            mPending = null;
+        }
+
+        private void scheduleTimeout() {
+            mTimeout = sScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, "No acknowledgement for subscription command, sending the next anyway");
+                    onAcknowledged();
+                }
+            }, COMMAND_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        private void sendRequest(@NonNull HtspMessage request) {
+            try {
+                mDispatcher.sendMessage(request);
+            } catch (HtspNotConnectedException e) {
+                // Ignore: If we're not connected, TVHeadend has already unsubscribed us
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Tracks the progress of a single zap, from subscribe() until the first video keyframe
+     */
+    private static class ZapTrace {
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private final long mChannelId;
+        private final String mPrefix;
+
+        // Only touched from the dispatcher thread
+        private final SparseArray<String> mStreamTypes = new SparseArray<>();
+        private final Set<String> mSeenStreamTypes = new HashSet<>();
+        private boolean mSeenFirstPacket = false;
+
+        ZapTrace(long channelId, String profile) {
+            mChannelId = channelId;
+            mPrefix = "zap." + (profile != null ? profile : "default") + ".";
+        }
+
+        long record(@NonNull String phase) {
+            final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+            final Histogram histogram = sZapMetrics.histogram(mPrefix + phase);
+
+            histogram.record(elapsed);
+
+            return elapsed;
+        }
+
+        void onSubscriptionStart(@NonNull HtspMessage message) {
+            record("start");
+
+            HtspMessage[] streams = message.getHtspMessageArray("streams", null);
+            if (streams != null) {
+                for (HtspMessage stream : streams) {
+                    mStreamTypes.put(stream.getInteger("index", -1), stream.getString("type", "UNKNOWN"));
+                }
+            }
+        }
+
+        /**
+         * @return true once the first video keyframe has been seen, and the zap is complete
+         */
+        boolean onMuxpkt(int streamIndex, int frameType) {
+            if (!mSeenFirstPacket) {
+                mSeenFirstPacket = true;
+                record("first_packet");
+            }
+
+            final String streamType = mStreamTypes.get(streamIndex, "UNKNOWN");
+            if (mSeenStreamTypes.add(streamType)) {
+                record("first_packet." + streamType);
+            }
+
+            // Audio packets are flagged as I-frames too, so only count video unless we never saw
+            // the stream list.
+            final boolean isVideo = mStreamTypes.size() == 0 || StreamKind.isVideo(streamType);
+            if (frameType == FRAME_TYPE_I && isVideo) {
+                final long elapsed = record("first_keyframe");
+                Log.i(TAG, "First keyframe received " + elapsed + "ms after subscribing");
+
+                recordChannelZap(mChannelId, elapsed);
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static void recordChannelZap(long channelId, long elapsed) {
+        synchronized (sChannelZapTimes) {
+            Histogram histogram = sChannelZapTimes.get(channelId);
+            if (histogram == null) {
+                histogram = new Histogram();
+                sChannelZapTimes.put(channelId, histogram);
+
+                if (sChannelZapTimes.size() > MAX_ZAP_CHANNELS) {
+                    final Iterator<Long> eldest = sChannelZapTimes.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            histogram.record(elapsed);
+        }
+    }
+
+    private class StreamMetrics {
+        final Counter mPackets;
+        final Counter mBytes;
+        final Counter mDroppedPackets;
+        final Counter mDroppedBytes;
+
+        StreamMetrics(int streamIndex) {
+            mPackets = mMetrics.counter("stream." + streamIndex + ".packets");
+            mBytes = mMetrics.counter("stream." + streamIndex + ".bytes");
+            mDroppedPackets = mMetrics.counter("stream." + streamIndex + ".dropped_packets");
+            mDroppedBytes = mMetrics.counter("stream." + streamIndex + ".dropped_bytes");
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "SubscriberScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Don't let cancelled tasks linger in the queue until their next run time
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        return scheduler;
+    }
+
+    private void startDeliveryQueue() {
+        synchronized (mDeliveryLock) {
+            if (mDeliveryMaxLag <= 0 || mDeliveryQueue != null) {
+                return;
+            }
+
+            mDeliveryQueue = new LagAwareDeliveryQueue(mDeliveryMaxLag, mMetrics, new LagAwareDeliveryQueue.Consumer() {
+                @Override
+                public void deliver(@NonNull HtspMessage message) {
+                    deliverToListeners(message);
+                }
+            });
+
+            // Started mid subscription, the subscriptionStart has already gone by
+            final HtspMessage[] streams = mStreams;
+            if (streams != null) {
+                mDeliveryQueue.setStreams(streams);
+            }
+
+            mDeliveryQueue.start("Subscriber-" + mSubscriptionId);
+        }
+    }
+
+    private void stopDeliveryQueue() {
+        synchronized (mDeliveryLock) {
+            if (mDeliveryQueue == null) {
+                return;
+            }
+
+            final List<HtspMessage> pending = mDeliveryQueue.stop();
+            mDeliveryQueue = null;
+
+            // The frames the listeners were behind on are gone, but not the status changes
+            for (HtspMessage message : pending) {
+                deliverToListeners(message);
+            }
+        }
     }
 
-    private void startTimer() {
+    private synchronized void startTimer() {
         cancelTimer();
-        mTimer = new Timer();
-        mTimer.scheduleAtFixedRate(new StatsTimerTask(), STATS_INTERVAL, STATS_INTERVAL);
+        mStatsTask = sScheduler.scheduleAtFixedRate(
+                new StatsTimerTask(), STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
-    private void cancelTimer() {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer.purge();
-            mTimer = null;
+    private synchronized void cancelTimer() {
+        if (mStatsTask != null) {
+            mStatsTask.cancel(false);
+            mStatsTask = null;
         }
     }
 
-    private class StatsTimerTask extends TimerTask {
+    private class StatsTimerTask implements Runnable {
         @Override
         public void run() {
             if (mQueueStatus != null) {
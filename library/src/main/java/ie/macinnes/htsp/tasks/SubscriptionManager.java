@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+
+/**
+ * Shares a single upstream Subscription per channel and profile between local consumers
+ *
+ * The first consumer of a channel and profile causes a subscribe, the last one to release it
+ * causes an unsubscribe. Every message is delivered to every consumer as the same HtspMessage
+ * instance, so consumers must treat messages, and their payloads, as read only. Consumers that
+ * join an already running subscription get the subscriptionStart replayed to them.
+ *
+ * Register the SubscriptionManager as an Authenticator.Listener to resubscribe after a
+ * reconnect, as you would a Subscriber.
+ */
+public class SubscriptionManager implements Authenticator.Listener {
+    private static final String TAG = SubscriptionManager.class.getSimpleName();
+
+    private final HtspMessage.Dispatcher mDispatcher;
+
+    private final Object mLock = new Object();
+    private final Map<Key, Upstream> mUpstreams = new HashMap<>();
+
+    /**
+     * A single consumer's hold on a shared subscription
+     */
+    public class Subscription {
+        private final Upstream mUpstream;
+        private final Subscriber.Listener mListener;
+        private boolean mReleased = false;
+
+        private Subscription(Upstream upstream, Subscriber.Listener listener) {
+            mUpstream = upstream;
+            mListener = listener;
+        }
+
+        /**
+         * @return The shared Subscriber. Speed, skip etc. affect every consumer.
+         */
+        @NonNull
+        public Subscriber getSubscriber() {
+            return mUpstream.mSubscriber;
+        }
+
+        public long getChannelId() {
+            return mUpstream.mKey.mChannelId;
+        }
+
+        public String getProfile() {
+            return mUpstream.mKey.mProfile;
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (mReleased) {
+                    Log.w(TAG, "Attempted to release a subscription twice");
+                    return;
+                }
+                mReleased = true;
+            }
+
+            SubscriptionManager.this.release(mUpstream, mListener);
+        }
+    }
+
+    public SubscriptionManager(@NonNull HtspMessage.Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Subscribes the listener to the given channel and profile, sharing any existing
+     * subscription. Blocks for the subscribe round trip if there isn't one yet.
+     *
+     * @param channelId The channel to subscribe to
+     * @param profile The streaming profile, or null for the default
+     * @param listener The listener to deliver messages to
+     * @return A Subscription, which must be released when no longer needed
+     */
+    @NonNull
+    public Subscription subscribe(long channelId, String profile, @NonNull Subscriber.Listener listener) throws HtspNotConnectedException {
+        final Key key = new Key(channelId, profile);
+        Upstream upstream;
+
+        synchronized (mLock) {
+            upstream = mUpstreams.get(key);
+            if (upstream == null) {
+                upstream = new Upstream(key);
+                mUpstreams.put(key, upstream);
+            }
+            upstream.mRefCount += 1;
+        }
+
+        // Added before subscribing, so the first consumer doesn't miss anything sent before the
+        // subscribe response arrives.
+        upstream.addConsumer(listener);
+
+        try {
+            upstream.ensureSubscribed();
+        } catch (HtspNotConnectedException e) {
+            release(upstream, listener);
+            throw e;
+        } catch (RuntimeException e) {
+            release(upstream, listener);
+            throw e;
+        }
+
+        return new Subscription(upstream, listener);
+    }
+
+    /**
+     * @return The number of subscriptions currently held upstream
+     */
+    public int getUpstreamCount() {
+        synchronized (mLock) {
+            return mUpstreams.size();
+        }
+    }
+
+    /**
+     * @return The number of local consumers of the given channel and profile
+     */
+    public int getConsumerCount(long channelId, String profile) {
+        synchronized (mLock) {
+            Upstream upstream = mUpstreams.get(new Key(channelId, profile));
+            return upstream != null ? upstream.mRefCount : 0;
+        }
+    }
+
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    // Authenticator.Listener Methods
+    @Override
+    public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
+        final List<Upstream> upstreams;
+
+        synchronized (mLock) {
+            upstreams = new ArrayList<>(mUpstreams.values());
+        }
+
+        for (Upstream upstream : upstreams) {
+            upstream.mSubscriber.onAuthenticationStateChange(state);
+        }
+    }
+
+    // Internal Methods
+    private void release(@NonNull Upstream upstream, Subscriber.Listener listener) {
+        if (listener != null) {
+            upstream.removeConsumer(listener);
+        }
+
+        boolean unsubscribe = false;
+
+        synchronized (mLock) {
+            upstream.mRefCount -= 1;
+
+            if (upstream.mRefCount == 0) {
+                mUpstreams.remove(upstream.mKey);
+                unsubscribe = true;
+            }
+        }
+
+        if (unsubscribe) {
+            upstream.unsubscribe();
+        }
+    }
+
+    private static class Key {
+        final long mChannelId;
+        final String mProfile;
+
+        Key(long channelId, String profile) {
+            mChannelId = channelId;
+            mProfile = profile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return mChannelId == other.mChannelId
+                    && (mProfile == null ? other.mProfile == null : mProfile.equals(other.mProfile));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mChannelId ^ (mChannelId >>> 32)) + (mProfile != null ? mProfile.hashCode() : 0);
+        }
+    }
+
+    /**
+     * The single real Subscriber for a channel and profile, fanning messages out to consumers
+     */
+    private class Upstream implements Subscriber.Listener {
+        final Key mKey;
+        final Subscriber mSubscriber;
+
+        // Guarded by mLock
+        int mRefCount = 0;
+
+        // Held for the subscribe round trip, which must not hold up message delivery
+        private final Object mSubscribeLock = new Object();
+        private boolean mSubscribed = false;
+        private boolean mUnsubscribed = false;
+
+        private final Set<Subscriber.Listener> mConsumers = new CopyOnWriteArraySet<>();
+        private HtspMessage mSubscriptionStart;
+
+        Upstream(Key key) {
+            mKey = key;
+            mSubscriber = new Subscriber(mDispatcher);
+            mSubscriber.addSubscriptionListener(this);
+        }
+
+        void ensureSubscribed() throws HtspNotConnectedException {
+            synchronized (mSubscribeLock) {
+                if (mSubscribed || mUnsubscribed) {
+                    return;
+                }
+
+                Log.i(TAG, "Subscribing upstream to channel " + mKey.mChannelId);
+                mSubscriber.subscribe(mKey.mChannelId, mKey.mProfile);
+                mSubscribed = true;
+            }
+        }
+
+        void unsubscribe() {
+            synchronized (mSubscribeLock) {
+                mUnsubscribed = true;
+
+                if (!mSubscribed) {
+                    return;
+                }
+
+                Log.i(TAG, "Last consumer gone, unsubscribing upstream from channel " + mKey.mChannelId);
+                mSubscriber.removeSubscriptionListener(this);
+                mSubscriber.unsubscribe();
+                mSubscribed = false;
+            }
+        }
+
+        synchronized void addConsumer(@NonNull Subscriber.Listener listener) {
+            if (mConsumers.contains(listener)) {
+                Log.w(TAG, "Attempted to add duplicate subscription consumer");
+                return;
+            }
+
+            // Replay before adding, so the consumer never sees packets ahead of the start
+            if (mSubscriptionStart != null) {
+                listener.onSubscriptionStart(mSubscriptionStart);
+            }
+
+            mConsumers.add(listener);
+        }
+
+        synchronized void removeConsumer(@NonNull Subscriber.Listener listener) {
+            if (!mConsumers.remove(listener)) {
+                Log.w(TAG, "Attempted to remove non existing subscription consumer");
+            }
+        }
+
+        @Override
+        public void onSubscriptionStart(@NonNull HtspMessage message) {
+            synchronized (this) {
+                mSubscriptionStart = message;
+
+                for (final Subscriber.Listener listener : mConsumers) {
+                    listener.onSubscriptionStart(message);
+                }
+            }
+        }
+
+        @Override
+        public void onSubscriptionStatus(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onSubscriptionStatus(message);
+            }
+        }
+
+        @Override
+        public void onSubscriptionStop(@NonNull HtspMessage message) {
+            synchronized (this) {
+                mSubscriptionStart = null;
+
+                for (final Subscriber.Listener listener : mConsumers) {
+                    listener.onSubscriptionStop(message);
+                }
+            }
+        }
+
+        @Override
+        public void onSubscriptionSkip(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onSubscriptionSkip(message);
+            }
+        }
+
+        @Override
+        public void onSubscriptionSpeed(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onSubscriptionSpeed(message);
+            }
+        }
+
+        @Override
+        public void onQueueStatus(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onQueueStatus(message);
+            }
+        }
+
+        @Override
+        public void onSignalStatus(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onSignalStatus(message);
+            }
+        }
+
+        @Override
+        public void onTimeshiftStatus(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onTimeshiftStatus(message);
+            }
+        }
+
+        @Override
+        public void onMuxpkt(@NonNull HtspMessage message) {
+            for (final Subscriber.Listener listener : mConsumers) {
+                listener.onMuxpkt(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp.tasks;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.metrics.Counter;
+import ie.macinnes.htsp.metrics.Gauge;
+import ie.macinnes.htsp.metrics.MetricsRegistry;
+
+/**
+ * A client side timeshift buffer, holding the most recent muxpkts of a Subscription on disk
+ *
+ * Packets are appended to a fixed size, memory mapped, ring file, overwriting the oldest packets
+ * once it is full. An index of video keyframes allows Readers to start playback from any point
+ * within the buffered window without going back to TVHeadend, and without needing server side
+ * timeshift to be enabled.
+ *
+ * Attach it to a Subscriber as a Subscriber.Listener. The live Subscription keeps filling the
+ * buffer while Readers play back from wherever they like within it.
+ */
+public class TimeshiftBuffer implements Subscriber.Listener {
+    private static final String TAG = TimeshiftBuffer.class.getSimpleName();
+
+    public static final long INVALID_PTS = Long.MIN_VALUE;
+
+    private static final int FRAME_TYPE_I = 'I';
+
+    // Record layout: length, stream, frametype, pts, dts, duration, payload
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8 + 8 + 8;
+    private static final int WRAP_MARKER = -1;
+
+    private final File mFile;
+    private final int mCapacity;
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // Ring state, all guarded by this
+    private int mHead = 0;
+    private int mTail = 0;
+    private int mRecordCount = 0;
+    private long mHeadSequence = 0;
+    private long mTailSequence = 0;
+    private long mUsedBytes = 0;
+
+    // Positions are the record sequence in the upper bits, and its offset in the lower 31
+    private final KeyframeIndex mKeyframes = new KeyframeIndex();
+    private final SparseArray<String> mStreamTypes = new SparseArray<>();
+    private HtspMessage mSubscriptionStart;
+    private int mSubscriptionId;
+    private long mEndPts = INVALID_PTS;
+
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final Counter mBytesWritten = mMetrics.counter("timeshift.bytes_written");
+    private final Counter mPacketsWritten = mMetrics.counter("timeshift.packets_written");
+    private final Counter mPacketsDropped = mMetrics.counter("timeshift.packets_dropped");
+    private final Gauge mUsedBytesGauge = mMetrics.gauge("timeshift.used_bytes");
+
+    /**
+     * Reads packets back out of the buffer, from a keyframe onwards
+     */
+    public class Reader {
+        private long mSequence;
+        private int mOffset;
+        private boolean mOverrun = false;
+
+        private Reader(long sequence, int offset) {
+            mSequence = sequence;
+            mOffset = offset;
+        }
+
+        /**
+         * @return The next muxpkt, or null if the Reader has caught up with the live edge, has
+         * been overrun, or the buffer has been closed
+         */
+        public HtspMessage next() {
+            synchronized (TimeshiftBuffer.this) {
+                if (mBuffer == null) {
+                    // Closed, the ring is gone
+                    return null;
+                }
+
+                if (mSequence < mTailSequence) {
+                    // The writer has lapped us, the data we wanted is gone
+                    mOverrun = true;
+                    return null;
+                }
+
+                if (mSequence >= mHeadSequence) {
+                    return null;
+                }
+
+                if (mOffset + 4 > mCapacity || mBuffer.getInt(mOffset) == WRAP_MARKER) {
+                    mOffset = 0;
+                }
+
+                final HtspMessage message = readRecord(mOffset);
+
+                mOffset += mBuffer.getInt(mOffset);
+                mSequence += 1;
+
+                return message;
+            }
+        }
+
+        /**
+         * @return true if packets were overwritten before this Reader could read them, seek
+         * again to continue
+         */
+        public boolean isOverrun() {
+            return mOverrun;
+        }
+
+        /**
+         * @return true once the Reader has caught up with the most recently written packet
+         */
+        public boolean isAtLiveEdge() {
+            synchronized (TimeshiftBuffer.this) {
+                return mSequence >= mHeadSequence;
+            }
+        }
+    }
+
+    /**
+     * @param file The file to use for the ring, it will be created or truncated
+     * @param capacity Size of the ring in bytes, at most Integer.MAX_VALUE
+     */
+    public TimeshiftBuffer(@NonNull File file, long capacity) throws IOException {
+        if (capacity <= HEADER_SIZE || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid timeshift buffer capacity: " + capacity);
+        }
+
+        mFile = file;
+        mCapacity = (int) capacity;
+
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(mCapacity);
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+
+        mMetrics.gauge("timeshift.capacity").set(mCapacity);
+    }
+
+    /**
+     * Releases the ring file, and deletes it
+     */
+    public synchronized void close() {
+        mBuffer = null;
+        mKeyframes.clear();
+
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close timeshift buffer", e);
+            }
+            mRandomAccessFile = null;
+        }
+
+        if (!mFile.delete()) {
+            Log.w(TAG, "Failed to delete timeshift buffer file " + mFile);
+        }
+    }
+
+    /**
+     * Counters "timeshift.bytes_written", "timeshift.packets_written" and
+     * "timeshift.packets_dropped" (packets too large to ever fit), and gauges
+     * "timeshift.used_bytes" and "timeshift.capacity". Snapshot rates give write throughput.
+     */
+    @NonNull
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * @return The subscriptionStart for the buffered packets, for Readers to replay
+     */
+    public synchronized HtspMessage getSubscriptionStart() {
+        return mSubscriptionStart;
+    }
+
+    /**
+     * @return The PTS of the oldest keyframe, i.e. the earliest point playback can start from
+     */
+    public synchronized long getStartPts() {
+        if (mKeyframes.isEmpty()) {
+            return INVALID_PTS;
+        }
+        return mKeyframes.getPts(0);
+    }
+
+    /**
+     * @return The PTS of the most recently written packet
+     */
+    public synchronized long getEndPts() {
+        return mEndPts;
+    }
+
+    /**
+     * Opens a Reader at the latest keyframe at or before the given PTS, or the oldest keyframe if
+     * the PTS is before the buffered window.
+     *
+     * @return A Reader, or null if there are no keyframes buffered
+     */
+    public synchronized Reader seek(long pts) {
+        if (mKeyframes.isEmpty()) {
+            return null;
+        }
+
+        int index = mKeyframes.floor(pts);
+        if (index == KeyframeIndex.NOT_FOUND) {
+            index = 0;
+        }
+
+        final long position = mKeyframes.getPosition(index);
+        return new Reader(position >>> 31, (int) (position & Integer.MAX_VALUE));
+    }
+
+    // Subscriber.Listener Methods
+    @Override
+    public synchronized void onSubscriptionStart(@NonNull HtspMessage message) {
+        // A new subscriptionStart means new streams, and the old packets no longer apply
+        reset();
+
+        mSubscriptionStart = message;
+        mSubscriptionId = message.getInteger("subscriptionId", 0);
+
+        HtspMessage[] streams = message.getHtspMessageArray("streams", null);
+        if (streams != null) {
+            for (HtspMessage stream : streams) {
+                mStreamTypes.put(stream.getInteger("index", -1), stream.getString("type", null));
+            }
+        }
+    }
+
+    @Override
+    public void onSubscriptionStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSubscriptionStop(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSubscriptionSkip(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSubscriptionSpeed(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onQueueStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onSignalStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public void onTimeshiftStatus(@NonNull HtspMessage message) {
+
+    }
+
+    @Override
+    public synchronized void onMuxpkt(@NonNull HtspMessage message) {
+        if (mBuffer == null) {
+            return;
+        }
+
+        final byte[] payload = message.getByteArray("payload", new byte[0]);
+        final int length = HEADER_SIZE + payload.length;
+
+        if (length > mCapacity) {
+            mPacketsDropped.increment();
+            return;
+        }
+
+        final int stream = message.getInteger("stream", -1);
+        final int frameType = message.getInteger("frametype", 0);
+        final long dts = message.getLong("dts", INVALID_PTS);
+        final long pts = message.getLong("pts", dts);
+
+        if (mCapacity - mHead < length) {
+            // Doesn't fit before the end of the ring, everything between here and the end goes
+            while (mRecordCount > 0 && mTail >= mHead) {
+                evictOldest();
+            }
+
+            if (mCapacity - mHead >= 4) {
+                mBuffer.putInt(mHead, WRAP_MARKER);
+            }
+            mHead = 0;
+        }
+
+        while (mRecordCount > 0 && mTail >= mHead && mTail < mHead + length) {
+            evictOldest();
+        }
+
+        if (mRecordCount == 0) {
+            mTail = mHead;
+        }
+
+        final int offset = mHead;
+
+        mBuffer.putInt(offset, length);
+        mBuffer.putInt(offset + 4, stream);
+        mBuffer.put(offset + 8, (byte) frameType);
+        mBuffer.putLong(offset + 9, pts);
+        mBuffer.putLong(offset + 17, dts);
+        mBuffer.putLong(offset + 25, message.getLong("duration", 0));
+
+        final ByteBuffer target = mBuffer.duplicate();
+        target.position(offset + HEADER_SIZE);
+        target.put(payload);
+
+        if (frameType == FRAME_TYPE_I && pts != INVALID_PTS
+                && (mStreamTypes.size() == 0 || StreamKind.isVideo(mStreamTypes.get(stream)))) {
+            mKeyframes.add(pts, (mHeadSequence << 31) | offset);
+        }
+
+        mHead += length;
+        mHeadSequence += 1;
+        mRecordCount += 1;
+        mUsedBytes += length;
+
+        if (pts != INVALID_PTS) {
+            mEndPts = pts;
+        }
+
+        mBytesWritten.add(length);
+        mPacketsWritten.increment();
+        mUsedBytesGauge.set(mUsedBytes);
+    }
+
+    // Internal Methods
+    private void reset() {
+        mHead = 0;
+        mTail = 0;
+        mRecordCount = 0;
+        mTailSequence = mHeadSequence;
+        mUsedBytes = 0;
+        mEndPts = INVALID_PTS;
+        mKeyframes.clear();
+        mStreamTypes.clear();
+        mUsedBytesGauge.set(0);
+    }
+
+    private void evictOldest() {
+        if (mTail + 4 > mCapacity || mBuffer.getInt(mTail) == WRAP_MARKER) {
+            mTail = 0;
+            return;
+        }
+
+        final int length = mBuffer.getInt(mTail);
+
+        if (!mKeyframes.isEmpty() && mKeyframes.getPosition(0) >>> 31 == mTailSequence) {
+            mKeyframes.removeOldest();
+        }
+
+        mTail += length;
+        mTailSequence += 1;
+        mRecordCount -= 1;
+        mUsedBytes -= length;
+    }
+
+    private HtspMessage readRecord(int offset) {
+        final int length = mBuffer.getInt(offset);
+        final byte[] payload = new byte[length - HEADER_SIZE];
+
+        final ByteBuffer source = mBuffer.duplicate();
+        source.position(offset + HEADER_SIZE);
+        source.get(payload);
+
+        final HtspMessage message = new HtspMessage();
+
+        message.put("method", "muxpkt");
+        message.put("subscriptionId", mSubscriptionId);
+        message.put("stream", mBuffer.getInt(offset + 4));
+        message.put("frametype", (int) mBuffer.get(offset + 8));
+        message.put("pts", mBuffer.getLong(offset + 9));
+        message.put("dts", mBuffer.getLong(offset + 17));
+        message.put("duration", mBuffer.getLong(offset + 25));
+        message.put("payload", payload);
+
+        return message;
+    }
+}